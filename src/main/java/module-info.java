@@ -32,6 +32,7 @@ module no.ssb.dc.server {
 
     requires java.net.http;
     requires undertow.core;
+    requires simpleclient;
 
     requires lmdbjava;
     requires org.objectweb.asm;
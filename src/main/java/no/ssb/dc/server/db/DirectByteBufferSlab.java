@@ -0,0 +1,94 @@
+package no.ssb.dc.server.db;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size slices carved out of one direct arena. Free slices are kept on a lock-free stack, where the head
+ * holds a version tag in the upper 32 bits and the slice index in the lower 32 bits to avoid the ABA problem.
+ * <p>
+ * Acquire never blocks. If all slices are in use, a transient direct buffer is allocated instead, which is
+ * ignored on release and left to the garbage collector.
+ */
+public class DirectByteBufferSlab {
+
+    private static final int EMPTY = -1;
+
+    private final int sliceCapacity;
+    private final ByteBuffer[] slices;
+    private final int[] next;
+    private final Map<ByteBuffer, Integer> sliceIndex;
+    private final AtomicLong head;
+    private final AtomicLong transientAllocations = new AtomicLong();
+
+    public DirectByteBufferSlab(int numberOfSlices, int sliceCapacity) {
+        if ((long) numberOfSlices * sliceCapacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Slab size exceeds max arena size: %s x %s", numberOfSlices, sliceCapacity));
+        }
+        this.sliceCapacity = sliceCapacity;
+        this.slices = new ByteBuffer[numberOfSlices];
+        this.next = new int[numberOfSlices];
+        this.sliceIndex = new IdentityHashMap<>(numberOfSlices);
+        ByteBuffer arena = ByteBuffer.allocateDirect(numberOfSlices * sliceCapacity);
+        for (int i = 0; i < numberOfSlices; i++) {
+            // a slice starts at position 0, which is required by buffers passed to Lmdb
+            slices[i] = arena.slice(i * sliceCapacity, sliceCapacity);
+            sliceIndex.put(slices[i], i);
+            next[i] = i + 1 < numberOfSlices ? i + 1 : EMPTY;
+        }
+        this.head = new AtomicLong(pack(0, numberOfSlices > 0 ? 0 : EMPTY));
+    }
+
+    static long pack(int tag, int index) {
+        return ((long) tag << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    static int tag(long head) {
+        return (int) (head >>> 32);
+    }
+
+    static int index(long head) {
+        return (int) head;
+    }
+
+    public int sliceCapacity() {
+        return sliceCapacity;
+    }
+
+    public ByteBuffer acquire() {
+        while (true) {
+            long current = head.get();
+            int index = index(current);
+            if (index == EMPTY) {
+                transientAllocations.incrementAndGet();
+                return ByteBuffer.allocateDirect(sliceCapacity);
+            }
+            if (head.compareAndSet(current, pack(tag(current) + 1, next[index]))) {
+                return slices[index].clear();
+            }
+        }
+    }
+
+    public void release(ByteBuffer buffer) {
+        Integer index = sliceIndex.get(buffer);
+        if (index == null) {
+            return;
+        }
+        while (true) {
+            long current = head.get();
+            next[index] = index(current);
+            if (head.compareAndSet(current, pack(tag(current) + 1, index))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of buffers that were allocated because the slab was exhausted
+     */
+    public long transientAllocations() {
+        return transientAllocations.get();
+    }
+}
@@ -1,8 +1,10 @@
 package no.ssb.dc.server.db;
 
 import no.ssb.config.DynamicConfiguration;
+import org.lmdbjava.CopyFlags;
 import org.lmdbjava.Dbi;
 import org.lmdbjava.Env;
+import org.lmdbjava.EnvInfo;
 import org.lmdbjava.Txn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,7 +15,12 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.lmdbjava.DbiFlags.MDB_CREATE;
 
@@ -21,20 +28,37 @@ public class LmdbEnvironment implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(LmdbEnvironment.class);
 
+    // grow ahead of MDB_MAP_FULL when this share of the map is in use
+    static final double GROW_AHEAD_THRESHOLD = 0.75;
+
     private final Path databaseDir;
     private final Env<ByteBuffer> env;
     private final String topic;
     private final AtomicBoolean closed = new AtomicBoolean(false);
-    private final int mapSize;
+    private final AtomicLong mapSize = new AtomicLong();
+    private final long maxMapSize;
+    private final Map<String, Dbi<ByteBuffer>> secondaryDbs = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    private final LmdbEnvironmentComponent registry;
+    // guarded by registry
+    int references;
+    long idleSince;
     private Dbi<ByteBuffer> db;
 
-    public LmdbEnvironment(DynamicConfiguration configuration, Path databaseDir, String topic) {
+    // environments are opened by the registry only, see LmdbEnvironmentComponent.acquire
+    LmdbEnvironment(DynamicConfiguration configuration, Path databaseDir, String topic, LmdbEnvironmentComponent registry) {
+        this.registry = registry;
         this.databaseDir = databaseDir.resolve(topic);
         createDirectories(this.databaseDir);
         this.topic = topic;
-        mapSize = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.dbSizeInMb") != null ?
+        long initialSizeInMb = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.dbSizeInMb") != null ?
                 configuration.evaluateToInt("data.collector.integrityCheck.dbSizeInMb") : 50;
-        env = createEnvironment();
+        long maxSizeInMb = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.dbMaxSizeInMb") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.dbMaxSizeInMb") : -1;
+        maxMapSize = maxSizeInMb > 0 ? maxSizeInMb * 1024 * 1024 : Long.MAX_VALUE;
+        env = createEnvironment(initialSizeInMb * 1024 * 1024);
+        // an existing database may already have grown beyond the initial size
+        mapSize.set(env.info().mapSize);
     }
 
     public static void removePath(Path path) {
@@ -50,6 +74,23 @@ public class LmdbEnvironment implements AutoCloseable {
         return env;
     }
 
+    /**
+     * Guard a transaction against a concurrent resize of the map by another user of a shared environment.
+     * Open the guard before the transaction and never grow the map while holding a guard:
+     * <pre>
+     * try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn&lt;ByteBuffer&gt; txn = lmdbEnvironment.env().txnRead())
+     * </pre>
+     * A guard is held for the whole of a scan, so a long scan stalls a writer that has to grow a full map until the
+     * scan completes. Writers call {@link #growMapSizeAhead()} after commit to make that the exception.
+     */
+    public TxnGuard txnGuard() {
+        return new TxnGuard(resizeLock.readLock());
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
     public int maxKeySize() {
         return env.getMaxKeySize();
     }
@@ -68,12 +109,11 @@ public class LmdbEnvironment implements AutoCloseable {
         }
     }
 
-    private Env<ByteBuffer> createEnvironment() {
-        int numberOfDbs = 3;
-        int dbSize = mapSize * 1024 * 1024;
+    private Env<ByteBuffer> createEnvironment(long dbSize) {
+        int numberOfDbs = 8;
         LOG.info("Create Lmdb database with numberOfDbs: {}, size: {}", numberOfDbs, dbSize);
         return Env.create()
-                // LMDB also needs to know how large our DB might be. Over-estimating is OK.
+                // LMDB also needs to know how large our DB might be. Start small and grow on MDB_MAP_FULL.
                 .setMapSize(dbSize)
                 // LMDB also needs to know how many DBs (Dbi) we want to store in this Env.
                 .setMaxDbs(numberOfDbs)
@@ -83,17 +123,102 @@ public class LmdbEnvironment implements AutoCloseable {
                 .open(databaseDir.toFile());
     }
 
-    public Dbi<ByteBuffer> open() {
+    public long mapSize() {
+        return mapSize.get();
+    }
+
+    /**
+     * Doubles the map size of the environment. The caller must abort the write transaction that failed with
+     * MDB_MAP_FULL and release its guard first. The resize waits for guarded transactions of other users to complete.
+     *
+     * @return the new map size
+     * @throws IllegalStateException if the map size has reached data.collector.integrityCheck.dbMaxSizeInMb
+     */
+    public synchronized long growMapSize() {
+        resizeLock.writeLock().lock();
+        try {
+            long currentSize = mapSize.get();
+            if (currentSize >= maxMapSize) {
+                throw new IllegalStateException(String.format("Unable to grow Lmdb database for topic %s beyond max size: %s", topic, maxMapSize));
+            }
+            return resize(currentSize);
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Double the map size when more than GROW_AHEAD_THRESHOLD of the map is in use. The resize is skipped while a
+     * guarded transaction is open, e.g. a long scan, and is tried again after the next commit. The caller must not
+     * hold a guard.
+     */
+    public void growMapSizeAhead() {
+        long currentSize = mapSize.get();
+        if (currentSize >= maxMapSize) {
+            return;
+        }
+        long usedSize;
+        try (TxnGuard guard = txnGuard()) {
+            EnvInfo info = env.info();
+            usedSize = (info.lastPageNumber + 1) * env.stat().pageSize;
+        }
+        if (usedSize < currentSize * GROW_AHEAD_THRESHOLD || !resizeLock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            // another writer may have grown the map meanwhile
+            if (mapSize.get() == currentSize) {
+                resize(currentSize);
+            }
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    // must hold the resize write lock
+    private long resize(long currentSize) {
+        long newSize = currentSize > maxMapSize / 2 ? maxMapSize : currentSize * 2;
+        LOG.info("Grow Lmdb database for topic {} from size: {} to size: {}", topic, currentSize, newSize);
+        env.setMapSize(newSize);
+        mapSize.set(newSize);
+        return newSize;
+    }
+
+    public synchronized Dbi<ByteBuffer> open() {
         if (!closed.get() && db != null) {
             return db;
         }
-        db = env.openDbi(topic, MDB_CREATE);
+        try (TxnGuard guard = txnGuard()) {
+            db = env.openDbi(topic, MDB_CREATE);
+        }
         return db;
     }
 
+    /**
+     * Open a secondary database that belongs to the topic. E.g. name "position" opens the database "TOPIC-position".
+     */
+    public synchronized Dbi<ByteBuffer> open(String name) {
+        return secondaryDbs.computeIfAbsent(name, dbName -> {
+            try (TxnGuard guard = txnGuard()) {
+                return env.openDbi(topic + "-" + dbName, MDB_CREATE);
+            }
+        });
+    }
+
+    /**
+     * Copy the environment to an empty directory. Only pages in use are copied, so the copy is compacted. The copy
+     * runs in a read transaction and may be taken while the environment is written to, but the map can only grow
+     * ahead of a full map until the copy completes.
+     */
+    public void copyCompacted(Path targetDir) {
+        try (TxnGuard guard = txnGuard()) {
+            env.copy(targetDir.toFile(), CopyFlags.MDB_CP_COMPACT);
+        }
+    }
+
     void drop() {
         if (!closed.get() && db != null) {
-            try (Txn<ByteBuffer> txn = env.txnWrite()) {
+            try (TxnGuard guard = txnGuard(); Txn<ByteBuffer> txn = env.txnWrite()) {
                 db.drop(txn);
             }
         }
@@ -103,11 +228,32 @@ public class LmdbEnvironment implements AutoCloseable {
         return closed.get();
     }
 
+    /**
+     * Release the environment. The environment is returned to the registry, which closes it when idle.
+     */
     @Override
     public void close() {
+        registry.release(this);
+    }
+
+    void closeEnvironment() {
         // drop()
         if (closed.compareAndSet(false, true)) {
             env.close();
         }
     }
+
+    public static class TxnGuard implements AutoCloseable {
+        private final Lock lock;
+
+        TxnGuard(Lock lock) {
+            this.lock = lock;
+            lock.lock();
+        }
+
+        @Override
+        public void close() {
+            lock.unlock();
+        }
+    }
 }
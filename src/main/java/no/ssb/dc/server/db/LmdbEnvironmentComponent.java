@@ -0,0 +1,223 @@
+package no.ssb.dc.server.db;
+
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.application.spi.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static no.ssb.dc.server.db.SequenceDbHelper.getSequenceDatabaseLocation;
+
+/**
+ * Process-wide registry of Lmdb environments. An environment is opened once per database path and shared by
+ * integrity check jobs and recovery workers. Closing an acquired environment releases the reference, and an
+ * environment is closed when it has been idle for data.collector.integrityCheck.environment.idleTimeoutInSeconds,
+ * or when it is the least recently used idle environment and the pool is full.
+ */
+public class LmdbEnvironmentComponent implements Component {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LmdbEnvironmentComponent.class);
+
+    private final DynamicConfiguration configuration;
+    private final AtomicBoolean closed = new AtomicBoolean(true);
+    private final int maxOpenEnvironments;
+    private final long idleTimeoutInMillis;
+    private final long acquireTimeoutInMillis;
+    // access ordered, i.e. iteration starts with the least recently used environment
+    private final Map<Path, LmdbEnvironment> environments = new LinkedHashMap<>(16, 0.75f, true);
+    private ScheduledExecutorService idleEnvironmentReaper;
+    private SequenceDbCatalog catalog;
+
+    public LmdbEnvironmentComponent(DynamicConfiguration configuration) {
+        this.configuration = configuration;
+        this.maxOpenEnvironments = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.environment.maxOpen") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.environment.maxOpen") : 16;
+        this.idleTimeoutInMillis = 1000L * (configuration != null && configuration.evaluateToString("data.collector.integrityCheck.environment.idleTimeoutInSeconds") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.environment.idleTimeoutInSeconds") : 300);
+        this.acquireTimeoutInMillis = 1000L * (configuration != null && configuration.evaluateToString("data.collector.integrityCheck.environment.acquireTimeoutInSeconds") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.environment.acquireTimeoutInSeconds") : 60);
+    }
+
+    public static LmdbEnvironmentComponent create(DynamicConfiguration configuration) {
+        LmdbEnvironmentComponent lmdbEnvironmentComponent = new LmdbEnvironmentComponent(configuration);
+        lmdbEnvironmentComponent.initialize();
+        return lmdbEnvironmentComponent;
+    }
+
+    @Override
+    public void initialize() {
+        if (isOpen()) {
+            return;
+        }
+        idleEnvironmentReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lmdb-environment-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutInMillis / 2);
+        idleEnvironmentReaper.scheduleWithFixedDelay(this::closeIdleEnvironments, period, period, TimeUnit.MILLISECONDS);
+        closed.set(false);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public <R> R getDelegate() {
+        return (R) this;
+    }
+
+    /**
+     * The catalog of sequence databases in the configured database location. It is loaded on first access.
+     */
+    public synchronized SequenceDbCatalog catalog() {
+        if (closed.get()) {
+            throw new IllegalStateException("LmdbEnvironmentComponent is closed!");
+        }
+        if (catalog == null) {
+            catalog = SequenceDbCatalog.create(getSequenceDatabaseLocation(configuration));
+        }
+        return catalog;
+    }
+
+    static Path key(Path databaseDir, String topic) {
+        return databaseDir.resolve(topic).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Acquire a shared environment. The caller must close the environment to release it. Waits for an idle
+     * environment to be evicted when all environments in the pool are in use.
+     *
+     * @throws IllegalStateException if no environment was released within the acquire timeout
+     */
+    public synchronized LmdbEnvironment acquire(Path databaseDir, String topic) {
+        if (closed.get()) {
+            throw new IllegalStateException("LmdbEnvironmentComponent is closed!");
+        }
+        Path key = key(databaseDir, topic);
+        long deadline = System.currentTimeMillis() + acquireTimeoutInMillis;
+        while (true) {
+            LmdbEnvironment lmdbEnvironment = environments.get(key);
+            if (lmdbEnvironment != null) {
+                lmdbEnvironment.references++;
+                return lmdbEnvironment;
+            }
+            if (environments.size() < maxOpenEnvironments || evictLeastRecentlyUsed()) {
+                break;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException(String.format("Unable to open Lmdb database for topic %s. All %s environments are in use!", topic, maxOpenEnvironments));
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        LmdbEnvironment lmdbEnvironment = new LmdbEnvironment(configuration, databaseDir, topic, this);
+        lmdbEnvironment.references++;
+        environments.put(key, lmdbEnvironment);
+        return lmdbEnvironment;
+    }
+
+    synchronized void release(LmdbEnvironment lmdbEnvironment) {
+        if (lmdbEnvironment.references == 0) {
+            return;
+        }
+        if (--lmdbEnvironment.references == 0) {
+            lmdbEnvironment.idleSince = System.currentTimeMillis();
+            if (closed.get()) {
+                environments.values().remove(lmdbEnvironment);
+                lmdbEnvironment.closeEnvironment();
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isInUse(Path databaseDir, String topic) {
+        LmdbEnvironment lmdbEnvironment = environments.get(key(databaseDir, topic));
+        return lmdbEnvironment != null && lmdbEnvironment.references > 0;
+    }
+
+    /**
+     * Close an idle environment, e.g. before its database path is removed
+     *
+     * @return false if the environment is in use
+     */
+    public synchronized boolean evict(Path databaseDir, String topic) {
+        Path key = key(databaseDir, topic);
+        LmdbEnvironment lmdbEnvironment = environments.get(key);
+        if (lmdbEnvironment == null) {
+            return true;
+        }
+        if (lmdbEnvironment.references > 0) {
+            return false;
+        }
+        environments.remove(key);
+        lmdbEnvironment.closeEnvironment();
+        notifyAll();
+        return true;
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        Iterator<LmdbEnvironment> it = environments.values().iterator();
+        while (it.hasNext()) {
+            LmdbEnvironment lmdbEnvironment = it.next();
+            if (lmdbEnvironment.references == 0) {
+                LOG.info("Evict Lmdb database: {}", lmdbEnvironment.getDatabaseDir());
+                it.remove();
+                lmdbEnvironment.closeEnvironment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void closeIdleEnvironments() {
+        long now = System.currentTimeMillis();
+        Iterator<LmdbEnvironment> it = environments.values().iterator();
+        while (it.hasNext()) {
+            LmdbEnvironment lmdbEnvironment = it.next();
+            if (lmdbEnvironment.references == 0 && now - lmdbEnvironment.idleSince >= idleTimeoutInMillis) {
+                LOG.info("Close idle Lmdb database: {}", lmdbEnvironment.getDatabaseDir());
+                it.remove();
+                lmdbEnvironment.closeEnvironment();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        idleEnvironmentReaper.shutdownNow();
+        if (catalog != null) {
+            catalog.close();
+            catalog = null;
+        }
+        Iterator<LmdbEnvironment> it = environments.values().iterator();
+        while (it.hasNext()) {
+            LmdbEnvironment lmdbEnvironment = it.next();
+            // environments in use are closed when released
+            if (lmdbEnvironment.references > 0) {
+                LOG.warn("Lmdb database is in use and will be closed on release: {}", lmdbEnvironment.getDatabaseDir());
+                continue;
+            }
+            it.remove();
+            lmdbEnvironment.closeEnvironment();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package no.ssb.dc.server.db;
+
+import no.ssb.dc.api.util.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * In-memory catalog of the sequence databases in the database location, i.e. one directory per topic, and the
+ * summary of the last integrity check of each topic (report/summary.json). The catalog is loaded once and kept up to
+ * date by a file system watcher. Services should call {@link #refresh(String)} after they have changed a database,
+ * because watch events are delivered asynchronously.
+ */
+public class SequenceDbCatalog implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SequenceDbCatalog.class);
+
+    static final String REPORT_DIR = "report";
+    static final String SUMMARY_FILE = "summary.json";
+
+    private final Path dbLocation;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean(true);
+    private WatchService watchService;
+    private Thread watcherThread;
+
+    public SequenceDbCatalog(Path dbLocation) {
+        this.dbLocation = dbLocation;
+    }
+
+    public static SequenceDbCatalog create(Path dbLocation) {
+        SequenceDbCatalog catalog = new SequenceDbCatalog(dbLocation);
+        catalog.start();
+        return catalog;
+    }
+
+    public synchronized void start() {
+        if (!closed.compareAndSet(true, false)) {
+            return;
+        }
+        try {
+            Files.createDirectories(dbLocation);
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            closed.set(true);
+            throw new RuntimeException(e);
+        }
+        reload();
+        watcherThread = new Thread(this::watch, "sequence-db-catalog-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public Path getDbLocation() {
+        return dbLocation;
+    }
+
+    public boolean contains(String topic) {
+        return entries.containsKey(topic);
+    }
+
+    /**
+     * @return topics in alphabetical order
+     */
+    public List<String> topics() {
+        List<String> topics = new ArrayList<>(entries.keySet());
+        Collections.sort(topics);
+        return topics;
+    }
+
+    /**
+     * Get the summary of the last integrity check of a topic. The summary file is parsed on first access and cached
+     * until it changes.
+     *
+     * @return the summary or null if the topic or its summary does not exist
+     */
+    public <T> T getSummary(String topic, Class<T> summaryClass) {
+        Entry entry = entries.get(topic);
+        if (entry == null) {
+            return null;
+        }
+        CachedSummary cached = entry.cached;
+        if (cached != null && (cached.summary == null || summaryClass.isInstance(cached.summary))) {
+            return summaryClass.cast(cached.summary);
+        }
+        int generation = entry.generation;
+        T summary = readSummary(dbLocation.resolve(topic).resolve(REPORT_DIR).resolve(SUMMARY_FILE), summaryClass);
+        synchronized (entry) {
+            // a summary that changed while it was read is read again on next access
+            if (entry.generation == generation) {
+                entry.cached = new CachedSummary(summary);
+            }
+        }
+        return summary;
+    }
+
+    static <T> T readSummary(Path summaryPath, Class<T> summaryClass) {
+        if (!summaryPath.toFile().exists()) {
+            return null;
+        }
+        try {
+            return JsonParser.createJsonParser().fromJson(Files.readString(summaryPath), summaryClass);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Add, update or remove a topic after its database directory has been created, changed or removed
+     */
+    public void refresh(String topic) {
+        Path databaseDir = dbLocation.resolve(topic);
+        if (!databaseDir.toFile().isDirectory()) {
+            entries.remove(topic);
+            watchKeys.entrySet().removeIf(entry -> {
+                if (entry.getValue().startsWith(databaseDir)) {
+                    entry.getKey().cancel();
+                    return true;
+                }
+                return false;
+            });
+            return;
+        }
+        entries.computeIfAbsent(topic, Entry::new).invalidate();
+        if (!closed.get()) {
+            register(databaseDir);
+            Path reportDir = databaseDir.resolve(REPORT_DIR);
+            if (reportDir.toFile().isDirectory()) {
+                register(reportDir);
+            }
+        }
+    }
+
+    // list the database location and discard cached summaries
+    synchronized void reload() {
+        if (!closed.get()) {
+            register(dbLocation);
+        }
+        List<String> topics = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(dbLocation)) {
+            paths.filter(path -> path.toFile().isDirectory()).forEach(path -> topics.add(path.getFileName().toString()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        entries.keySet().retainAll(topics);
+        for (String topic : topics) {
+            refresh(topic);
+        }
+        LOG.info("Loaded {} sequence databases from: {}", topics.size(), dbLocation);
+    }
+
+    private void register(Path dir) {
+        for (Map.Entry<WatchKey, Path> entry : watchKeys.entrySet()) {
+            if (entry.getValue().equals(dir) && entry.getKey().isValid()) {
+                return;
+            }
+        }
+        try {
+            watchKeys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        } catch (ClosedWatchServiceException e) {
+            // closed concurrently
+        } catch (IOException e) {
+            // the directory was removed before it could be watched
+            LOG.debug("Unable to watch: {}", dir);
+        }
+    }
+
+    void watch() {
+        while (!closed.get()) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchKeys.get(watchKey);
+            try {
+                if (dir != null) {
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        handle(dir, event);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to update catalog of: {}", dir, e);
+            }
+            if (!watchKey.reset()) {
+                // the directory has been removed
+                watchKeys.remove(watchKey);
+            }
+        }
+    }
+
+    void handle(Path dir, WatchEvent<?> event) {
+        if (event.kind() == OVERFLOW) {
+            reload();
+            return;
+        }
+        Path name = (Path) event.context();
+        Path relativeDir = dbLocation.relativize(dir);
+        if (relativeDir.toString().isEmpty()) {
+            // a database directory was created or removed
+            refresh(name.toString());
+        } else if (relativeDir.getNameCount() == 1) {
+            // the report directory was created or removed
+            if (REPORT_DIR.equals(name.toString())) {
+                refresh(relativeDir.toString());
+            }
+        } else if (SUMMARY_FILE.equals(name.toString())) {
+            Entry entry = entries.get(relativeDir.getName(0).toString());
+            if (entry != null) {
+                entry.invalidate();
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            watchKeys.clear();
+        }
+        watcherThread.interrupt();
+    }
+
+    static class Entry {
+        final String topic;
+        // guarded by this
+        volatile int generation;
+        volatile CachedSummary cached;
+
+        Entry(String topic) {
+            this.topic = topic;
+        }
+
+        synchronized void invalidate() {
+            generation++;
+            cached = null;
+        }
+    }
+
+    // distinguishes a topic without a summary from a summary that has not been read
+    static class CachedSummary {
+        final Object summary;
+
+        CachedSummary(Object summary) {
+            this.summary = summary;
+        }
+    }
+}
@@ -4,8 +4,9 @@ import de.huxhorn.sulky.ulid.ULID;
 import no.ssb.config.DynamicConfiguration;
 import no.ssb.dc.api.util.CommonUtils;
 import no.ssb.dc.server.recovery.PositionAndULIDVersion;
-import org.lmdbjava.CursorIterable;
+import org.lmdbjava.Cursor;
 import org.lmdbjava.Dbi;
+import org.lmdbjava.GetOp;
 import org.lmdbjava.Txn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,13 +14,8 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
@@ -62,87 +58,253 @@ public class SequenceDbHelper {
 
     public PositionAndULIDVersion findFirstPosition() {
         final PositionAndULIDVersion positionAndUlidVersion = new PositionAndULIDVersion();
-        try (Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
-            Iterator<CursorIterable.KeyVal<ByteBuffer>> it = dbi.iterate(txn).iterator();
-            if (it.hasNext()) {
-                CursorIterable.KeyVal<ByteBuffer> next = it.next();
-                SequenceKey sequenceKey = SequenceKey.fromByteBuffer(next.key());
-                positionAndUlidVersion.compareAndSet(sequenceKey.ulid(), sequenceKey.position());
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = dbi.openCursor(txn)) {
+                if (cursor.first()) {
+                    SequenceKey sequenceKey = SequenceKey.fromByteBuffer(cursor.key());
+                    positionAndUlidVersion.compareAndSet(sequenceKey.ulid(), sequenceKey.position());
+                }
             }
         }
         return positionAndUlidVersion;
     }
 
-    public PositionAndULIDVersion findLastPosition() {
+    /**
+     * Find the highest indexed position, which is the last key in position order
+     */
+    public PositionAndULIDVersion findHighestPosition() {
         final PositionAndULIDVersion positionAndUlidVersion = new PositionAndULIDVersion();
-        handlePositionDuplicates(event -> positionAndUlidVersion.compareAndSet(event.ulidSet().iterator().next(), event.sequenceKey().position()));
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = dbi.openCursor(txn)) {
+                if (cursor.last()) {
+                    SequenceKey sequenceKey = SequenceKey.fromByteBuffer(cursor.key());
+                    positionAndUlidVersion.compareAndSet(sequenceKey.ulid(), sequenceKey.position());
+                }
+            }
+        }
         return positionAndUlidVersion;
     }
 
-    void handlePositionDuplicates(Predicate<DuplicateEvent> visit) {
-        AtomicBoolean canceled = new AtomicBoolean(false);
-        AtomicReference<SequenceKey> prevSequenceKey = new AtomicReference<>();
-        Map<String, SortedSet<ULID.Value>> duplicatePositionAndUlidSet = new LinkedHashMap<>();
-        try (Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
-            Iterator<CursorIterable.KeyVal<ByteBuffer>> it = dbi.iterate(txn).iterator();
-            while (!canceled.get() && it.hasNext()) {
-                CursorIterable.KeyVal<ByteBuffer> next = it.next();
-                ByteBuffer keyBuffer = next.key();
-                SequenceKey sequenceKey = SequenceKey.fromByteBuffer(keyBuffer);
-
-                // mark first position
-                if (prevSequenceKey.get() == null) {
-                    prevSequenceKey.set(sequenceKey);
-                    continue;
+    /**
+     * Find the first occurrence of the duplicated position with the lowest ulid. The metadata record is used when
+     * duplicates have been tracked for the whole index, otherwise the sequence database is scanned.
+     */
+    public PositionAndULIDVersion findLastPosition() {
+        final PositionAndULIDVersion positionAndUlidVersion = new PositionAndULIDVersion();
+        SequenceDbMetadata metadata = new SequenceDbMetadata(lmdbEnvironment);
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            if (metadata.isTrackingDuplicates(txn)) {
+                SequenceKey earliestDuplicate = metadata.earliestDuplicate(txn);
+                if (earliestDuplicate != null) {
+                    positionAndUlidVersion.compareAndSet(earliestDuplicate.ulid(), earliestDuplicate.position());
                 }
+                return positionAndUlidVersion;
+            }
+        }
+        LOG.debug("Duplicates are not tracked by metadata. Scanning sequence database for last position!");
+        handlePositionDuplicates(event -> positionAndUlidVersion.compareAndSet(event.ulidSet().first(), event.position()));
+        return positionAndUlidVersion;
+    }
+
+    /**
+     * Find the sequence key with the highest ulid, which is the most recently received message
+     */
+    public PositionAndULIDVersion findMaxUlid() {
+        final PositionAndULIDVersion positionAndUlidVersion = new PositionAndULIDVersion();
+        SequenceDbMetadata metadata = new SequenceDbMetadata(lmdbEnvironment);
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            SequenceKey maxUlid = metadata.maxUlid(txn);
+            if (maxUlid != null) {
+                positionAndUlidVersion.compareAndSet(maxUlid.ulid(), maxUlid.position());
+            }
+        }
+        return positionAndUlidVersion;
+    }
+
+    public long count() {
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            return dbi.stat(txn).entries;
+        }
+    }
 
-                // check if we got a duplicate
-                if (prevSequenceKey.get().position().equals(sequenceKey.position())) {
-                    // make counters for position and increment duplicateCount
-                    duplicatePositionAndUlidSet.computeIfAbsent(prevSequenceKey.get().position(), duplicateUlidSet -> new TreeSet<>()).add(prevSequenceKey.get().ulid());
-                    duplicatePositionAndUlidSet.get(sequenceKey.position()).add(sequenceKey.ulid());
+    public boolean isUlidIndexed() {
+        SequenceDbMetadata metadata = new SequenceDbMetadata(lmdbEnvironment);
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            return metadata.isUlidIndexed(txn);
+        }
+    }
+
+    /**
+     * Visit the sequence keys that were received in a time range in ulid order. Requires the ulid index.
+     *
+     * @param fromTimestamp inclusive epoch millis
+     * @param toTimestamp   exclusive epoch millis
+     * @param visit         return false to cancel iteration
+     */
+    public void handleUlidRange(long fromTimestamp, long toTimestamp, Predicate<SequenceKey> visit) {
+        Dbi<ByteBuffer> ulidDb = lmdbEnvironment.open("ulid");
+        // the timestamp is stored in the upper 48 bits of the most significant bits of an ulid
+        ByteBuffer fromKeyBuffer = ByteBuffer.allocateDirect(2 * Long.BYTES);
+        fromKeyBuffer.putLong(fromTimestamp << 16).putLong(0).flip();
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = ulidDb.openCursor(txn)) {
+                boolean found = cursor.get(fromKeyBuffer, GetOp.MDB_SET_RANGE);
+                while (found) {
+                    long timestamp = cursor.key().getLong(cursor.key().position()) >>> 16;
+                    if (timestamp >= toTimestamp || !visit.test(SequenceKey.fromByteBuffer(cursor.val()))) {
+                        return;
+                    }
+                    found = cursor.next();
                 }
+            }
+        }
+    }
+
+    /**
+     * Scan the sequence database and fire an event for every position that has more than one ulid. Keys are
+     * compared using a flyweight over the cursor buffer, so only duplicated positions are materialized.
+     *
+     * @param visit return false to cancel iteration
+     */
+    public void handlePositionDuplicates(Predicate<DuplicateEvent> visit) {
+        handlePositionDuplicates(null, null, visit);
+    }
 
-                // fire event on duplicates when prev is not equal to curr
-                if (duplicatePositionAndUlidSet.size() > 0 && !prevSequenceKey.get().position().equals(sequenceKey.position())) {
-                    SortedSet<ULID.Value> ulidSet = duplicatePositionAndUlidSet.get(prevSequenceKey.get().position());
-                    try {
-                        if (!visit.test(new DuplicateEvent(prevSequenceKey.get(), ulidSet, it.hasNext()))) {
-                            canceled.set(true);
+    /**
+     * Scan the sequence database from a position and fire an event for every duplicated position that starts with a
+     * prefix. Only one position is held in memory at a time, so a client can page through any number of duplicates
+     * by passing the last position of a page as the start of the next.
+     *
+     * @param afterPosition  exclusive start position or null to scan from the first position
+     * @param positionPrefix position prefix or null to match all positions
+     * @param visit          return false to cancel iteration
+     */
+    public void handlePositionDuplicates(String afterPosition, String positionPrefix, Predicate<DuplicateEvent> visit) {
+        String prefix = positionPrefix == null || positionPrefix.isEmpty() ? null : positionPrefix;
+        // string positions with the prefix are a contiguous key range, while numeric positions must be filtered
+        ByteBuffer prefixKeyBuffer = prefix == null ? null : SequenceKey.encodeStringPositionPrefix(prefix, ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize()));
+        ByteBuffer startKeyBuffer = afterPosition != null ? afterPositionKey(afterPosition) : prefixKeyBuffer;
+        if (afterPosition != null && prefixKeyBuffer != null && compareKeys(startKeyBuffer, prefixKeyBuffer) < 0) {
+            // the start position sorts before the prefix range
+            startKeyBuffer = prefixKeyBuffer;
+        }
+
+        SequenceKeyFlyweight currentKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight prevKey = new SequenceKeyFlyweight(lmdbEnvironment.maxKeySize());
+        String duplicatePosition = null;
+        SortedSet<ULID.Value> duplicateUlidSet = null;
+        boolean skipPosition = false;
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = dbi.openCursor(txn)) {
+                boolean found = startKeyBuffer == null ? cursor.first() : cursor.get(startKeyBuffer, GetOp.MDB_SET_RANGE);
+                while (found) {
+                    currentKey.wrap(cursor.key());
+
+                    // check if we got a duplicate
+                    if (!prevKey.isEmpty() && prevKey.positionEquals(currentKey)) {
+                        if (duplicateUlidSet == null && !skipPosition) {
+                            String position = prevKey.position();
+                            if (prefix == null || position.startsWith(prefix)) {
+                                duplicatePosition = position;
+                                duplicateUlidSet = new TreeSet<>();
+                                duplicateUlidSet.add(prevKey.ulid());
+                            } else {
+                                skipPosition = true;
+                            }
+                        }
+                        if (duplicateUlidSet != null) {
+                            duplicateUlidSet.add(currentKey.ulid());
+                        }
+
+                    } else {
+                        skipPosition = false;
+                        if (duplicateUlidSet != null) {
+                            // fire event on duplicates when prev is not equal to curr
+                            if (!fireDuplicateEvent(visit, new DuplicateEvent(duplicatePosition, duplicateUlidSet, true))) {
+                                return;
+                            }
+                            duplicatePosition = null;
+                            duplicateUlidSet = null;
+                        }
+                        if (prefixKeyBuffer != null && !startsWith(cursor.key(), prefixKeyBuffer)) {
+                            // passed the last string position with the prefix
+                            break;
                         }
-                    } catch (Exception e) {
-                        LOG.error("Duplicate iteration error: {}", CommonUtils.captureStackTrace(e));
-                        canceled.set(true);
                     }
-                    duplicatePositionAndUlidSet.clear();
+
+                    // move marker to next
+                    prevKey.copyFrom(currentKey);
+                    found = cursor.next();
                 }
+            }
+        }
 
-                // move marker to next
-                prevSequenceKey.set(sequenceKey);
+        // fire event on duplicates at end of sequence
+        if (duplicateUlidSet != null) {
+            fireDuplicateEvent(visit, new DuplicateEvent(duplicatePosition, duplicateUlidSet, false));
+        }
+    }
+
+    // the position segment followed by the highest ulid sorts after every key of the position
+    private ByteBuffer afterPositionKey(String position) {
+        ByteBuffer positionSegment = SequenceKey.encodePosition(position, ByteBuffer.allocate(lmdbEnvironment.maxKeySize() - 2 * Long.BYTES));
+        ByteBuffer keyBuffer = ByteBuffer.allocateDirect(positionSegment.remaining() + 2 * Long.BYTES);
+        return keyBuffer.put(positionSegment).putLong(-1L).putLong(-1L).flip();
+    }
+
+    // compare keys in the same order as Lmdb sorts them, i.e. unsigned bytes and a shorter key before a longer key with the same prefix
+    static int compareKeys(ByteBuffer keyBuffer, ByteBuffer otherKeyBuffer) {
+        int length = Math.min(keyBuffer.remaining(), otherKeyBuffer.remaining());
+        for (int i = 0; i < length; i++) {
+            int cmp = Byte.compareUnsigned(keyBuffer.get(keyBuffer.position() + i), otherKeyBuffer.get(otherKeyBuffer.position() + i));
+            if (cmp != 0) {
+                return cmp;
             }
         }
+        return Integer.compare(keyBuffer.remaining(), otherKeyBuffer.remaining());
+    }
+
+    private static boolean startsWith(ByteBuffer keyBuffer, ByteBuffer prefixBuffer) {
+        if (keyBuffer.remaining() < prefixBuffer.remaining()) {
+            return false;
+        }
+        for (int i = 0; i < prefixBuffer.remaining(); i++) {
+            if (keyBuffer.get(keyBuffer.position() + i) != prefixBuffer.get(prefixBuffer.position() + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fireDuplicateEvent(Predicate<DuplicateEvent> visit, DuplicateEvent event) {
+        try {
+            return visit.test(event);
+        } catch (Exception e) {
+            LOG.error("Duplicate iteration error: {}", CommonUtils.captureStackTrace(e));
+            return false;
+        }
     }
 
-    static class DuplicateEvent {
-        private final SequenceKey sequenceKey;
+    public static class DuplicateEvent {
+        private final String position;
         private final SortedSet<ULID.Value> ulidSet;
         private final boolean hasNext;
 
-        DuplicateEvent(SequenceKey sequenceKey, SortedSet<ULID.Value> ulidSet, boolean hasNext) {
-            this.sequenceKey = sequenceKey;
+        DuplicateEvent(String position, SortedSet<ULID.Value> ulidSet, boolean hasNext) {
+            this.position = position;
             this.ulidSet = ulidSet;
             this.hasNext = hasNext;
         }
 
-        SequenceKey sequenceKey() {
-            return sequenceKey;
+        public String position() {
+            return position;
         }
 
-        SortedSet<ULID.Value> ulidSet() {
+        public SortedSet<ULID.Value> ulidSet() {
             return ulidSet;
         }
 
-        boolean hasNext() {
+        public boolean hasNext() {
             return hasNext;
         }
     }
@@ -0,0 +1,150 @@
+package no.ssb.dc.server.db;
+
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Metadata records of a sequence database, stored in the side database "TOPIC-meta":
+ * <ul>
+ *     <li>count: number of sequence keys</li>
+ *     <li>minUlid and maxUlid: the sequence keys with the lowest and highest ulid</li>
+ *     <li>earliestDuplicate: the first occurrence of the duplicated position with the lowest first ulid. An empty
+ *     value means that the index has no duplicates.</li>
+ *     <li>positionIndex: present when the position database covers every sequence key</li>
+ *     <li>ulidIndex: present when the ulid database covers every sequence key</li>
+ * </ul>
+ * Records are updated by the index writer in the transaction that writes the sequence keys. The earliestDuplicate
+ * record is only present when every sequence key has been tracked by duplicate detection.
+ * <p>
+ * An instance reuses its buffers and must not be shared between threads.
+ */
+public class SequenceDbMetadata {
+
+    static final String COUNT = "count";
+    static final String MIN_ULID = "minUlid";
+    static final String MAX_ULID = "maxUlid";
+    static final String EARLIEST_DUPLICATE = "earliestDuplicate";
+    static final String POSITION_INDEX = "positionIndex";
+    static final String ULID_INDEX = "ulidIndex";
+
+    private final Dbi<ByteBuffer> metaDb;
+    private final ByteBuffer recordKeyBuffer;
+    private final ByteBuffer recordValueBuffer;
+    private final SequenceKeyFlyweight storedKey = new SequenceKeyFlyweight();
+    private final SequenceKeyFlyweight candidateKey = new SequenceKeyFlyweight();
+
+    public SequenceDbMetadata(LmdbEnvironment lmdbEnvironment) {
+        this.metaDb = lmdbEnvironment.open("meta");
+        this.recordKeyBuffer = ByteBuffer.allocateDirect(64);
+        this.recordValueBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+    }
+
+    private ByteBuffer recordKey(String name) {
+        recordKeyBuffer.clear();
+        recordKeyBuffer.put(name.getBytes(UTF_8));
+        return recordKeyBuffer.flip();
+    }
+
+    /**
+     * Merge the keys that were added by a write transaction
+     *
+     * @param minKeyBuffer the added key with the lowest ulid
+     * @param maxKeyBuffer the added key with the highest ulid
+     */
+    public void merge(Txn<ByteBuffer> txn, long addedKeys, ByteBuffer minKeyBuffer, ByteBuffer maxKeyBuffer) {
+        if (addedKeys == 0) {
+            return;
+        }
+        recordValueBuffer.clear();
+        recordValueBuffer.putLong(count(txn) + addedKeys);
+        metaDb.put(txn, recordKey(COUNT), recordValueBuffer.flip());
+        mergeKey(txn, MIN_ULID, minKeyBuffer, -1);
+        mergeKey(txn, MAX_ULID, maxKeyBuffer, 1);
+    }
+
+    /**
+     * Record the first occurrence of a duplicated position if its ulid is lower than the recorded duplicate
+     */
+    public void mergeDuplicate(Txn<ByteBuffer> txn, ByteBuffer firstOccurrenceKeyBuffer) {
+        ByteBuffer storedValue = metaDb.get(txn, recordKey(EARLIEST_DUPLICATE));
+        if (storedValue != null && storedValue.remaining() > 0 && candidateKey.wrap(firstOccurrenceKeyBuffer).compareUlid(storedKey.wrap(storedValue)) >= 0) {
+            return;
+        }
+        metaDb.put(txn, recordKey(EARLIEST_DUPLICATE), firstOccurrenceKeyBuffer.duplicate());
+    }
+
+    /**
+     * Start tracking duplicates for an index without duplicates
+     */
+    public void trackDuplicates(Txn<ByteBuffer> txn) {
+        if (metaDb.get(txn, recordKey(EARLIEST_DUPLICATE)) == null) {
+            metaDb.put(txn, recordKey(EARLIEST_DUPLICATE), recordValueBuffer.clear().flip());
+        }
+    }
+
+    public boolean isPositionIndexed(Txn<ByteBuffer> txn) {
+        return metaDb.get(txn, recordKey(POSITION_INDEX)) != null;
+    }
+
+    public void markPositionIndexed(Txn<ByteBuffer> txn) {
+        if (!isPositionIndexed(txn)) {
+            metaDb.put(txn, recordKey(POSITION_INDEX), recordValueBuffer.clear().flip());
+        }
+    }
+
+    public boolean isUlidIndexed(Txn<ByteBuffer> txn) {
+        return metaDb.get(txn, recordKey(ULID_INDEX)) != null;
+    }
+
+    public void markUlidIndexed(Txn<ByteBuffer> txn) {
+        if (!isUlidIndexed(txn)) {
+            metaDb.put(txn, recordKey(ULID_INDEX), recordValueBuffer.clear().flip());
+        }
+    }
+
+    private void mergeKey(Txn<ByteBuffer> txn, String name, ByteBuffer keyBuffer, int direction) {
+        Objects.requireNonNull(keyBuffer);
+        ByteBuffer storedValue = metaDb.get(txn, recordKey(name));
+        if (storedValue != null && Integer.signum(candidateKey.wrap(keyBuffer).compareUlid(storedKey.wrap(storedValue))) != direction) {
+            return;
+        }
+        metaDb.put(txn, recordKey(name), keyBuffer.duplicate());
+    }
+
+    public long count(Txn<ByteBuffer> txn) {
+        ByteBuffer value = metaDb.get(txn, recordKey(COUNT));
+        return value == null ? 0 : value.getLong(value.position());
+    }
+
+    public SequenceKey minUlid(Txn<ByteBuffer> txn) {
+        return readKey(txn, MIN_ULID);
+    }
+
+    public SequenceKey maxUlid(Txn<ByteBuffer> txn) {
+        return readKey(txn, MAX_ULID);
+    }
+
+    public boolean isTrackingDuplicates(Txn<ByteBuffer> txn) {
+        return metaDb.get(txn, recordKey(EARLIEST_DUPLICATE)) != null;
+    }
+
+    /**
+     * @return the first occurrence of the earliest duplicate or null if there are no duplicates or they are not tracked
+     */
+    public SequenceKey earliestDuplicate(Txn<ByteBuffer> txn) {
+        return readKey(txn, EARLIEST_DUPLICATE);
+    }
+
+    private SequenceKey readKey(Txn<ByteBuffer> txn, String name) {
+        ByteBuffer value = metaDb.get(txn, recordKey(name));
+        if (value == null || value.remaining() == 0) {
+            return null;
+        }
+        return SequenceKey.fromByteBuffer(value);
+    }
+}
@@ -0,0 +1,212 @@
+package no.ssb.dc.server.db;
+
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static no.ssb.dc.server.db.SequenceDbHelper.getSequenceDatabaseLocation;
+
+/**
+ * Compacted snapshots of a sequence database. A snapshot is copied from a live environment using the Lmdb
+ * copy-with-compaction, which only writes pages in use, and contains the report directory of the integrity check
+ * that built the database. Snapshots are stored as SNAPSHOT_LOCATION/TOPIC/SNAPSHOT_ID and a snapshot directory
+ * can be moved to another host and restored there, e.g. to seed the index of a recovery node.
+ */
+public class SequenceDbSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SequenceDbSnapshot.class);
+
+    static final String DATA_FILE = "data.mdb";
+    static final String REPORT_DIR = "report";
+
+    private final DynamicConfiguration configuration;
+    private final LmdbEnvironmentComponent lmdbEnvironmentComponent;
+
+    public SequenceDbSnapshot(DynamicConfiguration configuration, LmdbEnvironmentComponent lmdbEnvironmentComponent) {
+        this.configuration = configuration;
+        this.lmdbEnvironmentComponent = lmdbEnvironmentComponent;
+    }
+
+    public static Path getSnapshotLocation(DynamicConfiguration configuration) {
+        String location = configuration.evaluateToString("data.collector.integrityCheck.snapshot.location");
+        if (location == null || location.isEmpty()) {
+            Path dbLocation = getSequenceDatabaseLocation(configuration);
+            return dbLocation.resolveSibling(dbLocation.getFileName() + "-snapshot");
+        }
+        return Paths.get(location);
+    }
+
+    /**
+     * Create a compacted snapshot of a sequence database. The environment may be used by a running job.
+     *
+     * @return the snapshot or null if the topic has no sequence database
+     */
+    public Snapshot create(String topic) {
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        Path databaseDir = dbLocation.resolve(topic);
+        if (!databaseDir.resolve(DATA_FILE).toFile().exists()) {
+            return null;
+        }
+        String snapshotId = ULIDGenerator.toUUID(ULIDGenerator.generate()).toString();
+        Path snapshotDir = getSnapshotLocation(configuration).resolve(topic).resolve(snapshotId);
+        // the snapshot is written to a work directory, so an incomplete snapshot is never listed
+        Path workDir = snapshotDir.resolveSibling(snapshotId + ".tmp");
+        try {
+            Files.createDirectories(workDir);
+            try (LmdbEnvironment lmdbEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, topic)) {
+                LOG.info("Create snapshot of Lmdb database {} to: {}", databaseDir, snapshotDir);
+                lmdbEnvironment.copyCompacted(workDir);
+            }
+            copyDirectory(databaseDir.resolve(REPORT_DIR), workDir.resolve(REPORT_DIR));
+            Files.move(workDir, snapshotDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LmdbEnvironment.removePath(workDir);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        Snapshot snapshot = new Snapshot(topic, snapshotId, snapshotDir, sizeOf(snapshotDir.resolve(DATA_FILE)), sizeOf(databaseDir.resolve(DATA_FILE)));
+        LOG.info("Created snapshot {} of topic {}. Compacted size: {} of {} bytes", snapshotId, topic, snapshot.getSize(), snapshot.getSourceSize());
+        return snapshot;
+    }
+
+    public List<Snapshot> list(String topic) {
+        Path topicSnapshotDir = getSnapshotLocation(configuration).resolve(topic);
+        if (!topicSnapshotDir.toFile().exists()) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.list(topicSnapshotDir)) {
+            return paths.filter(path -> path.resolve(DATA_FILE).toFile().exists() && !path.getFileName().toString().endsWith(".tmp"))
+                    .sorted()
+                    .map(path -> new Snapshot(topic, path.getFileName().toString(), path, sizeOf(path.resolve(DATA_FILE)), -1))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the sequence database of a topic with a snapshot. The snapshot id "latest" restores the most recent
+     * snapshot.
+     *
+     * @return false if the snapshot does not exist
+     * @throws IllegalStateException if the sequence database is in use
+     */
+    public boolean restore(String topic, String snapshotId) {
+        Path snapshotDir;
+        if ("latest".equals(snapshotId)) {
+            List<Snapshot> snapshots = list(topic);
+            if (snapshots.isEmpty()) {
+                return false;
+            }
+            // snapshot ids are ulids and sort by creation time
+            snapshotDir = snapshots.get(snapshots.size() - 1).getPath();
+        } else {
+            Path topicSnapshotDir = getSnapshotLocation(configuration).resolve(topic);
+            snapshotDir = topicSnapshotDir.resolve(snapshotId).normalize();
+            if (!snapshotDir.startsWith(topicSnapshotDir) || !snapshotDir.resolve(DATA_FILE).toFile().exists()) {
+                return false;
+            }
+        }
+
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        if (!lmdbEnvironmentComponent.evict(dbLocation, topic)) {
+            throw new IllegalStateException("Lmdb database is in use for topic: " + topic);
+        }
+        Path databaseDir = dbLocation.resolve(topic);
+        LOG.info("Restore Lmdb database {} from snapshot: {}", databaseDir, snapshotDir);
+        LmdbEnvironment.removePath(databaseDir);
+        try {
+            Files.createDirectories(databaseDir);
+            Files.copy(snapshotDir.resolve(DATA_FILE), databaseDir.resolve(DATA_FILE));
+            copyDirectory(snapshotDir.resolve(REPORT_DIR), databaseDir.resolve(REPORT_DIR));
+        } catch (IOException e) {
+            LmdbEnvironment.removePath(databaseDir);
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    static void copyDirectory(Path sourceDir, Path targetDir) throws IOException {
+        if (!sourceDir.toFile().exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(sourceDir)) {
+            for (Path source : paths.sorted(Comparator.naturalOrder()).collect(Collectors.toList())) {
+                Path target = targetDir.resolve(sourceDir.relativize(source).toString());
+                if (source.toFile().isDirectory()) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    static long sizeOf(Path file) {
+        return file.toFile().length();
+    }
+
+    public static class Snapshot {
+        private final String topic;
+        private final String snapshotId;
+        private final Path path;
+        private final long size;
+        private final long sourceSize;
+
+        Snapshot(String topic, String snapshotId, Path path, long size, long sourceSize) {
+            this.topic = topic;
+            this.snapshotId = snapshotId;
+            this.path = path;
+            this.size = size;
+            this.sourceSize = sourceSize;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getSnapshotId() {
+            return snapshotId;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Size of the database file when the snapshot was created or -1 if unknown
+         */
+        public long getSourceSize() {
+            return sourceSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Snapshot snapshot = (Snapshot) o;
+            return Objects.equals(topic, snapshot.topic) &&
+                    Objects.equals(snapshotId, snapshot.snapshotId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topic, snapshotId);
+        }
+    }
+}
@@ -9,6 +9,12 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class SequenceKey implements Comparable<SequenceKey> {
 
+    public static final int FORMAT_VERSION = 1;
+    static final int ULID_LENGTH = 16;
+    static final int NUMERIC_POSITION = 0x81;
+    static final int STRING_POSITION = 0x82;
+    private static final String MAX_NUMERIC_POSITION = Long.toString(Long.MAX_VALUE);
+
     private final ULID.Value ulid;
     private final String position;
 
@@ -27,21 +33,186 @@ public class SequenceKey implements Comparable<SequenceKey> {
 
     public static SequenceKey fromByteBuffer(ByteBuffer keyBuffer) {
         Objects.requireNonNull(keyBuffer);
-        int positionLength = keyBuffer.get();
-        byte[] positionBytes = new byte[positionLength];
-        keyBuffer.get(positionBytes);
-        long ulidMostSignificantBits = keyBuffer.getLong();
-        long ulidLeastSignificantBits = keyBuffer.getLong();
-        String position = new String(positionBytes, UTF_8);
+        int offset = keyBuffer.position();
+        int positionSegmentLength = keyBuffer.remaining() - ULID_LENGTH;
+        String position = decodePosition(keyBuffer, offset, positionSegmentLength);
+        long ulidMostSignificantBits = keyBuffer.getLong(offset + positionSegmentLength);
+        long ulidLeastSignificantBits = keyBuffer.getLong(offset + positionSegmentLength + Long.BYTES);
+        keyBuffer.position(keyBuffer.limit());
         ULID.Value ulid = new ULID.Value(ulidMostSignificantBits, ulidLeastSignificantBits);
         return new SequenceKey(ulid, position);
     }
 
+    // decode the position segment of an encoded key in either key format
+    static String decodePosition(ByteBuffer keyBuffer, int offset, int positionSegmentLength) {
+        int tag = keyBuffer.get(offset) & 0xFF;
+        if (tag == NUMERIC_POSITION) {
+            return Long.toString(keyBuffer.getLong(offset + 1));
+        }
+        if (tag == STRING_POSITION) {
+            // skip escape bytes and the terminator
+            byte[] positionBytes = new byte[positionSegmentLength - 3];
+            int length = 0;
+            for (int i = offset + 1; i < offset + positionSegmentLength - 2; i++) {
+                byte b = keyBuffer.get(i);
+                positionBytes[length++] = b;
+                if (b == 0) {
+                    i++;
+                }
+            }
+            return new String(positionBytes, 0, length, UTF_8);
+        }
+        // legacy key format: [length][position bytes]
+        byte[] positionBytes = new byte[positionSegmentLength - 1];
+        keyBuffer.get(offset + 1, positionBytes);
+        return new String(positionBytes, UTF_8);
+    }
+
+    /**
+     * A position is stored as a big-endian long if it is the canonical decimal form of a non-negative long, i.e.
+     * digits only and no leading zero. Distinct positions such as "7" and "007" never map to the same number.
+     *
+     * @return the position or -1 if the position is not numeric
+     */
+    public static long numericPosition(String position) {
+        int length = position.length();
+        if (length == 0 || length > MAX_NUMERIC_POSITION.length() || (length > 1 && position.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = position.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        // digit strings of equal length compare as numbers
+        if (length == MAX_NUMERIC_POSITION.length() && position.compareTo(MAX_NUMERIC_POSITION) > 0) {
+            return -1;
+        }
+        return Long.parseLong(position);
+    }
+
+    /**
+     * Encode the position segment, which sorts before all keys of the position and is the start key of a range scan
+     *
+     * @throws IllegalArgumentException if the encoded position does not fit in the allocated buffer
+     */
+    public static ByteBuffer encodePosition(String position, ByteBuffer allocatedBuffer) {
+        Objects.requireNonNull(allocatedBuffer);
+        writePosition(position, allocatedBuffer, 0);
+        return allocatedBuffer.flip();
+    }
+
+    /**
+     * Encode the key prefix that is shared by all string positions starting with a position prefix. Returns null if
+     * canonical numeric positions may start with the prefix, because those are not a contiguous key range.
+     */
+    public static ByteBuffer encodeStringPositionPrefix(String prefix, ByteBuffer allocatedBuffer) {
+        Objects.requireNonNull(allocatedBuffer);
+        if (prefix.isEmpty() || prefix.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return null;
+        }
+        writePosition(prefix, allocatedBuffer, 0);
+        // remove the terminator
+        allocatedBuffer.position(allocatedBuffer.position() - 2);
+        return allocatedBuffer.flip();
+    }
+
+    private static void writePosition(String position, ByteBuffer allocatedBuffer, int reservedBytes) {
+        long numericPosition = numericPosition(position);
+        if (numericPosition >= 0) {
+            checkKeySize(position, 1 + Long.BYTES + reservedBytes, allocatedBuffer);
+            allocatedBuffer.put((byte) NUMERIC_POSITION);
+            allocatedBuffer.putLong(numericPosition);
+            return;
+        }
+        checkKeySize(position, 1 + escapedUtf8Length(position) + 2 + reservedBytes, allocatedBuffer);
+        allocatedBuffer.put((byte) STRING_POSITION);
+        putEscapedUtf8(position, allocatedBuffer);
+        allocatedBuffer.put((byte) 0x00);
+        allocatedBuffer.put((byte) 0x01);
+    }
+
+    // utf-8 length where 0x00 is escaped as 0x00 0xFF. An unpaired surrogate is encoded as '?' like String.getBytes
+    static int escapedUtf8Length(String position) {
+        int length = 0;
+        for (int i = 0; i < position.length(); i++) {
+            char c = position.charAt(i);
+            if (c == 0) {
+                length += 2;
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(position, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // write utf-8 directly to the buffer, which saves the byte array of String.getBytes for every key
+    static void putEscapedUtf8(String position, ByteBuffer allocatedBuffer) {
+        for (int i = 0; i < position.length(); i++) {
+            char c = position.charAt(i);
+            if (c == 0) {
+                allocatedBuffer.put((byte) 0x00);
+                allocatedBuffer.put((byte) 0xFF);
+            } else if (c < 0x80) {
+                allocatedBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                allocatedBuffer.put((byte) (0xC0 | (c >> 6)));
+                allocatedBuffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (isSurrogatePair(position, i)) {
+                int codePoint = Character.toCodePoint(c, position.charAt(++i));
+                allocatedBuffer.put((byte) (0xF0 | (codePoint >> 18)));
+                allocatedBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                allocatedBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                allocatedBuffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                allocatedBuffer.put((byte) '?');
+            } else {
+                allocatedBuffer.put((byte) (0xE0 | (c >> 12)));
+                allocatedBuffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                allocatedBuffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static boolean isSurrogatePair(String position, int index) {
+        return Character.isHighSurrogate(position.charAt(index)) && index + 1 < position.length() &&
+                Character.isLowSurrogate(position.charAt(index + 1));
+    }
+
+    private static void checkKeySize(String position, int keyLength, ByteBuffer allocatedBuffer) {
+        if (keyLength > allocatedBuffer.remaining()) {
+            throw new IllegalArgumentException(String.format("Position exceeds max key size of %s bytes: %s", allocatedBuffer.remaining(), position));
+        }
+    }
+
+    /**
+     * Key format: [position segment][ulid msb][ulid lsb]. The position segment is either a numeric position
+     * [0x81][big-endian long] or a string position [0x82][utf-8 bytes where 0x00 is escaped as 0x00 0xFF][0x00 0x01].
+     * Both are order preserving and prefix free, so Lmdb sorts keys by position and then by ulid. Legacy keys
+     * start with a length byte below 0x80 and are still decoded.
+     *
+     * @throws IllegalArgumentException if the key does not fit in the allocated buffer, i.e. exceeds the max key size
+     */
     public ByteBuffer toByteBuffer(ByteBuffer allocatedBuffer) {
+        return encode(ulid, position, allocatedBuffer);
+    }
+
+    /**
+     * Encode a key without creating a SequenceKey, see {@link #toByteBuffer(ByteBuffer)}
+     */
+    public static ByteBuffer encode(ULID.Value ulid, String position, ByteBuffer allocatedBuffer) {
         Objects.requireNonNull(allocatedBuffer);
-        byte[] key = position.getBytes(UTF_8);
-        allocatedBuffer.put((byte) key.length);
-        allocatedBuffer.put(key);
+        writePosition(position, allocatedBuffer, ULID_LENGTH);
         allocatedBuffer.putLong(ulid.getMostSignificantBits());
         allocatedBuffer.putLong(ulid.getLeastSignificantBits());
         return allocatedBuffer.flip();
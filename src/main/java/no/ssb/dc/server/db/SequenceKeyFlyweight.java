@@ -0,0 +1,166 @@
+package no.ssb.dc.server.db;
+
+import de.huxhorn.sulky.ulid.ULID;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A reusable view over an encoded SequenceKey. The view wraps the key buffer returned by an Lmdb cursor and
+ * reads position and ulid without copying, so a full index scan does not allocate per entry.
+ * <p>
+ * The encoded key is laid out as a position segment followed by a fixed length ulid, which makes it possible to
+ * compare positions byte-for-byte without decoding them.
+ * <p>
+ * The wrapped buffer is only valid until the cursor moves. Use copyFrom() to keep a key across cursor moves.
+ */
+public class SequenceKeyFlyweight {
+
+    static final int ULID_LENGTH = SequenceKey.ULID_LENGTH;
+
+    private final byte[] ownedBytes;
+    private final ByteBuffer ownedBuffer;
+    private ByteBuffer keyBuffer;
+    private int offset;
+    private int length;
+
+    /**
+     * Create a view that can only wrap buffers
+     */
+    public SequenceKeyFlyweight() {
+        this.ownedBytes = null;
+        this.ownedBuffer = null;
+    }
+
+    /**
+     * Create a view that is able to hold a copy of a key
+     *
+     * @param maxKeySize the max key size of the Lmdb environment
+     */
+    public SequenceKeyFlyweight(int maxKeySize) {
+        this.ownedBytes = new byte[maxKeySize];
+        this.ownedBuffer = ByteBuffer.wrap(ownedBytes);
+    }
+
+    public SequenceKeyFlyweight wrap(ByteBuffer keyBuffer) {
+        Objects.requireNonNull(keyBuffer);
+        this.keyBuffer = keyBuffer;
+        this.offset = keyBuffer.position();
+        this.length = keyBuffer.remaining();
+        return this;
+    }
+
+    /**
+     * Copy the key bytes of other into this view. The view stays valid after the cursor of other has moved.
+     */
+    public SequenceKeyFlyweight copyFrom(SequenceKeyFlyweight other) {
+        if (ownedBytes == null) {
+            throw new IllegalStateException("Flyweight is not able to hold a copy of a key!");
+        }
+        other.keyBuffer.get(other.offset, ownedBytes, 0, other.length);
+        this.keyBuffer = ownedBuffer;
+        this.offset = 0;
+        this.length = other.length;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return keyBuffer == null;
+    }
+
+    public void clear() {
+        keyBuffer = null;
+        offset = 0;
+        length = 0;
+    }
+
+    int positionSegmentLength() {
+        return length - ULID_LENGTH;
+    }
+
+    public boolean positionEquals(SequenceKeyFlyweight other) {
+        int segmentLength = positionSegmentLength();
+        if (segmentLength != other.positionSegmentLength()) {
+            return false;
+        }
+        for (int i = 0; i < segmentLength; i++) {
+            if (keyBuffer.get(offset + i) != other.keyBuffer.get(other.offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare position segments in the same order as Lmdb sorts keys, i.e. unsigned bytes and a shorter segment
+     * before a longer segment with the same prefix
+     */
+    public int comparePosition(SequenceKeyFlyweight other) {
+        int segmentLength = positionSegmentLength();
+        int otherSegmentLength = other.positionSegmentLength();
+        int commonLength = Math.min(segmentLength, otherSegmentLength);
+        for (int i = 0; i < commonLength; i++) {
+            int cmp = Byte.compareUnsigned(keyBuffer.get(offset + i), other.keyBuffer.get(other.offset + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(segmentLength, otherSegmentLength);
+    }
+
+    /**
+     * Copy the position segment, i.e. the key without the ulid, into the allocated buffer
+     */
+    public ByteBuffer copyPositionSegment(ByteBuffer allocatedBuffer) {
+        Objects.requireNonNull(allocatedBuffer);
+        int segmentLength = positionSegmentLength();
+        allocatedBuffer.clear();
+        for (int i = 0; i < segmentLength; i++) {
+            allocatedBuffer.put(keyBuffer.get(offset + i));
+        }
+        return allocatedBuffer.flip();
+    }
+
+    public long ulidMostSignificantBits() {
+        return keyBuffer.getLong(offset + positionSegmentLength());
+    }
+
+    public long ulidLeastSignificantBits() {
+        return keyBuffer.getLong(offset + positionSegmentLength() + Long.BYTES);
+    }
+
+    /**
+     * Compare ulids without materializing them
+     */
+    public int compareUlid(SequenceKeyFlyweight other) {
+        int cmp = Long.compare(ulidMostSignificantBits(), other.ulidMostSignificantBits());
+        return cmp != 0 ? cmp : Long.compareUnsigned(ulidLeastSignificantBits(), other.ulidLeastSignificantBits());
+    }
+
+    /**
+     * The wrapped key
+     */
+    public ByteBuffer buffer() {
+        return keyBuffer.duplicate().position(offset).limit(offset + length);
+    }
+
+    public ULID.Value ulid() {
+        return new ULID.Value(ulidMostSignificantBits(), ulidLeastSignificantBits());
+    }
+
+    public String position() {
+        return SequenceKey.decodePosition(keyBuffer, offset, positionSegmentLength());
+    }
+
+    public SequenceKey toSequenceKey() {
+        return new SequenceKey(ulid(), position());
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "SequenceKeyFlyweight{}" : "SequenceKeyFlyweight{" +
+                "ulid=" + ulid() +
+                ", position='" + position() + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,198 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.dc.api.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A single writer thread that commits elements in batches. Producers hand elements over to a bounded queue and are
+ * blocked when the queue is full. A batch is committed when it reaches batchSize or when the oldest element in the
+ * batch has waited for commitIntervalInMillis. Every element is released after its batch has been committed, also
+ * when the commit failed. A failed commit or an interrupted writer fails every later write and flush.
+ */
+class BatchWriter<T> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriter.class);
+
+    private static final Object FLUSH_MARKER = new Object();
+    private static final Object CLOSE_MARKER = new Object();
+
+    private final int batchSize;
+    private final long commitIntervalInMillis;
+    private final Consumer<List<T>> committer;
+    private final Consumer<T> releaser;
+    private final BlockingQueue<Object> writeQueue;
+    private final Thread writerThread;
+    private final AtomicReference<Throwable> writerError = new AtomicReference<>();
+    private final AtomicLong flushRequests = new AtomicLong();
+    private final AtomicLong completedFlushes = new AtomicLong();
+    private final Lock flushLock = new ReentrantLock();
+    private final Condition flushCompleted = flushLock.newCondition();
+
+    BatchWriter(String name, int batchSize, long commitIntervalInMillis, Consumer<List<T>> committer, Consumer<T> releaser) {
+        this.batchSize = batchSize;
+        this.commitIntervalInMillis = commitIntervalInMillis;
+        this.committer = committer;
+        this.releaser = releaser;
+        this.writeQueue = new ArrayBlockingQueue<>(batchSize);
+        this.writerThread = new Thread(this::writeLoop, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Hand an element over to the writer thread. Blocks until the writer has made room in the queue.
+     *
+     * @throws IllegalStateException if a previous commit failed or the writer was interrupted
+     */
+    void write(T element) {
+        checkWriterError();
+        enqueue(element);
+    }
+
+    /**
+     * Wait until all elements that have been written by the calling thread are committed
+     */
+    void flush() {
+        checkWriterError();
+        if (!writerThread.isAlive()) {
+            return;
+        }
+        long flushRequest = flushRequests.incrementAndGet();
+        enqueue(FLUSH_MARKER);
+        flushLock.lock();
+        try {
+            while (completedFlushes.get() < flushRequest && writerError.get() == null) {
+                flushCompleted.await(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            flushLock.unlock();
+        }
+        checkWriterError();
+    }
+
+    private void enqueue(Object element) {
+        try {
+            writeQueue.put(element);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void checkWriterError() {
+        Throwable throwable = writerError.get();
+        if (throwable != null) {
+            throw new IllegalStateException("Integrity check index writer failed!", throwable);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeLoop() {
+        List<T> batch = new ArrayList<>(batchSize);
+        long commitDeadline = 0;
+        while (true) {
+            Object element;
+            try {
+                element = batch.isEmpty() ?
+                        writeQueue.take() :
+                        writeQueue.poll(Math.max(0, commitDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // fail like a commit error and keep draining the queue until close, so producers are never blocked
+                LOG.warn("Integrity check index writer was interrupted!");
+                writerError.compareAndSet(null, e);
+                wakeUpFlushWaiters();
+                continue;
+            }
+
+            if (element == CLOSE_MARKER) {
+                commitAndRelease(batch);
+                return;
+            }
+
+            if (element == FLUSH_MARKER) {
+                commitAndRelease(batch);
+                signalFlushCompleted();
+                continue;
+            }
+
+            if (element != null) {
+                if (batch.isEmpty()) {
+                    commitDeadline = System.currentTimeMillis() + commitIntervalInMillis;
+                }
+                batch.add((T) element);
+            }
+
+            if (batch.size() >= batchSize || (!batch.isEmpty() && System.currentTimeMillis() >= commitDeadline)) {
+                commitAndRelease(batch);
+            }
+        }
+    }
+
+    private void commitAndRelease(List<T> batch) {
+        Throwable commitError = null;
+        try {
+            if (!batch.isEmpty() && writerError.get() == null) {
+                committer.accept(batch);
+            }
+        } catch (RuntimeException | Error e) {
+            // keep draining the queue so producers are never blocked by a failed writer
+            LOG.error("Integrity check index commit error: {}", CommonUtils.captureStackTrace(e));
+            commitError = e;
+        } finally {
+            for (T committedElement : batch) {
+                releaser.accept(committedElement);
+            }
+            batch.clear();
+        }
+        // publish the error after release, so a failed flush sees the batch released
+        if (commitError != null) {
+            writerError.compareAndSet(null, commitError);
+            wakeUpFlushWaiters();
+        }
+    }
+
+    private void signalFlushCompleted() {
+        completedFlushes.incrementAndGet();
+        wakeUpFlushWaiters();
+    }
+
+    private void wakeUpFlushWaiters() {
+        flushLock.lock();
+        try {
+            flushCompleted.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Commit the queued elements and stop the writer thread
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            enqueue(CLOSE_MARKER);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package no.ssb.dc.server.integrity;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.content.ContentStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fast duplicate scan. Positions are streamed through a counting Bloom filter with a fixed memory budget, and a
+ * position that might have been seen before is a suspected duplicate. A second pass collects the ulids of the
+ * suspected positions only, which confirms the duplicates and tells the false positives apart.
+ */
+class BloomFilterConsumeStrategy implements IntegrityCheckJob.ConsumeStrategy {
+    private static final Logger LOG = LoggerFactory.getLogger(BloomFilterConsumeStrategy.class);
+
+    private final IntegrityCheckJob job;
+
+    BloomFilterConsumeStrategy(IntegrityCheckJob job) {
+        this.job = job;
+    }
+
+    @Override
+    public void consume(String topic) throws Exception {
+        IntegrityCheckJobSummary summary = job.summary;
+        summary.setMode("BLOOM");
+        long memoryInMb = job.configuration.evaluateToString("data.collector.integrityCheck.bloom.memoryInMb") != null ?
+                job.configuration.evaluateToInt("data.collector.integrityCheck.bloom.memoryInMb") : 64;
+        long expectedPositions = job.configuration.evaluateToString("data.collector.integrityCheck.bloom.expectedPositions") != null ?
+                Long.parseLong(job.configuration.evaluateToString("data.collector.integrityCheck.bloom.expectedPositions")) : 10_000_000;
+        int maxSuspectedPositions = job.configuration.evaluateToString("data.collector.integrityCheck.bloom.maxSuspectedPositions") != null ?
+                job.configuration.evaluateToInt("data.collector.integrityCheck.bloom.maxSuspectedPositions") : 1_000_000;
+        CountingBloomFilter filter = CountingBloomFilter.create(memoryInMb * 1024 * 1024, expectedPositions);
+        IntegrityCheckJobSummary.BloomFilterProgress progress = summary.setBloomFilter(filter);
+        LOG.info("Check integrity for topic: {} using a Bloom filter of {} bytes and {} hash functions", topic, filter.memoryInBytes(), filter.numberOfHashFunctions());
+
+        summary.setLastPosition(job.contentStore.lastPosition(topic));
+        ContentStream contentStream = job.contentStore.contentStream();
+        Set<String> suspectedPositions = new HashSet<>();
+        Map<String, SortedSet<ULID.Value>> duplicates = new TreeMap<>();
+        ULID.Value lastUlid = job.lastUlid(contentStream, topic);
+        AtomicReference<ULID.Value> endUlid = new AtomicReference<>();
+        try {
+            job.consumeStream(topic, contentStream.consumer(topic), lastUlid, buffer -> {
+                String position = buffer.position();
+                endUlid.set(buffer.ulid());
+                if (filter.add(position) > 1 && !suspectedPositions.contains(position)) {
+                    if (suspectedPositions.size() < maxSuspectedPositions) {
+                        suspectedPositions.add(position);
+                        progress.incrementSuspectedPositions();
+                    } else {
+                        progress.setSuspectedPositionsTruncated();
+                    }
+                }
+                if (filter.insertions() % 10000 == 0) {
+                    progress.setEstimatedFalsePositiveRate(filter.estimatedFalsePositiveRate());
+                }
+
+                // release data
+                buffer.data().clear();
+                buffer.manifest().clear();
+                return true;
+            });
+        } finally {
+            contentStream.closeAndRemoveConsumer(topic);
+        }
+        progress.setEstimatedFalsePositiveRate(filter.estimatedFalsePositiveRate());
+
+        if (!suspectedPositions.isEmpty() && !job.terminated.get()) {
+            LOG.info("Confirm {} suspected duplicate positions for topic: {}", suspectedPositions.size(), topic);
+            try {
+                job.receiveMessages(contentStream.consumer(topic), buffer -> {
+                    if (suspectedPositions.contains(buffer.position())) {
+                        duplicates.computeIfAbsent(buffer.position(), position -> new TreeSet<>()).add(buffer.ulid());
+                    }
+                    buffer.data().clear();
+                    buffer.manifest().clear();
+                    // the first pass ended at this message
+                    return !buffer.ulid().equals(endUlid.get());
+                });
+            } finally {
+                contentStream.closeAndRemoveConsumer(topic);
+            }
+            duplicates.values().removeIf(ulidSet -> ulidSet.size() < 2);
+        }
+
+        if (!job.terminated.get()) {
+            long duplicatePositions = duplicates.values().stream().mapToLong(Set::size).sum();
+            long distinctPositions = summary.getPositionCount() - duplicatePositions + duplicates.size();
+            progress.setFalsePositives(suspectedPositions.size() - duplicates.size(), distinctPositions);
+        }
+        writeReport(duplicates);
+        job.writeGapReport();
+    }
+
+    // write a duplicate report of confirmed duplicates
+    void writeReport(Map<String, SortedSet<ULID.Value>> duplicates) {
+        Path reportPath = job.index.getDatabaseDir().resolve("report");
+        String reportId = job.createDuplicateReportId();
+        LOG.info("Generating report to: {}/{}", reportPath, reportId);
+        long duplicatePositions = 0;
+        try (DuplicateReport.Writer writer = DuplicateReport.createWriter(job.options.getReportFormat(), reportPath, reportId)) {
+            for (Map.Entry<String, SortedSet<ULID.Value>> entry : duplicates.entrySet()) {
+                writer.write(entry.getKey(), entry.getValue());
+                duplicatePositions += entry.getValue().size();
+            }
+        }
+        job.summary.setReportPath(reportPath);
+        job.summary.setDuplicateReportId(reportId);
+        job.summary.setDuplicatePositionStats(duplicatePositions, duplicates.size());
+    }
+}
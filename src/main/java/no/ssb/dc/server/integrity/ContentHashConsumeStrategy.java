@@ -0,0 +1,180 @@
+package no.ssb.dc.server.integrity;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.content.ContentStream;
+import no.ssb.dc.api.content.ContentStreamBuffer;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Content hash check. Message data is hashed on a thread pool while the consumer keeps receiving, and the hashes
+ * are indexed by content and by position. Identical content under different positions is a payload duplicate, and
+ * a position that occurs with differing content is a content collision.
+ */
+class ContentHashConsumeStrategy implements IntegrityCheckJob.ConsumeStrategy {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentHashConsumeStrategy.class);
+
+    private final IntegrityCheckJob job;
+
+    ContentHashConsumeStrategy(IntegrityCheckJob job) {
+        this.job = job;
+    }
+
+    @Override
+    public void consume(String topic) throws Exception {
+        IntegrityCheckJobSummary summary = job.summary;
+        summary.setMode("CONTENT");
+        int hashThreads = job.configuration.evaluateToString("data.collector.integrityCheck.content.hashThreads") != null ?
+                job.configuration.evaluateToInt("data.collector.integrityCheck.content.hashThreads") : Runtime.getRuntime().availableProcessors();
+        IntegrityCheckJobSummary.ContentHashProgress progress = summary.setContentHash(hashThreads);
+        LOG.info("Check content integrity for topic: {} using {} hash threads", topic, hashThreads);
+
+        summary.setLastPosition(job.contentStore.lastPosition(topic));
+        ContentStream contentStream = job.contentStore.contentStream();
+        // bounds the number of received messages that are held in memory until they have been hashed
+        Semaphore pendingMessages = new Semaphore(hashThreads * 64);
+        AtomicReference<Throwable> hashError = new AtomicReference<>();
+        try (ContentHashIndex contentHashIndex = new ContentHashIndex(job.configuration, job.index.lmdbEnvironment())) {
+            ExecutorService hashExecutor = Executors.newFixedThreadPool(hashThreads, new HashThreadFactory(topic));
+            try {
+                ULID.Value lastUlid = job.lastUlid(contentStream, topic);
+                job.consumeStream(topic, contentStream.consumer(topic), lastUlid, buffer -> {
+                    pendingMessages.acquire();
+                    hashExecutor.execute(() -> hash(contentHashIndex, buffer, progress, hashError, pendingMessages));
+                    return hashError.get() == null;
+                });
+            } finally {
+                hashExecutor.shutdown();
+                hashExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                contentStream.closeAndRemoveConsumer(topic);
+            }
+            if (hashError.get() != null) {
+                throw new RuntimeException("Content hashing failed for topic: " + topic, hashError.get());
+            }
+
+            // commit pending hashes before the index is read
+            contentHashIndex.flush();
+            writeContentReport(contentHashIndex, progress);
+            job.writeGapReport();
+        }
+    }
+
+    void hash(ContentHashIndex contentHashIndex, ContentStreamBuffer buffer, IntegrityCheckJobSummary.ContentHashProgress progress,
+              AtomicReference<Throwable> hashError, Semaphore pendingMessages) {
+        try {
+            long[] hash = new long[2];
+            long length = ContentHashIndex.contentHash(buffer, hash);
+            contentHashIndex.write(buffer.ulid(), buffer.position(), hash[0], hash[1]);
+            progress.incrementHashedMessages(length);
+        } catch (RuntimeException | Error e) {
+            hashError.compareAndSet(null, e);
+        } finally {
+            // release data
+            buffer.data().clear();
+            buffer.manifest().clear();
+            pendingMessages.release();
+        }
+    }
+
+    // write payload duplicates, position duplicates and content collisions in json format
+    void writeContentReport(ContentHashIndex contentHashIndex, IntegrityCheckJobSummary.ContentHashProgress progress) {
+        Path reportPath = job.index.getDatabaseDir().resolve("report");
+        String reportId = ULIDGenerator.toUUID(ULIDGenerator.generate()).toString() + ".json";
+        LOG.info("Generating content report to: {}/{}", reportPath, reportId);
+
+        AtomicLong payloadDuplicates = new AtomicLong();
+        AtomicLong payloadDuplicatePositions = new AtomicLong();
+        AtomicLong duplicatePositions = new AtomicLong();
+        AtomicLong affectedPositions = new AtomicLong();
+        AtomicLong contentCollisions = new AtomicLong();
+
+        try (JsonArrayWriter writer = new JsonArrayWriter(reportPath, reportId, 5000)) {
+            contentHashIndex.readContentGroups(group -> {
+                long distinctPositions = group.distinctPositions();
+                // identical content under the same position is a position duplicate
+                if (distinctPositions < 2) {
+                    return true;
+                }
+                // a group may be large, so its members are streamed to the report
+                writer.write(generator -> {
+                    generator.writeStartObject();
+                    generator.writeStringField("type", "PAYLOAD_DUPLICATE");
+                    generator.writeStringField("hash", group.hash());
+                    generator.writeArrayFieldStart("sequences");
+                    group.forEachSequenceKey(sequenceKey -> {
+                        try {
+                            generator.writeStartObject();
+                            generator.writeStringField("position", sequenceKey.position());
+                            generator.writeStringField("ulid", ULIDGenerator.toUUID(sequenceKey.ulid()).toString());
+                            generator.writeEndObject();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                });
+                payloadDuplicates.incrementAndGet();
+                payloadDuplicatePositions.addAndGet(distinctPositions);
+                return true;
+            });
+
+            contentHashIndex.readPositionGroups(group -> {
+                boolean collision = group.hasDifferingContent();
+                ObjectNode groupNode = writer.parser().createObjectNode();
+                groupNode.put("type", collision ? "CONTENT_COLLISION" : "POSITION_DUPLICATE");
+                groupNode.put("position", group.position());
+                ArrayNode sequenceArray = groupNode.putArray("sequences");
+                for (int i = 0; i < group.ulids().size(); i++) {
+                    sequenceArray.addObject()
+                            .put("ulid", ULIDGenerator.toUUID(group.ulids().get(i)).toString())
+                            .put("hash", group.hash(i));
+                }
+                writer.write(groupNode);
+                duplicatePositions.addAndGet(group.ulids().size());
+                affectedPositions.incrementAndGet();
+                if (collision) {
+                    contentCollisions.incrementAndGet();
+                }
+                return true;
+            });
+        }
+
+        job.summary.setReportPath(reportPath);
+        job.summary.setDuplicateReportId(reportId);
+        job.summary.setDuplicatePositionStats(duplicatePositions.get(), affectedPositions.get());
+        progress.setPayloadDuplicateStats(payloadDuplicates.get(), payloadDuplicatePositions.get());
+        progress.setContentCollisions(contentCollisions.get());
+        LOG.info("Done generating content report");
+    }
+
+    static class HashThreadFactory implements ThreadFactory {
+        private final String topic;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        HashThreadFactory(String topic) {
+            this.topic = topic;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "integrity-check-hash-" + topic + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package no.ssb.dc.server.integrity;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.api.content.ContentStreamBuffer;
+import no.ssb.dc.server.db.DirectByteBufferSlab;
+import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.SequenceKey;
+import no.ssb.dc.server.db.SequenceKeyFlyweight;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index of content hashes. The content database maps [hash][sequence key] and the sequence content database maps
+ * [sequence key] to [hash], so a cursor scan groups sequences by content or by position respectively.
+ * <p>
+ * Hashes are computed by the caller, typically on a thread pool, and handed over to a batch writer. A content key
+ * holds the hash in front of the sequence key, so a position must fit in the max key size less the hash length.
+ */
+public class ContentHashIndex implements AutoCloseable {
+
+    static final int HASH_LENGTH = 2 * Long.BYTES;
+    private static final ByteBuffer EMPTY_VALUE = ByteBuffer.allocateDirect(0);
+
+    private final LmdbEnvironment lmdbEnvironment;
+    private final Dbi<ByteBuffer> contentDb;
+    private final Dbi<ByteBuffer> sequenceContentDb;
+    private final DirectByteBufferSlab contentKeyBufferSlab;
+    private final ByteBuffer sequenceKeyBuffer;
+    private final ByteBuffer hashBuffer;
+    private final BatchWriter<ByteBuffer> writer;
+
+    public ContentHashIndex(DynamicConfiguration configuration, LmdbEnvironment lmdbEnvironment) {
+        this.lmdbEnvironment = lmdbEnvironment;
+        int batchSize = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.writer.batchSize") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.writer.batchSize") : IntegrityCheckIndex.DEFAULT_BATCH_SIZE;
+        long commitIntervalInMillis = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.writer.commitIntervalInMillis") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.writer.commitIntervalInMillis") : IntegrityCheckIndex.DEFAULT_COMMIT_INTERVAL_IN_MILLIS;
+        this.contentDb = lmdbEnvironment.open("content");
+        this.sequenceContentDb = lmdbEnvironment.open("sequence-content");
+        // content key buffers are held by the queue, by the batch being committed and by the hash threads
+        this.contentKeyBufferSlab = new DirectByteBufferSlab(2 * batchSize + 1, lmdbEnvironment.maxKeySize());
+        this.sequenceKeyBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize() - HASH_LENGTH);
+        this.hashBuffer = ByteBuffer.allocateDirect(HASH_LENGTH);
+        this.writer = new BatchWriter<>("content-hash-writer-" + lmdbEnvironment.getDatabaseDir().getFileName(),
+                batchSize, commitIntervalInMillis, this::commitBatch, contentKeyBufferSlab::release);
+    }
+
+    /**
+     * Hash the data entries of a buffer in key order. An entry is hashed as its key, a zero byte, its length and
+     * its data, so entries cannot be confused with each other.
+     *
+     * @param hash receives h1 and h2
+     */
+    public static long contentHash(ContentStreamBuffer buffer, long[] hash) {
+        Map<String, byte[]> entries = new TreeMap<>(buffer.data());
+        int length = 0;
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            keys.add(key);
+            length += key.length + 1 + Integer.BYTES + entry.getValue().length;
+        }
+        ByteBuffer content = ByteBuffer.allocate(length);
+        int i = 0;
+        for (byte[] data : entries.values()) {
+            content.put(keys.get(i++)).put((byte) 0).putInt(data.length).put(data);
+        }
+        MurmurHash3.hash128(content.array(), 0, length, 0, hash);
+        return length;
+    }
+
+    public static String hashToString(long h1, long h2) {
+        return String.format("%016x%016x", h1, h2);
+    }
+
+    /**
+     * Queue a hashed sequence for writing. Blocks when the writer is behind.
+     *
+     * @throws IllegalArgumentException if the position does not fit in a content key
+     */
+    public void write(ULID.Value ulid, String position, long h1, long h2) {
+        writer.checkWriterError();
+        ByteBuffer contentKeyBuffer = contentKeyBufferSlab.acquire();
+        try {
+            contentKeyBuffer.putLong(h1).putLong(h2);
+            SequenceKey.encode(ulid, position, contentKeyBuffer);
+        } catch (RuntimeException e) {
+            contentKeyBufferSlab.release(contentKeyBuffer);
+            throw e;
+        }
+        writer.write(contentKeyBuffer);
+    }
+
+    /**
+     * Wait until all hashed sequences that have been written are committed
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    // retry the whole batch in a new transaction if the map is full, because the failed transaction is aborted
+    private void commitBatch(List<ByteBuffer> batch) {
+        while (true) {
+            try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnWrite()) {
+                for (ByteBuffer contentKeyBuffer : batch) {
+                    // Lmdb reads a buffer from position 0, so the parts of the content key are copied out
+                    hashBuffer.clear();
+                    hashBuffer.put(contentKeyBuffer.duplicate().limit(HASH_LENGTH)).flip();
+                    sequenceKeyBuffer.clear();
+                    sequenceKeyBuffer.put(contentKeyBuffer.duplicate().position(HASH_LENGTH)).flip();
+                    sequenceContentDb.put(txn, sequenceKeyBuffer, hashBuffer);
+                    contentDb.put(txn, contentKeyBuffer, EMPTY_VALUE);
+                }
+                txn.commit();
+                break;
+            } catch (Env.MapFullException e) {
+                lmdbEnvironment.growMapSize();
+            }
+        }
+        lmdbEnvironment.growMapSizeAhead();
+    }
+
+    /**
+     * Visit sequences that share the same content hash. A group counts its members in a single pass and streams them
+     * on request, so a group is never held in memory.
+     *
+     * @param visit return false to cancel iteration
+     */
+    public void readContentGroups(Predicate<ContentGroup> visit) {
+        SequenceKeyFlyweight sequenceKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight previousKey = new SequenceKeyFlyweight(lmdbEnvironment.maxKeySize());
+        ByteBuffer firstContentKey = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = contentDb.openCursor(txn); Cursor<ByteBuffer> memberCursor = contentDb.openCursor(txn)) {
+                boolean found = cursor.first();
+                while (found) {
+                    ByteBuffer key = cursor.key();
+                    long h1 = key.getLong(key.position());
+                    long h2 = key.getLong(key.position() + Long.BYTES);
+                    firstContentKey.clear();
+                    firstContentKey.put(key.duplicate()).flip();
+                    long size = 0;
+                    long distinctPositions = 0;
+                    do {
+                        // members are ordered by sequence key, so occurrences of a position are adjacent
+                        sequenceKey.wrap(cursor.key().position(cursor.key().position() + HASH_LENGTH));
+                        if (size == 0 || !previousKey.positionEquals(sequenceKey)) {
+                            distinctPositions++;
+                            previousKey.copyFrom(sequenceKey);
+                        }
+                        size++;
+                        found = cursor.next();
+                    } while (found && hashEquals(cursor.key(), h1, h2));
+
+                    if (size > 1 && !visit.test(new ContentGroup(h1, h2, size, distinctPositions, memberCursor, firstContentKey))) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit positions that occur more than once, together with the content hash of every occurrence
+     *
+     * @param visit return false to cancel iteration
+     */
+    public void readPositionGroups(Predicate<PositionGroup> visit) {
+        SequenceKeyFlyweight currentKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight firstKeyOfPosition = new SequenceKeyFlyweight(lmdbEnvironment.maxKeySize());
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            try (Cursor<ByteBuffer> cursor = sequenceContentDb.openCursor(txn)) {
+                boolean found = cursor.first();
+                while (found) {
+                    firstKeyOfPosition.copyFrom(currentKey.wrap(cursor.key()));
+                    List<ULID.Value> ulids = new ArrayList<>();
+                    List<long[]> hashes = new ArrayList<>();
+                    do {
+                        ByteBuffer value = cursor.val();
+                        ulids.add(currentKey.ulid());
+                        hashes.add(new long[]{value.getLong(value.position()), value.getLong(value.position() + Long.BYTES)});
+                        found = cursor.next();
+                    } while (found && firstKeyOfPosition.positionEquals(currentKey.wrap(cursor.key())));
+
+                    if (ulids.size() > 1 && !visit.test(new PositionGroup(firstKeyOfPosition.position(), ulids, hashes))) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean hashEquals(ByteBuffer key, long h1, long h2) {
+        return key.getLong(key.position()) == h1 && key.getLong(key.position() + Long.BYTES) == h2;
+    }
+
+    /**
+     * Commit the queued hashed sequences and stop the writer
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * Sequences with identical content, ordered by position. A group is only valid while it is visited.
+     */
+    public static class ContentGroup {
+        private final long h1;
+        private final long h2;
+        private final long size;
+        private final long distinctPositions;
+        private final Cursor<ByteBuffer> memberCursor;
+        private final ByteBuffer firstContentKey;
+
+        ContentGroup(long h1, long h2, long size, long distinctPositions, Cursor<ByteBuffer> memberCursor, ByteBuffer firstContentKey) {
+            this.h1 = h1;
+            this.h2 = h2;
+            this.size = size;
+            this.distinctPositions = distinctPositions;
+            this.memberCursor = memberCursor;
+            this.firstContentKey = firstContentKey;
+        }
+
+        public String hash() {
+            return hashToString(h1, h2);
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long distinctPositions() {
+            return distinctPositions;
+        }
+
+        /**
+         * Stream the members of this group. The flyweight is only valid during the call.
+         */
+        public void forEachSequenceKey(Consumer<SequenceKeyFlyweight> visit) {
+            SequenceKeyFlyweight sequenceKey = new SequenceKeyFlyweight();
+            boolean found = memberCursor.get(firstContentKey.duplicate(), GetOp.MDB_SET_KEY);
+            for (long n = 0; found && n < size; n++) {
+                visit.accept(sequenceKey.wrap(memberCursor.key().position(memberCursor.key().position() + HASH_LENGTH)));
+                found = memberCursor.next();
+            }
+        }
+    }
+
+    /**
+     * Occurrences of a position in ulid order, with the content hash of each occurrence
+     */
+    public static class PositionGroup {
+        private final String position;
+        private final List<ULID.Value> ulids;
+        private final List<long[]> hashes;
+
+        PositionGroup(String position, List<ULID.Value> ulids, List<long[]> hashes) {
+            this.position = position;
+            this.ulids = ulids;
+            this.hashes = hashes;
+        }
+
+        public String position() {
+            return position;
+        }
+
+        public List<ULID.Value> ulids() {
+            return ulids;
+        }
+
+        public String hash(int occurrence) {
+            long[] hash = hashes.get(occurrence);
+            return hashToString(hash[0], hash[1]);
+        }
+
+        public boolean hasDifferingContent() {
+            long[] first = hashes.get(0);
+            return hashes.stream().anyMatch(hash -> hash[0] != first[0] || hash[1] != first[1]);
+        }
+    }
+}
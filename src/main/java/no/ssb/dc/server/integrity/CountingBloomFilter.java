@@ -0,0 +1,118 @@
+package no.ssb.dc.server.integrity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counting Bloom filter with 4-bit saturating counters, two counters per byte, in a direct buffer outside the heap.
+ * Counter indexes are derived from the 128-bit MurmurHash3 of a value using double hashing: h1 + i * h2.
+ * <p>
+ * The filter is not thread safe.
+ */
+public class CountingBloomFilter {
+
+    static final int MAX_COUNT = 15;
+
+    private final ByteBuffer counters;
+    private final long numberOfCounters;
+    private final int numberOfHashFunctions;
+    private final long[] hash = new long[2];
+    private long nonZeroCounters;
+    private long insertions;
+
+    CountingBloomFilter(long numberOfCounters, int numberOfHashFunctions) {
+        if (numberOfCounters < 2 || (numberOfCounters + 1) / 2 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Illegal number of counters: " + numberOfCounters);
+        }
+        this.counters = ByteBuffer.allocateDirect((int) ((numberOfCounters + 1) / 2));
+        this.numberOfCounters = numberOfCounters;
+        this.numberOfHashFunctions = numberOfHashFunctions;
+    }
+
+    /**
+     * Create a filter that fits the memory budget, using the optimal number of hash functions for the expected
+     * number of insertions
+     */
+    public static CountingBloomFilter create(long memoryInBytes, long expectedInsertions) {
+        long numberOfCounters = Math.min(memoryInBytes, Integer.MAX_VALUE) * 2;
+        int numberOfHashFunctions = (int) Math.max(1, Math.min(16, Math.round((double) numberOfCounters / Math.max(1, expectedInsertions) * Math.log(2))));
+        return new CountingBloomFilter(numberOfCounters, numberOfHashFunctions);
+    }
+
+    public long memoryInBytes() {
+        return counters.capacity();
+    }
+
+    public long numberOfCounters() {
+        return numberOfCounters;
+    }
+
+    public int numberOfHashFunctions() {
+        return numberOfHashFunctions;
+    }
+
+    public long insertions() {
+        return insertions;
+    }
+
+    /**
+     * Add a value and return the estimated number of times it has been added, which is the lowest of its counters.
+     * A count above one means the value might have been added before.
+     */
+    public int add(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.hash128(bytes, 0, bytes.length, 0, hash);
+        return add(hash[0], hash[1]);
+    }
+
+    public int add(long h1, long h2) {
+        insertions++;
+        int minCount = MAX_COUNT;
+        for (int i = 0; i < numberOfHashFunctions; i++) {
+            long index = Math.floorMod(h1 + i * h2, numberOfCounters);
+            int count = increment(index);
+            minCount = Math.min(minCount, count);
+        }
+        return minCount;
+    }
+
+    public int count(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.hash128(bytes, 0, bytes.length, 0, hash);
+        int minCount = MAX_COUNT;
+        for (int i = 0; i < numberOfHashFunctions; i++) {
+            minCount = Math.min(minCount, get(Math.floorMod(hash[0] + i * hash[1], numberOfCounters)));
+        }
+        return minCount;
+    }
+
+    int get(long index) {
+        int b = counters.get((int) (index >>> 1));
+        return (index & 1) == 0 ? b & 0x0F : (b >>> 4) & 0x0F;
+    }
+
+    private int increment(long index) {
+        int offset = (int) (index >>> 1);
+        int b = counters.get(offset) & 0xFF;
+        boolean high = (index & 1) == 1;
+        int count = high ? b >>> 4 : b & 0x0F;
+        if (count == MAX_COUNT) {
+            return count;
+        }
+        if (count == 0) {
+            nonZeroCounters++;
+        }
+        count++;
+        b = high ? (b & 0x0F) | (count << 4) : (b & 0xF0) | count;
+        counters.put(offset, (byte) b);
+        return count;
+    }
+
+    /**
+     * Probability that a value that was never added is reported as added, estimated from the fraction of counters
+     * in use
+     */
+    public double estimatedFalsePositiveRate() {
+        return Math.pow((double) nonZeroCounters / numberOfCounters, numberOfHashFunctions);
+    }
+}
@@ -0,0 +1,111 @@
+package no.ssb.dc.server.integrity;
+
+/**
+ * Estimate the share of messages in a topic that belong to a duplicated position, from the duplicates found in a
+ * number of sampled windows.
+ * <p>
+ * The interval is a 95% Wilson score interval, which stays inside [0, 1] and is useful when few or no duplicates are
+ * found. Duplicates tend to cluster in time, so messages in a window are not independent. The variance between
+ * windows gives a design effect, and the interval is computed using the effective sample size, i.e. the number of
+ * sampled messages divided by the design effect.
+ * <p>
+ * The estimator is not thread safe.
+ */
+public class DuplicateRateEstimator {
+
+    static final double CONFIDENCE_LEVEL = 0.95;
+    static final double Z = 1.959963984540054;
+
+    private int windows;
+    private long messages;
+    private long duplicateMessages;
+    private long durationInMillis;
+    // sums used to compute the variance between windows
+    private double sumOfMessagesSquared;
+    private double sumOfDuplicatesSquared;
+    private double sumOfMessagesTimesDuplicates;
+
+    /**
+     * Add a sampled window. An empty window adds to the sampled duration, but not to the duplicate rate.
+     */
+    public void addWindow(long windowMessages, long windowDuplicateMessages, long windowDurationInMillis) {
+        durationInMillis += windowDurationInMillis;
+        if (windowMessages == 0) {
+            return;
+        }
+        windows++;
+        messages += windowMessages;
+        duplicateMessages += windowDuplicateMessages;
+        sumOfMessagesSquared += (double) windowMessages * windowMessages;
+        sumOfDuplicatesSquared += (double) windowDuplicateMessages * windowDuplicateMessages;
+        sumOfMessagesTimesDuplicates += (double) windowMessages * windowDuplicateMessages;
+    }
+
+    public int windows() {
+        return windows;
+    }
+
+    public long messages() {
+        return messages;
+    }
+
+    public long duplicateMessages() {
+        return duplicateMessages;
+    }
+
+    public double rate() {
+        return messages == 0 ? 0 : (double) duplicateMessages / messages;
+    }
+
+    /**
+     * The variance of the ratio estimate between windows relative to the variance of independent messages, and at
+     * least 1
+     */
+    public double designEffect() {
+        double rate = rate();
+        if (windows < 2 || rate == 0 || rate == 1) {
+            return 1;
+        }
+        // sum of (d - rate * n)^2 over the windows
+        double sumOfSquaredResiduals = sumOfDuplicatesSquared - 2 * rate * sumOfMessagesTimesDuplicates + rate * rate * sumOfMessagesSquared;
+        double meanMessages = (double) messages / windows;
+        double clusterVariance = Math.max(0, sumOfSquaredResiduals) / (windows - 1) / (windows * meanMessages * meanMessages);
+        double binomialVariance = rate * (1 - rate) / messages;
+        return Math.max(1, clusterVariance / binomialVariance);
+    }
+
+    public double effectiveMessages() {
+        return messages / designEffect();
+    }
+
+    public double lowerBound() {
+        return duplicateMessages == 0 ? 0 : Math.max(0, wilsonCenter() - wilsonHalfWidth());
+    }
+
+    public double upperBound() {
+        return messages == 0 || duplicateMessages == messages ? 1 : Math.min(1, wilsonCenter() + wilsonHalfWidth());
+    }
+
+    private double wilsonCenter() {
+        double n = effectiveMessages();
+        return (rate() + Z * Z / (2 * n)) / (1 + Z * Z / n);
+    }
+
+    private double wilsonHalfWidth() {
+        double n = effectiveMessages();
+        double rate = rate();
+        return Z / (1 + Z * Z / n) * Math.sqrt(rate * (1 - rate) / n + Z * Z / (4 * n * n));
+    }
+
+    /**
+     * Extrapolate the number of messages in a time range from the message density of the sampled windows
+     *
+     * @return estimated messages or null if the windows have no duration
+     */
+    public Long estimatedMessages(long timeRangeInMillis) {
+        if (durationInMillis == 0) {
+            return null;
+        }
+        return Math.round((double) messages / durationInMillis * timeRangeInMillis);
+    }
+}
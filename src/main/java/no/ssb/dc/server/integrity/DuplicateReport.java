@@ -0,0 +1,301 @@
+package no.ssb.dc.server.integrity;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Duplicate report formats. Every format is written as a stream, one position at a time:
+ * <ul>
+ * <li>json: a pretty printed array of {"POSITION": ["ULID", ...]} objects</li>
+ * <li>ndjson: one compact {"POSITION": ["ULID", ...]} object per line</li>
+ * <li>binary: the magic "DCDR" and a format version, followed by records of
+ * [int position length][utf-8 position][int ulid count][ulid msb, lsb]...</li>
+ * </ul>
+ * The format of a report file is given by its file extension.
+ * <p>
+ * A report generated after the scan has one entry per duplicate position with all of its ulids. A report written
+ * inline (index checks with inline duplicate detection, incremental checks and monitors) has one entry per detected
+ * occurrence instead: the second occurrence of a position carries the first and the second ulid, and every later
+ * occurrence carries only its own ulid. A reader that needs one entry per position must merge entries by position.
+ */
+public class DuplicateReport {
+
+    public static final String JSON_FORMAT = "json";
+    public static final String NDJSON_FORMAT = "ndjson";
+    public static final String BINARY_FORMAT = "binary";
+
+    static final int BINARY_MAGIC = 0x44434452; // DCDR
+    static final int BINARY_VERSION = 1;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private DuplicateReport() {
+    }
+
+    public static boolean isFormat(String format) {
+        return JSON_FORMAT.equals(format) || NDJSON_FORMAT.equals(format) || BINARY_FORMAT.equals(format);
+    }
+
+    public static String fileExtension(String format) {
+        return BINARY_FORMAT.equals(format) ? "bin" : format;
+    }
+
+    static String formatOf(Path reportFile) {
+        String filename = reportFile.getFileName().toString();
+        if (filename.endsWith(".ndjson")) {
+            return NDJSON_FORMAT;
+        }
+        return filename.endsWith(".bin") ? BINARY_FORMAT : JSON_FORMAT;
+    }
+
+    public static Writer createWriter(String format, Path reportPath, String reportId) {
+        try {
+            Files.createDirectories(reportPath);
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(reportPath.resolve(reportId)), 64 * 1024);
+            if (BINARY_FORMAT.equals(format)) {
+                return new BinaryWriter(out);
+            }
+            JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+            return NDJSON_FORMAT.equals(format) ? new NdjsonWriter(generator) : new JsonWriter(generator);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read a report in any format
+     *
+     * @return number of positions
+     */
+    public static long read(Path reportFile, BiConsumer<String, List<ULID.Value>> visit) {
+        try {
+            return BINARY_FORMAT.equals(formatOf(reportFile)) ? readBinary(reportFile, visit) : readJson(reportFile, visit);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // json and ndjson are both a sequence of single field objects, with or without an enclosing array
+    static long readJson(Path reportFile, BiConsumer<String, List<ULID.Value>> visit) throws IOException {
+        long count = 0;
+        try (com.fasterxml.jackson.core.JsonParser parser = JSON_FACTORY.createParser(reportFile.toFile())) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                token = parser.nextToken();
+            }
+            while (token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String position = parser.getCurrentName();
+                    List<ULID.Value> ulids = new ArrayList<>();
+                    parser.nextToken();
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        UUID uuid = UUID.fromString(parser.getText());
+                        ulids.add(new ULID.Value(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+                    }
+                    visit.accept(position, ulids);
+                    count++;
+                }
+                token = parser.nextToken();
+            }
+        }
+        return count;
+    }
+
+    static long readBinary(Path reportFile, BiConsumer<String, List<ULID.Value>> visit) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(reportFile), 64 * 1024))) {
+            if (in.readInt() != BINARY_MAGIC || in.readInt() != BINARY_VERSION) {
+                throw new IOException("Not a duplicate report: " + reportFile);
+            }
+            while (true) {
+                int positionLength;
+                try {
+                    positionLength = in.readInt();
+                } catch (EOFException e) {
+                    return count;
+                }
+                byte[] positionBytes = new byte[positionLength];
+                in.readFully(positionBytes);
+                int ulidCount = in.readInt();
+                List<ULID.Value> ulids = new ArrayList<>(ulidCount);
+                for (int i = 0; i < ulidCount; i++) {
+                    ulids.add(new ULID.Value(in.readLong(), in.readLong()));
+                }
+                visit.accept(new String(positionBytes, UTF_8), ulids);
+                count++;
+            }
+        }
+    }
+
+    // {"POSITION": ["ULID", ...]}
+    static void writeJsonEntry(JsonGenerator generator, String position, Collection<ULID.Value> ulids) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart(position);
+        for (ULID.Value ulid : ulids) {
+            generator.writeString(ULIDGenerator.toUUID(ulid).toString());
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    public interface Writer extends AutoCloseable {
+
+        void write(String position, Collection<ULID.Value> ulids);
+
+        /**
+         * Copy the positions of an existing report in any format into this report
+         *
+         * @return number of copied positions
+         */
+        default long writeAll(Path reportFile) {
+            return read(reportFile, this::write);
+        }
+
+        /**
+         * Make the positions written so far visible to readers of the report file
+         */
+        void flush();
+
+        @Override
+        void close();
+    }
+
+    static class JsonWriter implements Writer {
+        final JsonGenerator generator;
+
+        JsonWriter(JsonGenerator generator) throws IOException {
+            this.generator = generator;
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void write(String position, Collection<ULID.Value> ulids) {
+            try {
+                writeJsonEntry(generator, position, ulids);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                generator.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                generator.writeEndArray();
+                generator.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static class NdjsonWriter implements Writer {
+        final JsonGenerator generator;
+
+        NdjsonWriter(JsonGenerator generator) {
+            this.generator = generator;
+            generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void write(String position, Collection<ULID.Value> ulids) {
+            try {
+                writeJsonEntry(generator, position, ulids);
+                generator.writeRaw('\n');
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                generator.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                generator.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static class BinaryWriter implements Writer {
+        final DataOutputStream out;
+
+        BinaryWriter(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(BINARY_MAGIC);
+            this.out.writeInt(BINARY_VERSION);
+        }
+
+        @Override
+        public void write(String position, Collection<ULID.Value> ulids) {
+            try {
+                byte[] positionBytes = position.getBytes(UTF_8);
+                out.writeInt(positionBytes.length);
+                out.write(positionBytes);
+                out.writeInt(ulids.size());
+                for (ULID.Value ulid : ulids) {
+                    out.writeLong(ulid.getMostSignificantBits());
+                    out.writeLong(ulid.getLeastSignificantBits());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
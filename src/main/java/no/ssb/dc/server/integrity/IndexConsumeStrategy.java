@@ -0,0 +1,397 @@
+package no.ssb.dc.server.integrity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.content.ContentStream;
+import no.ssb.dc.api.content.ContentStreamBuffer;
+import no.ssb.dc.api.content.ContentStreamConsumer;
+import no.ssb.dc.server.db.SequenceKey;
+import no.ssb.dc.server.recovery.PositionAndULIDVersion;
+import no.ssb.rawdata.api.RawdataClient;
+import no.ssb.rawdata.api.RawdataClientInitializer;
+import no.ssb.rawdata.api.RawdataConsumer;
+import no.ssb.rawdata.api.RawdataMessage;
+import no.ssb.service.provider.api.ProviderConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full, incremental and monitor checks. Every position is written to the sequence index, which detects the
+ * duplicates. The ulid time range of the topic may be split into slices that are consumed in parallel.
+ */
+class IndexConsumeStrategy implements IntegrityCheckJob.ConsumeStrategy {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexConsumeStrategy.class);
+
+    private final IntegrityCheckJob job;
+    private final IntegrityCheckIndex index;
+    private final IntegrityCheckJobSummary summary;
+    private IntegrityCheckJobSummary.MonitorProgress monitorProgress;
+
+    IndexConsumeStrategy(IntegrityCheckJob job) {
+        this.job = job;
+        this.index = job.index;
+        this.summary = job.summary;
+    }
+
+    @Override
+    public void consume(String topic) throws Exception {
+        IntegrityCheckJobOptions options = job.options;
+
+        // resume after the last ulid of the previous check
+        JsonNode previousSummary = options.isIncremental() ? job.readPreviousSummary() : null;
+        Path previousReportFile = null;
+        ULID.Value resumeAfterUlid = null;
+        if (previousSummary != null && previousSummary.path("keyFormat").asInt() == SequenceKey.FORMAT_VERSION && previousSummary.hasNonNull("lastUlid")) {
+            summary.setMode("INCREMENTAL");
+            summary.restore(previousSummary);
+            resumeAfterUlid = summary.getLastUlid();
+            if (previousSummary.hasNonNull("reportId")) {
+                previousReportFile = index.getDatabaseDir().resolve("report").resolve(previousSummary.get("reportId").asText());
+            }
+            index.ensurePositionIndex();
+            index.ensureUlidIndex();
+        } else if (options.isIncremental()) {
+            LOG.warn("No previous check found for topic: {}. Check all positions!", topic);
+        }
+        if (options.isMonitor()) {
+            summary.setMode("MONITOR");
+            monitorProgress = summary.setMonitor();
+        }
+
+        String lastPosition = job.contentStore.lastPosition(topic);
+        summary.setLastPosition(lastPosition);
+        ContentStream contentStream = job.contentStore.contentStream();
+        DuplicateReport.Writer inlineReportWriter = index.isInlineDuplicateDetection() ? openInlineReport(previousReportFile) : null;
+        RawdataClient sliceClient = null;
+        List<RawdataConsumer> sliceConsumers = new ArrayList<>();
+        ULID.Value lastUlid = job.lastUlid(contentStream, topic);
+        ContentStreamConsumer consumer = contentStream.consumer(topic);
+        if (resumeAfterUlid != null) {
+            LOG.info("Resume check for topic: {} after ulid: {}", topic, resumeAfterUlid);
+            consumer.seek(resumeAfterUlid.timestamp());
+        }
+        int timeoutInSeconds = job.consumerTimeoutInSeconds();
+        List<IntegrityCheckJobSummary.SliceProgress> slices = List.of();
+        try {
+            LOG.info("Check integrity for topic: {}", topic);
+            // the first message marks the start of the time range that is split into slices
+            ContentStreamBuffer firstBuffer = job.terminated.get() ? null : job.receive(consumer, timeoutInSeconds);
+            sliceClient = options.getSlices() > 1 && firstBuffer != null ? openSliceClient(topic) : null;
+            slices = createSlices(topic, firstBuffer, sliceClient);
+
+            if (slices.size() == 1 && firstBuffer == null && monitorProgress == null) {
+                slices.get(0).setStatus(job.terminated.get() ? "TERMINATED" : "COMPLETED");
+
+            } else if (slices.size() == 1) {
+                consumeSlice(topic, slices.get(0), () -> sliceMessage(job.receive(consumer, timeoutInSeconds)), sliceMessage(firstBuffer),
+                        lastUlid, resumeAfterUlid);
+
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(slices.size(), new SliceThreadFactory(topic));
+                try {
+                    List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    for (IntegrityCheckJobSummary.SliceProgress slice : slices) {
+                        SliceReceiver sliceReceiver;
+                        SliceMessage sliceFirstMessage;
+                        if (slice.index == 0) {
+                            sliceReceiver = () -> sliceMessage(job.receive(consumer, timeoutInSeconds));
+                            sliceFirstMessage = sliceMessage(firstBuffer);
+                        } else {
+                            // the content stream holds one consumer per topic, so the other slices share a rawdata client
+                            RawdataConsumer sliceConsumer = sliceClient.consumer(topic, RawdataConsumer.beginningOf(slice.fromTimestamp), true);
+                            sliceConsumers.add(sliceConsumer);
+                            sliceReceiver = () -> sliceMessage(job.receive(sliceConsumer, timeoutInSeconds));
+                            sliceFirstMessage = null;
+                        }
+                        ULID.Value sliceResumeAfterUlid = resumeAfterUlid;
+                        futures.add(CompletableFuture.runAsync(() -> consumeSlice(topic, slice, sliceReceiver, sliceFirstMessage,
+                                lastUlid, sliceResumeAfterUlid), executor));
+                    }
+                    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            LOG.info("Exited stream consumer for topic: {}", topic);
+        } finally {
+            summary.setLastUlid(resumeUlid(slices, resumeAfterUlid));
+
+            if (lastPosition == null && !slices.isEmpty() && slices.get(slices.size() - 1).getCurrentPosition() != null) {
+                summary.setLastPosition(slices.get(slices.size() - 1).getCurrentPosition());
+            }
+
+            index.commitQueue();
+
+            if (inlineReportWriter != null) {
+                index.onDuplicate(null);
+                inlineReportWriter.close();
+            } else {
+                generateReport();
+            }
+
+            job.writeGapReport();
+
+            contentStream.closeAndRemoveConsumer(topic);
+
+            for (RawdataConsumer sliceConsumer : sliceConsumers) {
+                sliceConsumer.close();
+            }
+            if (sliceClient != null) {
+                sliceClient.close();
+            }
+        }
+    }
+
+    /**
+     * Open a rawdata client that is shared by the slices, which consume the topic in parallel. Slices are only
+     * supported by a rawdata provider whose clients share content, so a client that does not see the topic of the
+     * content store (e.g. an in-memory provider) is not used.
+     *
+     * @return the client or null if the topic must be checked using a single consumer
+     */
+    RawdataClient openSliceClient(String topic) throws Exception {
+        RawdataClient client = ProviderConfigurator.configure(job.configuration.asMap(),
+                job.configuration.evaluateToString("rawdata.client.provider"), RawdataClientInitializer.class);
+        if (client.lastMessage(topic) == null) {
+            LOG.warn("The rawdata client does not share content with the content store. Check topic {} using a single consumer!", topic);
+            client.close();
+            return null;
+        }
+        return client;
+    }
+
+    List<IntegrityCheckJobSummary.SliceProgress> createSlices(String topic, ContentStreamBuffer firstBuffer, RawdataClient sliceClient) {
+        long fromTimestamp = firstBuffer == null ? 0 : firstBuffer.ulid().timestamp();
+        RawdataMessage lastMessage = sliceClient != null ? sliceClient.lastMessage(topic) : null;
+        long timeRange = lastMessage == null ? 0 : lastMessage.ulid().timestamp() + 1 - fromTimestamp;
+        List<IntegrityCheckJobSummary.SliceProgress> slices = createSlices(summary, job.options.getSlices(), fromTimestamp, timeRange);
+        if (slices.size() > 1) {
+            LOG.info("Check topic {} using {} slices of {} ms", topic, slices.size(), timeRange / slices.size());
+        }
+        return slices;
+    }
+
+    /**
+     * Split the ulid time range of the topic into equally sized slices. The last slice is open-ended and reads
+     * until end of stream.
+     */
+    static List<IntegrityCheckJobSummary.SliceProgress> createSlices(IntegrityCheckJobSummary summary, int numberOfSlices,
+                                                                     long fromTimestamp, long timeRange) {
+        numberOfSlices = (int) Math.max(1, Math.min(numberOfSlices, timeRange));
+
+        List<IntegrityCheckJobSummary.SliceProgress> slices = new ArrayList<>();
+        if (numberOfSlices == 1) {
+            slices.add(summary.addSlice(0, fromTimestamp, Long.MAX_VALUE));
+            return slices;
+        }
+
+        long sliceLength = timeRange / numberOfSlices;
+        for (int n = 0; n < numberOfSlices; n++) {
+            long sliceFrom = fromTimestamp + n * sliceLength;
+            long sliceTo = n == numberOfSlices - 1 ? Long.MAX_VALUE : sliceFrom + sliceLength;
+            slices.add(summary.addSlice(n, sliceFrom, sliceTo));
+        }
+        return slices;
+    }
+
+    static SliceMessage sliceMessage(ContentStreamBuffer buffer) {
+        return buffer == null ? null : new SliceMessage(buffer.position(), buffer.ulid());
+    }
+
+    static SliceMessage sliceMessage(RawdataMessage message) {
+        return message == null ? null : new SliceMessage(message.position(), message.ulid());
+    }
+
+    void consumeSlice(String topic, IntegrityCheckJobSummary.SliceProgress slice, SliceReceiver receiver, SliceMessage firstMessage,
+                      ULID.Value lastUlid, ULID.Value resumeAfterUlid) {
+        // a monitor keeps following the open ended slice after it has caught up, and blocks in receive while idle
+        boolean tail = monitorProgress != null && slice.isOpenEnded();
+        try {
+            SliceMessage message = firstMessage != null ? firstMessage : receiver.receive();
+            while (!job.terminated.get() && (message != null || tail)) {
+                if (message == null) {
+                    monitorProgress.setCaughtUp();
+                    message = receiver.receive();
+                    continue;
+                }
+                ULID.Value ulid = message.ulid();
+                boolean endOfStream = slice.isOpenEnded() && ulid.equals(lastUlid);
+
+                // seek is by timestamp and may replay entries that are already indexed or belong to the previous slice
+                if (ulid.timestamp() < slice.fromTimestamp || (resumeAfterUlid != null && ulid.compareTo(resumeAfterUlid) <= 0)) {
+                    if (endOfStream && tail) {
+                        monitorProgress.setCaughtUp();
+                    } else if (endOfStream) {
+                        LOG.info("No new positions for topic: {}", topic);
+                        break;
+                    }
+                    message = receiver.receive();
+                    continue;
+                }
+
+                // reached the first message of the next slice
+                if (ulid.timestamp() >= slice.toTimestamp) {
+                    break;
+                }
+
+                slice.update(message.position(), ulid);
+                // the slices are consumed in parallel, and only the first slice holds the first position
+                job.track(message.position(), slice.index == 0);
+                index.writeSequence(ulid, message.position());
+
+                if (tail) {
+                    monitorProgress.onReceived();
+                    if (monitorProgress.isTailing()) {
+                        summary.setLastPosition(message.position());
+                    }
+                }
+
+                if (endOfStream && tail) {
+                    LOG.info("Caught up with topic: {}. Keep monitoring new positions!", topic);
+                    monitorProgress.setCaughtUp();
+                } else if (endOfStream) {
+                    job.reachedEndOfStream(topic);
+                    break;
+                }
+
+                message = receiver.receive();
+            }
+            slice.setStatus(job.terminated.get() ? "TERMINATED" : "COMPLETED");
+        } catch (InterruptedException e) {
+            slice.setStatus("TERMINATED");
+            throw new RuntimeException(e);
+        } catch (RuntimeException | Error e) {
+            slice.setStatus("FAILED");
+            throw e;
+        } catch (Exception e) {
+            slice.setStatus("FAILED");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The next incremental check resumes after the last ulid of the leading completed slices. Positions in slices
+     * that completed after an incomplete slice will be checked again.
+     */
+    static ULID.Value resumeUlid(List<IntegrityCheckJobSummary.SliceProgress> slices, ULID.Value resumeAfterUlid) {
+        ULID.Value resumeUlid = resumeAfterUlid;
+        for (IntegrityCheckJobSummary.SliceProgress slice : slices) {
+            if (slice.getLastUlid() != null) {
+                resumeUlid = slice.getLastUlid();
+            }
+            if (!"COMPLETED".equals(slice.getStatus())) {
+                break;
+            }
+        }
+        return resumeUlid;
+    }
+
+    // write duplicates to the report as they are detected by the index writer, one entry per occurrence
+    DuplicateReport.Writer openInlineReport(Path previousReportFile) {
+        Path reportPath = index.getDatabaseDir().resolve("report");
+        String reportId = job.createDuplicateReportId();
+        LOG.info("Generating inline report to: {}/{}", reportPath, reportId);
+        DuplicateReport.Writer writer = DuplicateReport.createWriter(job.options.getReportFormat(), reportPath, reportId);
+        if (previousReportFile != null && previousReportFile.toFile().exists()) {
+            long count = writer.writeAll(previousReportFile);
+            LOG.info("Copied {} duplicates from previous report: {}", count, previousReportFile);
+        }
+        summary.setReportPath(reportPath);
+        summary.setDuplicateReportId(reportId);
+        index.onDuplicate(duplicate -> {
+            writer.write(duplicate.position(), duplicate.ulids());
+            summary.incrementDuplicatePositions(duplicate.occurrences());
+            if (monitorProgress != null && monitorProgress.isTailing()) {
+                long published = duplicate.ulids().stream().mapToLong(ULID.Value::timestamp).max().orElse(0);
+                monitorProgress.onDuplicate(duplicate.position(), published);
+                writer.flush();
+                LOG.warn("Detected duplicate position: {} occurrences: {}", duplicate.position(), duplicate.occurrences());
+            }
+        });
+        return writer;
+    }
+
+    // generate a duplicate report in the selected report format
+    void generateReport() {
+        Path reportPath = index.getDatabaseDir().resolve("report");
+        String reportId = job.createDuplicateReportId();
+        LOG.info("Generating report to: {}/{}", reportPath, reportId);
+
+        AtomicLong duplicatePositions = new AtomicLong();
+        AtomicLong affectedPositions = new AtomicLong();
+        PositionAndULIDVersion earliestDuplicate = new PositionAndULIDVersion();
+
+        try (DuplicateReport.Writer writer = DuplicateReport.createWriter(job.options.getReportFormat(), reportPath, reportId)) {
+            index.readPositionDuplicates(event -> {
+                earliestDuplicate.compareAndSet(event.ulidSet().first(), event.position());
+                duplicatePositions.addAndGet(event.ulidSet().size());
+                affectedPositions.incrementAndGet();
+                writer.write(event.position(), event.ulidSet());
+                return true;
+            });
+        }
+
+        index.writeEarliestDuplicate(earliestDuplicate.isEmpty() ? null : new SequenceKey(earliestDuplicate.ulid(), earliestDuplicate.position()));
+
+        summary.setReportPath(reportPath);
+        summary.setDuplicateReportId(reportId);
+        summary.setDuplicatePositionStats(duplicatePositions.get(), affectedPositions.get());
+        LOG.info("Done generating report");
+    }
+
+    /**
+     * The position and ulid of a message received by a slice. The message data is not retained.
+     */
+    static class SliceMessage {
+        final String position;
+        final ULID.Value ulid;
+
+        SliceMessage(String position, ULID.Value ulid) {
+            this.position = position;
+            this.ulid = ulid;
+        }
+
+        String position() {
+            return position;
+        }
+
+        ULID.Value ulid() {
+            return ulid;
+        }
+    }
+
+    @FunctionalInterface
+    interface SliceReceiver {
+        /**
+         * @return the next message or null if the receive timed out
+         */
+        SliceMessage receive() throws Exception;
+    }
+
+    static class SliceThreadFactory implements ThreadFactory {
+        private final String topic;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        SliceThreadFactory(String topic) {
+            this.topic = topic;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "integrity-check-slice-" + topic + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,31 +1,63 @@
 package no.ssb.dc.server.integrity;
 
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.undertow.attribute.ExchangeAttributes;
+import io.undertow.predicate.Predicates;
+import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.server.handlers.resource.PathResourceManager;
+import io.undertow.server.handlers.resource.ResourceHandler;
 import io.undertow.util.Headers;
 import no.ssb.config.DynamicConfiguration;
 import no.ssb.dc.api.http.HttpStatus;
 import no.ssb.dc.api.http.Request;
+import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.api.util.JsonParser;
 import no.ssb.dc.application.spi.Controller;
+import no.ssb.dc.server.db.SequenceDbHelper;
+import no.ssb.dc.server.db.SequenceDbSnapshot;
+import no.ssb.dc.server.db.SequenceKey;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class IntegrityCheckController implements Controller {
 
     final DynamicConfiguration configuration;
     final IntegrityCheckService service;
+    final Path databaseLocation;
+    final HttpHandler reportFileHandler;
 
     public IntegrityCheckController(DynamicConfiguration configuration, IntegrityCheckService service) {
         this.configuration = configuration;
         this.service = service;
+        this.databaseLocation = SequenceDbHelper.getSequenceDatabaseLocation(configuration);
+        this.reportFileHandler = createReportFileHandler(configuration, databaseLocation);
+    }
+
+    /**
+     * Report files are served from the database location. Compression on the fly is disabled by default, because an
+     * encoded response can not be sent with FileChannel.transferTo.
+     */
+    static HttpHandler createReportFileHandler(DynamicConfiguration configuration, Path databaseLocation) {
+        HttpHandler resourceHandler = new ResourceHandler(new PathResourceManager(databaseLocation))
+                .setDirectoryListingEnabled(false);
+        boolean gzip = configuration.evaluateToString("data.collector.integrityCheck.report.gzip") != null &&
+                configuration.evaluateToBoolean("data.collector.integrityCheck.report.gzip");
+        return !gzip ? resourceHandler : new EncodingHandler(resourceHandler, new ContentEncodingRepository()
+                .addEncodingHandler("gzip", new GzipEncodingProvider(), 50, Predicates.not(Predicates.exists(ExchangeAttributes.requestHeader(Headers.RANGE)))));
     }
 
     @Override
@@ -46,6 +78,11 @@ public class IntegrityCheckController implements Controller {
         }
 
         if ("put".equalsIgnoreCase(exchange.getRequestMethod().toString())) {
+            if (exchange.getRequestPath().startsWith(contextPath()) && exchange.getRequestPath().endsWith("/snapshot")) {
+                createSnapshot(exchange);
+                return;
+            }
+
             if (exchange.getRequestPath().startsWith(contextPath())) {
                 createJob(exchange);
                 return;
@@ -58,6 +95,26 @@ public class IntegrityCheckController implements Controller {
                 return;
             }
 
+            if (exchange.getRequestPath().startsWith(contextPath()) && exchange.getRequestPath().endsWith("/snapshot")) {
+                getSnapshotList(exchange);
+                return;
+            }
+
+            if (exchange.getRequestPath().startsWith(contextPath()) && exchange.getRequestPath().endsWith("/range")) {
+                getUlidRange(exchange);
+                return;
+            }
+
+            if (exchange.getRequestPath().startsWith(contextPath()) && exchange.getRequestPath().endsWith("/duplicates")) {
+                getDuplicates(exchange);
+                return;
+            }
+
+            if (exchange.getRequestPath().startsWith(contextPath() + "/") && exchange.getRequestPath().matches(".+/[^/]+/report/[^/]+")) {
+                getReportFile(exchange);
+                return;
+            }
+
             if (exchange.getRequestPath().startsWith(contextPath()) && exchange.getRequestPath().endsWith("full")) {
                 getFullJobSummary(exchange);
                 return;
@@ -88,18 +145,36 @@ public class IntegrityCheckController implements Controller {
         return new LinkedList<>(List.of(path));
     }
 
-    // PUT /check-integrity/TOPIC
+    // PUT /check-integrity/TOPIC?incremental=true&slices=4
     void createJob(HttpServerExchange exchange) {
         Deque<String> pathElements = parseRequestPath(exchange, 3);
         if (pathElements == null) return;
         String topic = pathElements.pollLast();
-        if (service.isJobRunning(topic)) {
+        if (service.isJobRunning(topic) || service.isJobQueued(topic)) {
             exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
             return;
         }
+        IntegrityCheckJobOptions options;
+        try {
+            options = IntegrityCheckJobOptions.create(configuration, exchange.getQueryParameters());
+        } catch (IllegalArgumentException e) {
+            exchange.setStatusCode(400);
+            return;
+        }
         service.removeJobIfClosed(topic);
-        service.createJob(topic);
-        exchange.setStatusCode(201);
+        IntegrityCheckScheduler.ScheduledJob scheduledJob;
+        try {
+            scheduledJob = service.createJob(topic, options);
+        } catch (IllegalStateException e) {
+            exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
+            return;
+        }
+        if (scheduledJob == null) {
+            exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
+            return;
+        }
+        // a queued job starts when a running job for the same content store backend has ended
+        exchange.setStatusCode(scheduledJob.isQueued() ? 202 : 201);
     }
 
     // GET /check-integrity
@@ -137,7 +212,7 @@ public class IntegrityCheckController implements Controller {
     }
 
     // GET /check-integrity/TOPIC/full
-    void getFullJobSummary(HttpServerExchange exchange) {
+    void getFullJobSummary(HttpServerExchange exchange) throws Exception {
         Deque<String> pathElements = parseRequestPath(exchange, 4);
         if (pathElements == null) return;
         pathElements.pollLast();
@@ -154,22 +229,238 @@ public class IntegrityCheckController implements Controller {
             service.writeJobSummaryReport(topic, summaryReportFilePath, summary);
         }
 
+        serveReportFile(exchange, summaryReportFilePath);
+    }
+
+    // GET /check-integrity/TOPIC/report/REPORT_ID
+    void getReportFile(HttpServerExchange exchange) throws Exception {
+        Deque<String> pathElements = parseRequestPath(exchange, 5);
+        if (pathElements == null) return;
+        String reportId = pathElements.pollLast();
+        pathElements.pollLast();
+        String topic = pathElements.pollLast();
+        Path reportFilePath = service.getReportFile(topic, reportId);
+        if (reportFilePath == null) {
+            exchange.setStatusCode(404);
+            return;
+        }
+        serveReportFile(exchange, reportFilePath);
+    }
+
+    /**
+     * Serve a report file through the Undertow resource handler. The file is sent asynchronously with
+     * FileChannel.transferTo, so no worker thread is held during the download, and range and conditional requests
+     * are supported. A response is only compressed when data.collector.integrityCheck.report.gzip is enabled.
+     */
+    void serveReportFile(HttpServerExchange exchange, Path reportFilePath) throws Exception {
+        if (!reportFilePath.startsWith(databaseLocation)) {
+            exchange.setStatusCode(404);
+            return;
+        }
+        StringBuilder relativePath = new StringBuilder();
+        for (Path pathElement : databaseLocation.relativize(reportFilePath)) {
+            relativePath.append("/").append(pathElement);
+        }
+        exchange.setRelativePath(relativePath.toString());
+        reportFileHandler.handleRequest(exchange);
+    }
+
+    // GET /check-integrity/TOPIC/range?from=2020-09-01T00:00:00Z&to=1598918400000&limit=1000
+    void getUlidRange(HttpServerExchange exchange) {
+        Deque<String> pathElements = parseRequestPath(exchange, 4);
+        if (pathElements == null) return;
+        pathElements.pollLast();
+        String topic = pathElements.pollLast();
+
+        long fromTimestamp;
+        long toTimestamp;
+        int limit;
+        int maxResults = configuration.evaluateToString("data.collector.integrityCheck.range.maxResults") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.range.maxResults") : 10000;
+        try {
+            fromTimestamp = timestampParameter(exchange.getQueryParameters(), "from", 0);
+            toTimestamp = timestampParameter(exchange.getQueryParameters(), "to", System.currentTimeMillis() + 1);
+            limit = Math.min(IntegrityCheckJobOptions.intParameter(exchange.getQueryParameters(), "limit", maxResults), maxResults);
+        } catch (IllegalArgumentException e) {
+            exchange.setStatusCode(400);
+            return;
+        }
+        if (fromTimestamp < 0 || fromTimestamp >= toTimestamp || limit < 1) {
+            exchange.setStatusCode(400);
+            return;
+        }
+
+        List<SequenceKey> sequenceKeys;
+        try {
+            // fetch one more than the limit to tell whether the result was truncated
+            sequenceKeys = service.findUlidRange(topic, fromTimestamp, toTimestamp, limit + 1);
+        } catch (IllegalStateException e) {
+            exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
+            return;
+        }
+        if (sequenceKeys == null) {
+            exchange.setStatusCode(404);
+            return;
+        }
+
+        JsonParser jsonParser = JsonParser.createJsonParser();
+        ObjectNode rangeNode = jsonParser.createObjectNode();
+        rangeNode.put("topic", topic);
+        rangeNode.put("from", Instant.ofEpochMilli(fromTimestamp).toString());
+        rangeNode.put("to", Instant.ofEpochMilli(toTimestamp).toString());
+        rangeNode.put("truncated", sequenceKeys.size() > limit);
+        ArrayNode positionArray = rangeNode.putArray("positions");
+        for (SequenceKey sequenceKey : sequenceKeys.subList(0, Math.min(limit, sequenceKeys.size()))) {
+            ObjectNode positionNode = positionArray.addObject();
+            positionNode.put("ulid", ULIDGenerator.toUUID(sequenceKey.ulid()).toString());
+            positionNode.put("timestamp", Instant.ofEpochMilli(sequenceKey.ulid().timestamp()).toString());
+            positionNode.put("position", sequenceKey.position());
+        }
+
         exchange.setStatusCode(200);
         exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
-        exchange.startBlocking();
-        try (OutputStream outputStream = exchange.getOutputStream()) {
-            try (InputStream inputStream = new FileInputStream(summaryReportFilePath.toFile())) {
-                byte[] buf = new byte[8192];
-                int c;
-                while ((c = inputStream.read(buf, 0, buf.length)) > 0) {
-                    outputStream.write(buf, 0, c);
-                    outputStream.flush();
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        exchange.getResponseSender().send(jsonParser.toPrettyJSON(rangeNode));
+    }
+
+    // GET /check-integrity/TOPIC/duplicates?limit=1000&prefix=2020&cursor=TOKEN
+    void getDuplicates(HttpServerExchange exchange) {
+        Deque<String> pathElements = parseRequestPath(exchange, 4);
+        if (pathElements == null) return;
+        pathElements.pollLast();
+        String topic = pathElements.pollLast();
+
+        int limit;
+        String afterPosition;
+        String positionPrefix = IntegrityCheckJobOptions.stringParameter(exchange.getQueryParameters(), "prefix", null);
+        int maxResults = configuration.evaluateToString("data.collector.integrityCheck.duplicates.maxResults") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.duplicates.maxResults") : 1000;
+        try {
+            limit = Math.min(IntegrityCheckJobOptions.intParameter(exchange.getQueryParameters(), "limit", maxResults), maxResults);
+            afterPosition = decodeCursor(IntegrityCheckJobOptions.stringParameter(exchange.getQueryParameters(), "cursor", null));
+        } catch (IllegalArgumentException e) {
+            exchange.setStatusCode(400);
+            return;
+        }
+        if (limit < 1) {
+            exchange.setStatusCode(400);
+            return;
+        }
+
+        List<SequenceDbHelper.DuplicateEvent> duplicates;
+        try {
+            // fetch one more than the limit to tell whether there is a next page
+            duplicates = service.findDuplicates(topic, afterPosition, positionPrefix, limit + 1);
+        } catch (IllegalStateException e) {
+            exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
+            return;
+        } catch (IllegalArgumentException e) {
+            // a cursor or prefix that does not fit in a key
+            exchange.setStatusCode(400);
+            return;
+        }
+        if (duplicates == null) {
+            exchange.setStatusCode(404);
+            return;
+        }
+
+        JsonParser jsonParser = JsonParser.createJsonParser();
+        ObjectNode pageNode = jsonParser.createObjectNode();
+        pageNode.put("topic", topic);
+        ArrayNode duplicateArray = pageNode.putArray("duplicates");
+        List<SequenceDbHelper.DuplicateEvent> page = duplicates.subList(0, Math.min(limit, duplicates.size()));
+        for (SequenceDbHelper.DuplicateEvent duplicate : page) {
+            ObjectNode duplicateNode = duplicateArray.addObject();
+            duplicateNode.put("position", duplicate.position());
+            ArrayNode ulidArray = duplicateNode.putArray("ulids");
+            duplicate.ulidSet().forEach(ulid -> ulidArray.add(ULIDGenerator.toUUID(ulid).toString()));
+        }
+        if (duplicates.size() > limit) {
+            pageNode.put("next", encodeCursor(page.get(page.size() - 1).position()));
+        }
+
+        exchange.setStatusCode(200);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(jsonParser.toPrettyJSON(pageNode));
+    }
+
+    // the cursor is the last position of the previous page
+    static String encodeCursor(String position) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal value for query parameter 'cursor': " + cursor);
+        }
+    }
+
+    // a timestamp is either epoch millis or an ISO-8601 instant
+    static long timestampParameter(Map<String, Deque<String>> queryParameters, String name, long defaultValue) {
+        String value = IntegrityCheckJobOptions.stringParameter(queryParameters, name, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Illegal value for query parameter '" + name + "': " + value);
+        }
+    }
+
+    // PUT /check-integrity/TOPIC/snapshot
+    void createSnapshot(HttpServerExchange exchange) {
+        Deque<String> pathElements = parseRequestPath(exchange, 4);
+        if (pathElements == null) return;
+        pathElements.pollLast();
+        String topic = pathElements.pollLast();
+        SequenceDbSnapshot.Snapshot snapshot;
+        try {
+            snapshot = service.createSnapshot(topic);
+        } catch (IllegalStateException e) {
+            exchange.setStatusCode(HttpStatus.HTTP_CONFLICT.code());
+            return;
+        }
+        if (snapshot == null) {
+            exchange.setStatusCode(404);
+            return;
+        }
+        JsonParser jsonParser = JsonParser.createJsonParser();
+        exchange.setStatusCode(201);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(jsonParser.toPrettyJSON(toSnapshotNode(jsonParser, snapshot)));
+    }
+
+    // GET /check-integrity/TOPIC/snapshot
+    void getSnapshotList(HttpServerExchange exchange) {
+        Deque<String> pathElements = parseRequestPath(exchange, 4);
+        if (pathElements == null) return;
+        pathElements.pollLast();
+        String topic = pathElements.pollLast();
+        JsonParser jsonParser = JsonParser.createJsonParser();
+        ArrayNode snapshotArray = jsonParser.createArrayNode();
+        for (SequenceDbSnapshot.Snapshot snapshot : service.getSnapshots(topic)) {
+            snapshotArray.add(toSnapshotNode(jsonParser, snapshot));
+        }
+        exchange.setStatusCode(200);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(jsonParser.toPrettyJSON(snapshotArray));
+    }
+
+    static ObjectNode toSnapshotNode(JsonParser jsonParser, SequenceDbSnapshot.Snapshot snapshot) {
+        ObjectNode snapshotNode = jsonParser.createObjectNode();
+        snapshotNode.put("topic", snapshot.getTopic());
+        snapshotNode.put("snapshotId", snapshot.getSnapshotId());
+        snapshotNode.put("path", snapshot.getPath().toString());
+        snapshotNode.put("size", snapshot.getSize());
+        if (snapshot.getSourceSize() >= 0) {
+            snapshotNode.put("sourceSize", snapshot.getSourceSize());
         }
-        exchange.endExchange();
+        return snapshotNode;
     }
 
     // DELETE /check-integrity/TOPIC
@@ -177,7 +468,7 @@ public class IntegrityCheckController implements Controller {
         Deque<String> pathElements = parseRequestPath(exchange, 3);
         if (pathElements == null) return;
         String topic = pathElements.pollLast();
-        if (!service.isJobRunning(topic)) {
+        if (!service.isJobRunning(topic) && !service.isJobQueued(topic)) {
             exchange.setStatusCode(400);
             return;
         }
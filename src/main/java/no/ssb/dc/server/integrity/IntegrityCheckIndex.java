@@ -1,80 +1,403 @@
 package no.ssb.dc.server.integrity;
 
 import de.huxhorn.sulky.ulid.ULID;
-import no.ssb.dc.api.handler.Tuple;
-import no.ssb.dc.server.db.DirectByteBufferPool;
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.server.db.DirectByteBufferSlab;
 import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.SequenceDbHelper;
+import no.ssb.dc.server.db.SequenceDbMetadata;
 import no.ssb.dc.server.db.SequenceKey;
+import no.ssb.dc.server.db.SequenceKeyFlyweight;
+import org.lmdbjava.Cursor;
 import org.lmdbjava.CursorIterable;
 import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.PutFlags;
 import org.lmdbjava.Txn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
+/**
+ * The index is written by a single writer thread (see {@link BatchWriter}). Producers hand encoded keys over to a
+ * bounded queue and are blocked when the queue is full. The writer commits a batch when it reaches batchSize or when
+ * the oldest entry in the batch has waited for commitIntervalInMillis.
+ * <p>
+ * With inline duplicate detection enabled, the writer also maintains a position database (position -> occurrences
+ * and first ulid) and reports a duplicate as soon as the transaction that detected it has been committed.
+ * <p>
+ * With the ulid index enabled, the writer also maintains a ulid database (ulid -> sequence key) that is used
+ * for time range queries.
+ */
 public class IntegrityCheckIndex implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(IntegrityCheckIndex.class);
 
-    static int BUFFER_POOL_SIZE = 1001;
-    static int CONTENT_LENGTH = 0;
+    static int DEFAULT_BATCH_SIZE = 1000;
+    static long DEFAULT_COMMIT_INTERVAL_IN_MILLIS = 1000;
+    static int POSITION_VALUE_LENGTH = 3 * Long.BYTES;
+
+    // the sequence database only uses keys, so every entry shares the same empty value
+    private static final ByteBuffer EMPTY_VALUE = ByteBuffer.allocateDirect(0);
 
     private final LmdbEnvironment lmdbEnvironment;
-    private final DirectByteBufferPool keyBufferPool;
-    private final DirectByteBufferPool contentBufferPool;
+    private final int batchSize;
+    private final long commitIntervalInMillis;
+    private final DirectByteBufferSlab keyBufferSlab;
     private final Dbi<ByteBuffer> sequenceDb;
-    private final Queue<Tuple<ByteBuffer, ByteBuffer>> bufferQueue;
+    private final Dbi<ByteBuffer> positionDb;
+    private final ByteBuffer positionKeyBuffer;
+    private final ByteBuffer positionValueBuffer;
+    private final Dbi<ByteBuffer> ulidDb;
+    private final ByteBuffer ulidKeyBuffer;
+    private final SequenceKeyFlyweight positionSequenceKey = new SequenceKeyFlyweight();
+    private final SequenceKeyFlyweight batchKey = new SequenceKeyFlyweight();
+    private final SequenceKeyFlyweight batchMinKey = new SequenceKeyFlyweight();
+    private final SequenceKeyFlyweight batchMaxKey = new SequenceKeyFlyweight();
+    private final SequenceDbMetadata metadata;
+    private final ByteBuffer duplicateKeyBuffer;
+    private final List<DuplicateOccurrence> detectedDuplicates = new ArrayList<>();
+    private volatile Consumer<DuplicateOccurrence> duplicateListener;
+    private volatile LongConsumer commitListener;
+    private final BatchWriter<ByteBuffer> writer;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public IntegrityCheckIndex(LmdbEnvironment lmdbEnvironment) {
+        this(null, lmdbEnvironment);
+    }
+
+    public IntegrityCheckIndex(DynamicConfiguration configuration, LmdbEnvironment lmdbEnvironment) {
+        this(configuration, lmdbEnvironment, IntegrityCheckJobOptions.create(configuration));
+    }
+
+    public IntegrityCheckIndex(DynamicConfiguration configuration, LmdbEnvironment lmdbEnvironment, IntegrityCheckJobOptions options) {
+        this(configuration, lmdbEnvironment, options.isInlineDuplicateDetection(), options.isUlidIndex());
+    }
+
+    public IntegrityCheckIndex(DynamicConfiguration configuration, LmdbEnvironment lmdbEnvironment, boolean inlineDuplicateDetection) {
+        this(configuration, lmdbEnvironment, inlineDuplicateDetection, false);
+    }
+
+    public IntegrityCheckIndex(DynamicConfiguration configuration, LmdbEnvironment lmdbEnvironment, boolean inlineDuplicateDetection, boolean ulidIndex) {
         this.lmdbEnvironment = lmdbEnvironment;
-        this.keyBufferPool = new DirectByteBufferPool(BUFFER_POOL_SIZE, lmdbEnvironment.maxKeySize());
-        this.contentBufferPool = new DirectByteBufferPool(BUFFER_POOL_SIZE, CONTENT_LENGTH);
-        this.bufferQueue = new LinkedBlockingDeque<>(BUFFER_POOL_SIZE - 1);
+        this.batchSize = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.writer.batchSize") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.writer.batchSize") : DEFAULT_BATCH_SIZE;
+        this.commitIntervalInMillis = configuration != null && configuration.evaluateToString("data.collector.integrityCheck.writer.commitIntervalInMillis") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.writer.commitIntervalInMillis") : DEFAULT_COMMIT_INTERVAL_IN_MILLIS;
+        // key buffers are held by the queue, by the batch being committed and by the producer
+        this.keyBufferSlab = new DirectByteBufferSlab(2 * batchSize + 1, lmdbEnvironment.maxKeySize());
         this.sequenceDb = lmdbEnvironment.open();
+        this.positionDb = inlineDuplicateDetection ? lmdbEnvironment.open("position") : null;
+        this.positionKeyBuffer = inlineDuplicateDetection ? ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize()) : null;
+        this.positionValueBuffer = inlineDuplicateDetection ? ByteBuffer.allocateDirect(POSITION_VALUE_LENGTH) : null;
+        this.metadata = new SequenceDbMetadata(lmdbEnvironment);
+        // an existing ulid index must be maintained, or it would no longer cover every sequence key
+        boolean maintainUlidIndex = ulidIndex || hasUlidIndex();
+        this.ulidDb = maintainUlidIndex ? lmdbEnvironment.open("ulid") : null;
+        this.ulidKeyBuffer = maintainUlidIndex ? ByteBuffer.allocateDirect(2 * Long.BYTES) : null;
+        this.duplicateKeyBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+        this.writer = new BatchWriter<>("integrity-check-writer-" + lmdbEnvironment.getDatabaseDir().getFileName(),
+                batchSize, commitIntervalInMillis, this::commitTimed, keyBufferSlab::release);
+    }
+
+    private boolean hasUlidIndex() {
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            return metadata.isUlidIndexed(txn);
+        }
     }
 
     public Path getDatabaseDir() {
         return lmdbEnvironment.getDatabaseDir();
     }
 
+    LmdbEnvironment lmdbEnvironment() {
+        return lmdbEnvironment;
+    }
+
+    public boolean isInlineDuplicateDetection() {
+        return positionDb != null;
+    }
+
+    public boolean isUlidIndex() {
+        return ulidDb != null;
+    }
+
+    /**
+     * Receive duplicates detected by the writer thread. Requires inline duplicate detection.
+     */
+    public void onDuplicate(Consumer<DuplicateOccurrence> duplicateListener) {
+        this.duplicateListener = duplicateListener;
+    }
+
+    /**
+     * Receive the duration in nanoseconds of every batch commit made by the writer thread
+     */
+    public void onCommit(LongConsumer commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * Wait until all sequences that have been written by the calling thread are committed
+     */
     public void commitQueue() {
-        try (Txn<ByteBuffer> txn = lmdbEnvironment.env().txnWrite()) {
-            Tuple<ByteBuffer, ByteBuffer> buffer;
-            while ((buffer = bufferQueue.poll()) != null) {
-                try {
-                    sequenceDb.put(txn, buffer.getKey(), buffer.getValue());
-                } finally {
-                    keyBufferPool.release(buffer.getKey());
-                    contentBufferPool.release(buffer.getValue());
+        writer.flush();
+    }
+
+    public void writeSequence(ULID.Value ulid, String position) {
+        writer.checkWriterError();
+        ByteBuffer keyBuffer = keyBufferSlab.acquire();
+        try {
+            SequenceKey.encode(ulid, position, keyBuffer);
+        } catch (RuntimeException e) {
+            keyBufferSlab.release(keyBuffer);
+            throw e;
+        }
+        writer.write(keyBuffer);
+    }
+
+    private void commitTimed(List<ByteBuffer> batch) {
+        long start = System.nanoTime();
+        commitBatch(batch);
+        LongConsumer listener = commitListener;
+        if (listener != null) {
+            listener.accept(System.nanoTime() - start);
+        }
+    }
+
+    // retry the whole batch in a new transaction if the map is full, because the failed transaction is aborted
+    private void commitBatch(List<ByteBuffer> batch) {
+        while (true) {
+            detectedDuplicates.clear();
+            try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnWrite()) {
+                long addedKeys = 0;
+                batchMinKey.clear();
+                batchMaxKey.clear();
+                for (ByteBuffer keyBuffer : batch) {
+                    // a sequence key that is already indexed must not be counted twice as a duplicate
+                    boolean added = sequenceDb.put(txn, keyBuffer, EMPTY_VALUE, PutFlags.MDB_NOOVERWRITE);
+                    if (!added) {
+                        continue;
+                    }
+                    addedKeys++;
+                    batchKey.wrap(keyBuffer);
+                    if (batchMinKey.isEmpty() || batchKey.compareUlid(batchMinKey) < 0) {
+                        batchMinKey.wrap(keyBuffer);
+                    }
+                    if (batchMaxKey.isEmpty() || batchKey.compareUlid(batchMaxKey) > 0) {
+                        batchMaxKey.wrap(keyBuffer);
+                    }
+                    if (positionDb != null) {
+                        indexPosition(txn, keyBuffer);
+                    }
+                    if (ulidDb != null) {
+                        ulidDb.put(txn, ulidKey(batchKey), keyBuffer);
+                    }
+                }
+                if (addedKeys > 0) {
+                    metadata.merge(txn, addedKeys, batchMinKey.buffer(), batchMaxKey.buffer());
                 }
+                // an index that is written with inline duplicate detection from the first key is complete
+                if (positionDb != null && addedKeys > 0 && sequenceDb.stat(txn).entries == addedKeys) {
+                    metadata.markPositionIndexed(txn);
+                    metadata.trackDuplicates(txn);
+                }
+                if (ulidDb != null && addedKeys > 0 && sequenceDb.stat(txn).entries == addedKeys) {
+                    metadata.markUlidIndexed(txn);
+                }
+                txn.commit();
+                break;
+            } catch (Env.MapFullException e) {
+                lmdbEnvironment.growMapSize();
+            }
+        }
+        lmdbEnvironment.growMapSizeAhead();
+
+        // fire duplicates after commit, so an aborted transaction never reports a duplicate twice
+        Consumer<DuplicateOccurrence> listener = duplicateListener;
+        if (listener != null) {
+            for (DuplicateOccurrence duplicate : detectedDuplicates) {
+                listener.accept(duplicate);
             }
-            txn.commit();
         }
+        detectedDuplicates.clear();
     }
 
-    public void writeSequence(ULID.Value ulid, String position) {
-        ByteBuffer keyBuffer = keyBufferPool.acquire();
-        SequenceKey sequenceKey = new SequenceKey(ulid, position);
-        sequenceKey.toByteBuffer(keyBuffer);
-        ByteBuffer contentBuffer = contentBufferPool.acquire();
-        contentBuffer.flip();
-        if (!bufferQueue.offer(new Tuple<>(keyBuffer, contentBuffer))) {
-            commitQueue();
-            // try to re-offer buffer after queue reach max capacity
-            if (!bufferQueue.offer(new Tuple<>(keyBuffer, contentBuffer))) {
-                throw new IllegalStateException("Buffers was not added to bufferQueue!");
+    // position value: [occurrences][first ulid msb][first ulid lsb]
+    private void indexPosition(Txn<ByteBuffer> txn, ByteBuffer keyBuffer) {
+        positionSequenceKey.wrap(keyBuffer).copyPositionSegment(positionKeyBuffer);
+        ByteBuffer existingValue = positionDb.get(txn, positionKeyBuffer);
+        positionValueBuffer.clear();
+        if (existingValue == null) {
+            positionValueBuffer.putLong(1);
+            positionValueBuffer.putLong(positionSequenceKey.ulidMostSignificantBits());
+            positionValueBuffer.putLong(positionSequenceKey.ulidLeastSignificantBits());
+        } else {
+            int offset = existingValue.position();
+            long occurrences = existingValue.getLong(offset) + 1;
+            long firstUlidMostSignificantBits = existingValue.getLong(offset + Long.BYTES);
+            long firstUlidLeastSignificantBits = existingValue.getLong(offset + 2 * Long.BYTES);
+            positionValueBuffer.putLong(occurrences);
+            positionValueBuffer.putLong(firstUlidMostSignificantBits);
+            positionValueBuffer.putLong(firstUlidLeastSignificantBits);
+            if (occurrences == 2) {
+                metadata.mergeDuplicate(txn, firstOccurrenceKey(positionKeyBuffer, firstUlidMostSignificantBits, firstUlidLeastSignificantBits));
+            }
+            List<ULID.Value> ulids = occurrences == 2 ?
+                    List.of(new ULID.Value(firstUlidMostSignificantBits, firstUlidLeastSignificantBits), positionSequenceKey.ulid()) :
+                    List.of(positionSequenceKey.ulid());
+            detectedDuplicates.add(new DuplicateOccurrence(positionSequenceKey.position(), ulids, occurrences));
+        }
+        positionDb.put(txn, positionKeyBuffer, positionValueBuffer.flip());
+    }
+
+    // ulid key: [ulid msb][ulid lsb], which sorts by timestamp because the timestamp is the most significant part
+    private ByteBuffer ulidKey(SequenceKeyFlyweight sequenceKey) {
+        ulidKeyBuffer.clear();
+        ulidKeyBuffer.putLong(sequenceKey.ulidMostSignificantBits());
+        ulidKeyBuffer.putLong(sequenceKey.ulidLeastSignificantBits());
+        return ulidKeyBuffer.flip();
+    }
+
+    private ByteBuffer firstOccurrenceKey(ByteBuffer positionSegmentBuffer, long ulidMostSignificantBits, long ulidLeastSignificantBits) {
+        duplicateKeyBuffer.clear();
+        duplicateKeyBuffer.put(positionSegmentBuffer.duplicate());
+        duplicateKeyBuffer.putLong(ulidMostSignificantBits);
+        duplicateKeyBuffer.putLong(ulidLeastSignificantBits);
+        return duplicateKeyBuffer.flip();
+    }
+
+    /**
+     * Build the position index from the sequence database if the index was created without inline duplicate
+     * detection. The rebuild is committed in chunks that always end at a position boundary, and the index is
+     * marked as complete by the last chunk.
+     */
+    public void ensurePositionIndex() {
+        if (positionDb == null) {
+            return;
+        }
+        // position value: [occurrences][first ulid msb][first ulid lsb]
+        rebuildIndex("position", positionDb, true, metadata::isPositionIndexed, (txn, targetDb, firstKey, occurrences) -> {
+            positionValueBuffer.clear();
+            positionValueBuffer.putLong(occurrences);
+            positionValueBuffer.putLong(firstKey.ulidMostSignificantBits());
+            positionValueBuffer.putLong(firstKey.ulidLeastSignificantBits());
+            targetDb.put(txn, firstKey.copyPositionSegment(positionKeyBuffer), positionValueBuffer.flip());
+            if (occurrences > 1) {
+                metadata.mergeDuplicate(txn, firstOccurrenceKey(positionKeyBuffer,
+                        firstKey.ulidMostSignificantBits(), firstKey.ulidLeastSignificantBits()));
+            }
+        }, txn -> {
+            metadata.markPositionIndexed(txn);
+            metadata.trackDuplicates(txn);
+        });
+    }
+
+    /**
+     * Build the ulid index from the sequence database if the index was created without the ulid index. The
+     * rebuild is committed in chunks and the index is marked as complete by the last chunk.
+     */
+    public void ensureUlidIndex() {
+        if (ulidDb == null) {
+            return;
+        }
+        // the copy of the key is held by a heap buffer, and Lmdb only accepts direct buffers
+        ByteBuffer sequenceKeyBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+        rebuildIndex("ulid", ulidDb, false, metadata::isUlidIndexed, (txn, targetDb, sequenceKey, size) -> {
+            sequenceKeyBuffer.clear();
+            sequenceKeyBuffer.put(sequenceKey.buffer()).flip();
+            targetDb.put(txn, ulidKey(sequenceKey), sequenceKeyBuffer);
+        }, metadata::markUlidIndexed);
+    }
+
+    @FunctionalInterface
+    interface GroupIndexer {
+        /**
+         * Write the index entries of a group of sequence keys to the target database
+         *
+         * @param firstKey a copy of the first key of the group
+         * @param size     the number of keys in the group
+         */
+        void index(Txn<ByteBuffer> txn, Dbi<ByteBuffer> targetDb, SequenceKeyFlyweight firstKey, long size);
+    }
+
+    /**
+     * Rebuild a secondary index from the sequence database, unless it is complete. The sequence keys are visited in
+     * groups of keys with the same position, or one key at a time, and the rebuild is committed in chunks of about
+     * ten batches that always end at a group boundary. A chunk that fails with a full map is retried after the map
+     * has grown, and the index is marked as complete by the last chunk.
+     */
+    private void rebuildIndex(String indexName, Dbi<ByteBuffer> targetDb, boolean groupByPosition, Predicate<Txn<ByteBuffer>> isIndexed,
+                              GroupIndexer indexer, Consumer<Txn<ByteBuffer>> markIndexed) {
+        commitQueue();
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+            if (isIndexed.test(txn) || sequenceDb.stat(txn).entries == 0) {
+                return;
+            }
+        }
+        LOG.info("Rebuild {} index for: {}", indexName, getDatabaseDir());
+        SequenceKeyFlyweight currentKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight firstKeyOfGroup = new SequenceKeyFlyweight(lmdbEnvironment.maxKeySize());
+        ByteBuffer resumeKeyBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+        ByteBuffer nextResumeKeyBuffer = ByteBuffer.allocateDirect(lmdbEnvironment.maxKeySize());
+        boolean resume = false;
+        boolean found = true;
+        while (found) {
+            try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnWrite()) {
+                // the cursor must be closed before commit
+                try (Cursor<ByteBuffer> cursor = sequenceDb.openCursor(txn)) {
+                    found = resume ? cursor.get(resumeKeyBuffer, GetOp.MDB_SET_RANGE) : cursor.first();
+                    long chunkCount = 0;
+                    while (found) {
+                        firstKeyOfGroup.copyFrom(currentKey.wrap(cursor.key()));
+                        long size = 0;
+                        do {
+                            size++;
+                            found = cursor.next();
+                        } while (groupByPosition && found && firstKeyOfGroup.positionEquals(currentKey.wrap(cursor.key())));
+
+                        indexer.index(txn, targetDb, firstKeyOfGroup, size);
+
+                        chunkCount += size;
+                        if (found && chunkCount >= batchSize * 10L) {
+                            nextResumeKeyBuffer.clear();
+                            nextResumeKeyBuffer.put(cursor.key().duplicate()).flip();
+                            break;
+                        }
+                    }
+                }
+                if (!found) {
+                    markIndexed.accept(txn);
+                }
+                txn.commit();
+                // resume at the next group only when the chunk is committed
+                if (found) {
+                    resumeKeyBuffer.clear();
+                    resumeKeyBuffer.put(nextResumeKeyBuffer.duplicate()).flip();
+                    resume = true;
+                }
+            } catch (Env.MapFullException e) {
+                lmdbEnvironment.growMapSize();
+                found = true;
+                continue;
             }
+            lmdbEnvironment.growMapSizeAhead();
         }
+        LOG.info("Done rebuilding {} index for: {}", indexName, getDatabaseDir());
     }
 
     public void readSequence(BiConsumer<SequenceKey, Boolean> visit) {
-        try (Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
+        try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnRead()) {
             Iterator<CursorIterable.KeyVal<ByteBuffer>> it = sequenceDb.iterate(txn).iterator();
             while (it.hasNext()) {
                 CursorIterable.KeyVal<ByteBuffer> next = it.next();
@@ -85,11 +408,70 @@ public class IntegrityCheckIndex implements AutoCloseable {
         }
     }
 
+    public void readPositionDuplicates(Predicate<SequenceDbHelper.DuplicateEvent> visit) {
+        new SequenceDbHelper(lmdbEnvironment, sequenceDb).handlePositionDuplicates(visit);
+    }
+
+    /**
+     * Record the earliest duplicate found by a full scan of the index. Must be called when all sequences are committed.
+     *
+     * @param earliestDuplicate first occurrence of the earliest duplicate or null if the index has no duplicates
+     */
+    public void writeEarliestDuplicate(SequenceKey earliestDuplicate) {
+        while (true) {
+            try (LmdbEnvironment.TxnGuard guard = lmdbEnvironment.txnGuard(); Txn<ByteBuffer> txn = lmdbEnvironment.env().txnWrite()) {
+                if (earliestDuplicate != null) {
+                    metadata.mergeDuplicate(txn, earliestDuplicate.toByteBuffer(duplicateKeyBuffer.clear()));
+                }
+                metadata.trackDuplicates(txn);
+                txn.commit();
+                return;
+            } catch (Env.MapFullException e) {
+                lmdbEnvironment.growMapSize();
+            }
+        }
+    }
+
     @Override
     public void close() {
-        commitQueue();
-        keyBufferPool.close();
-        contentBufferPool.close();
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.close();
+        } finally {
+            if (keyBufferSlab.transientAllocations() > 0) {
+                LOG.debug("Key buffer slab was exhausted {} times", keyBufferSlab.transientAllocations());
+            }
+        }
+    }
+
+    /**
+     * A duplicate detected at write time. The first occurrence of a duplicate carries both the first and the
+     * current ulid, while later occurrences only carry the current ulid.
+     */
+    public static class DuplicateOccurrence {
+        private final String position;
+        private final List<ULID.Value> ulids;
+        private final long occurrences;
+
+        DuplicateOccurrence(String position, List<ULID.Value> ulids, long occurrences) {
+            this.position = position;
+            this.ulids = ulids;
+            this.occurrences = occurrences;
+        }
+
+        public String position() {
+            return position;
+        }
+
+        public List<ULID.Value> ulids() {
+            return ulids;
+        }
+
+        public long occurrences() {
+            return occurrences;
+        }
     }
 
 }
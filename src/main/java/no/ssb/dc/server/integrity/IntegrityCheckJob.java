@@ -1,6 +1,6 @@
 package no.ssb.dc.server.integrity;
 
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import de.huxhorn.sulky.ulid.ULID;
 import no.ssb.config.DynamicConfiguration;
@@ -12,95 +12,245 @@ import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.api.util.JsonParser;
 import no.ssb.dc.server.content.ContentStoreComponent;
 import no.ssb.dc.server.db.SequenceKey;
+import no.ssb.rawdata.api.RawdataConsumer;
+import no.ssb.rawdata.api.RawdataMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Runs an integrity check of a topic. Each check mode is a {@link ConsumeStrategy}, and the job holds the steps that
+ * are shared by the modes: receive a message, track its position and write the summary.
+ */
 public class IntegrityCheckJob {
     private static final Logger LOG = LoggerFactory.getLogger(IntegrityCheckJob.class);
 
-    private final DynamicConfiguration configuration;
-    private final ContentStore contentStore;
-    private final IntegrityCheckIndex index;
-    private final IntegrityCheckJobSummary summary;
-    private final AtomicBoolean terminated = new AtomicBoolean(false);
+    static final String POSITION_BITMAP_FILE = "positions.bitmap";
+
+    final DynamicConfiguration configuration;
+    final ContentStore contentStore;
+    final IntegrityCheckIndex index;
+    final IntegrityCheckJobSummary summary;
+    final IntegrityCheckJobOptions options;
+    final AtomicBoolean terminated = new AtomicBoolean(false);
+    private IntegrityCheckJobSummary.GapProgress gapProgress;
+    private IntegrityCheckMetrics metrics;
 
     public IntegrityCheckJob(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent, IntegrityCheckIndex index, IntegrityCheckJobSummary summary) {
+        this(configuration, contentStoreComponent, index, summary, IntegrityCheckJobOptions.create(configuration));
+    }
+
+    public IntegrityCheckJob(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent, IntegrityCheckIndex index, IntegrityCheckJobSummary summary, IntegrityCheckJobOptions options) {
         this.configuration = configuration;
         this.contentStore = contentStoreComponent.getDelegate();
         this.index = index;
         this.summary = summary;
+        this.options = options;
     }
 
     public void consume(String topic) {
         summary.setStarted();
         summary.setTopic(topic);
-        String lastPosition = contentStore.lastPosition(topic);
-        summary.setLastPosition(lastPosition);
-        ContentStream contentStream = contentStore.contentStream();
+        metrics = new IntegrityCheckMetrics(topic, summary);
+        index.onCommit(metrics::observeCommit);
         try {
-            ContentStreamConsumer consumer = contentStream.consumer(topic);
-            ContentStreamBuffer buffer;
-            ContentStreamBuffer peekBuffer = null;
-            boolean test = true;
-            int timeoutInSeconds = 15;
-            if (configuration.evaluateToString("data.collector.integrityCheck.consumer.timeoutInSeconds") != null) {
-                timeoutInSeconds = configuration.evaluateToInt("data.collector.integrityCheck.consumer.timeoutInSeconds");
-            }
-            try {
-                LOG.info("Check integrity for topic: {}", topic);
-                while (!terminated.get() && (buffer = consumer.receive(timeoutInSeconds, TimeUnit.SECONDS)) != null) {
-                    //System.out.printf("consume: %s%n", buffer.position());
-                    peekBuffer = buffer;
-                    summary.setCurrentPosition(buffer.position());
-                    summary.incrementPositionCount();
-
-                    if (test) {
-                        summary.setFirstPosition(buffer.position());
-                        test = false;
-                    }
-
-                    index.writeSequence(buffer.ulid(), buffer.position());
-
-                    if (lastPosition != null && lastPosition.equals(buffer.position())) {
-                        LOG.info("Reached en of stream for topic: {}", topic);
-                        break;
-                    }
-
-                    // release data
-                    buffer.data().clear();
-                    buffer.manifest().clear();
-                }
+            consumeTopic(topic);
+        } finally {
+            metrics.close();
+        }
+    }
 
-                LOG.info("Exited stream consumer for topic: {}", topic);
-            } finally {
-                if (lastPosition == null && peekBuffer != null) {
-                    summary.setLastPosition(peekBuffer.position());
-                }
+    void consumeTopic(String topic) {
+        if (options.isGapDetection()) {
+            // an incremental check adds the tail to the positions of the previous check
+            gapProgress = summary.setGapDetection(options.isIncremental() ? readPositionBitmap() : new PositionBitmap());
+        }
 
-                index.commitQueue();
+        try {
+            createStrategy().consume(topic);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            summary.setEnded();
+            generateSummary(summary.build());
+        }
+    }
 
-                generateReport();
+    ConsumeStrategy createStrategy() {
+        if (options.isBloomFilter()) {
+            return new BloomFilterConsumeStrategy(this);
+        }
+        if (options.isContentHash()) {
+            return new ContentHashConsumeStrategy(this);
+        }
+        if (options.isSample()) {
+            return new SampleConsumeStrategy(this);
+        }
+        return new IndexConsumeStrategy(this);
+    }
 
-                summary.setEnded();
+    // only messages count, because a receive that times out at the end of the stream says nothing about the source
+    ContentStreamBuffer receive(ContentStreamConsumer consumer, int timeoutInSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        ContentStreamBuffer buffer = consumer.receive(timeoutInSeconds, TimeUnit.SECONDS);
+        if (buffer != null && metrics != null) {
+            metrics.observeReceive(System.nanoTime() - start);
+        }
+        return buffer;
+    }
 
-                generateSummary(summary.build());
+    RawdataMessage receive(RawdataConsumer consumer, int timeoutInSeconds) throws Exception {
+        long start = System.nanoTime();
+        RawdataMessage message = consumer.receive(timeoutInSeconds, TimeUnit.SECONDS);
+        if (message != null && metrics != null) {
+            metrics.observeReceive(System.nanoTime() - start);
+        }
+        return message;
+    }
 
-                contentStream.closeAndRemoveConsumer(topic);
+    /**
+     * Receive messages until the handler stops, the receive times out or the job is terminated.
+     *
+     * @return true if the handler stopped
+     */
+    boolean receiveMessages(ContentStreamConsumer consumer, MessageHandler handler) throws Exception {
+        int timeoutInSeconds = consumerTimeoutInSeconds();
+        ContentStreamBuffer buffer;
+        while (!terminated.get() && (buffer = receive(consumer, timeoutInSeconds)) != null) {
+            if (!handler.onMessage(buffer)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-        } catch (Exception e) {
+    /**
+     * Track every received position and hand the message to the handler until the handler stops or the message with
+     * the last ulid has been handled.
+     */
+    void consumeStream(String topic, ContentStreamConsumer consumer, ULID.Value lastUlid, MessageHandler handler) throws Exception {
+        receiveMessages(consumer, buffer -> {
+            track(buffer.position(), true);
+            if (!handler.onMessage(buffer)) {
+                return false;
+            }
+            if (buffer.ulid().equals(lastUlid)) {
+                reachedEndOfStream(topic);
+                return false;
+            }
+            return true;
+        });
+    }
+
+    void reachedEndOfStream(String topic) {
+        LOG.info("Reached end of stream for topic: {}", topic);
+    }
+
+    // the last position may also occur earlier in the stream, so the end of the stream is the ulid of the last message
+    ULID.Value lastUlid(ContentStream contentStream, String topic) throws Exception {
+        ContentStreamBuffer lastMessage = contentStream.lastMessage(topic);
+        return lastMessage == null ? null : lastMessage.ulid();
+    }
+
+    int consumerTimeoutInSeconds() {
+        return configuration.evaluateToString("data.collector.integrityCheck.consumer.timeoutInSeconds") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.consumer.timeoutInSeconds") : 15;
+    }
+
+    /**
+     * Update the summary with a received position. Positions that are checked in parallel must not claim to be the
+     * first position.
+     */
+    void track(String position, boolean mayBeFirstPosition) {
+        summary.setCurrentPosition(position);
+        summary.incrementPositionCount();
+        if (mayBeFirstPosition && summary.getFirstPosition() == null) {
+            summary.setFirstPosition(position);
+        }
+        trackPosition(position);
+    }
+
+    /**
+     * Record a numeric position for gap detection. Other positions are counted, but cannot have gaps.
+     */
+    void trackPosition(String position) {
+        if (gapProgress == null) {
+            return;
+        }
+        // only the canonical form is tracked, so "7" and "007" are never taken for the same position
+        long value = SequenceKey.numericPosition(position);
+        if (value < 0) {
+            gapProgress.incrementNonNumericPositions();
+            return;
+        }
+        gapProgress.positionBitmap.add(value);
+    }
+
+    // write missing position ranges in json format and keep the position bitmap for the next incremental check
+    void writeGapReport() {
+        if (gapProgress == null) {
+            return;
+        }
+        Path reportPath = index.getDatabaseDir().resolve("report");
+        String reportId = ULIDGenerator.toUUID(ULIDGenerator.generate()).toString() + "-gaps.json";
+        LOG.info("Generating gap report to: {}/{}", reportPath, reportId);
+        int numberOfLargestGaps = configuration.evaluateToString("data.collector.integrityCheck.gaps.largest") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.gaps.largest") : 10;
+
+        AtomicLong missingPositions = new AtomicLong();
+        AtomicLong missingRanges = new AtomicLong();
+        // the smallest of the largest gaps is at the head of the queue
+        PriorityQueue<IntegrityCheckJobSummary.GapRange> largestGaps = new PriorityQueue<>(Comparator.comparingLong(gap -> gap.missing));
+        try (JsonArrayWriter writer = new JsonArrayWriter(reportPath, reportId, 5000)) {
+            gapProgress.positionBitmap.forEachGap((from, to) -> {
+                ObjectNode gapNode = writer.parser().createObjectNode();
+                gapNode.put("from", from);
+                gapNode.put("to", to);
+                gapNode.put("missing", to - from + 1);
+                writer.write(gapNode);
+                missingPositions.addAndGet(to - from + 1);
+                missingRanges.incrementAndGet();
+                largestGaps.add(new IntegrityCheckJobSummary.GapRange(from, to));
+                if (largestGaps.size() > numberOfLargestGaps) {
+                    largestGaps.poll();
+                }
+            });
+        }
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(reportPath.resolve(POSITION_BITMAP_FILE))))) {
+            gapProgress.positionBitmap.writeTo(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<IntegrityCheckJobSummary.GapRange> largestGapList = new ArrayList<>(largestGaps);
+        largestGapList.sort(Comparator.comparingLong((IntegrityCheckJobSummary.GapRange gap) -> gap.missing).reversed().thenComparingLong(gap -> gap.from));
+        gapProgress.setGaps(missingPositions.get(), missingRanges.get(), largestGapList, reportId);
+        LOG.info("Done generating gap report. Missing positions: {} in {} ranges", missingPositions.get(), missingRanges.get());
+    }
+
+    PositionBitmap readPositionBitmap() {
+        Path bitmapPath = index.getDatabaseDir().resolve("report").resolve(POSITION_BITMAP_FILE);
+        if (!bitmapPath.toFile().exists()) {
+            return new PositionBitmap();
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(bitmapPath)))) {
+            return PositionBitmap.readFrom(input);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -120,54 +270,20 @@ public class IntegrityCheckJob {
         }
     }
 
-    // generate a duplicate report in json format
-    public void generateReport() {
-        Path reportPath = index.getDatabaseDir().resolve("report");
-        String reportId = ULIDGenerator.toUUID(ULIDGenerator.generate()).toString() + ".json";
-        LOG.info("Generating report to: {}/{}", reportPath, reportId);
-
-        AtomicReference<SequenceKey> prevSequenceKey = new AtomicReference<>();
-        Map<String, Set<ULID.Value>> duplicatePositionAndUlidSet = new LinkedHashMap<>();
-        Map<String, AtomicLong> duplicatePositionCounter = new LinkedHashMap<>();
-
-        try (JsonArrayWriter writer = new JsonArrayWriter(reportPath, reportId, 5000)) {
-            index.readSequence((sequenceKey, hasNext) -> {
-                // mark first position
-                if (prevSequenceKey.get() == null) {
-                    prevSequenceKey.set(sequenceKey);
-                    return;
-                }
-
-                // check if we hit a duplicate on stream
-                if (prevSequenceKey.get().position().equals(sequenceKey.position())) {
-                    // make counters for position and increment duplicateCount
-                    duplicatePositionAndUlidSet.computeIfAbsent(prevSequenceKey.get().position(), duplicateUlidSet -> new TreeSet<>()).add(prevSequenceKey.get().ulid());
-                    duplicatePositionAndUlidSet.get(sequenceKey.position()).add(sequenceKey.ulid());
-                }
-
-                // if we got duplicates then write data
-                if (duplicatePositionAndUlidSet.size() > 0 && (!prevSequenceKey.get().position().equals(sequenceKey.position()) || !hasNext)) {
-                    ObjectNode positionNode = writer.parser().createObjectNode();
-                    ArrayNode ulidArray = writer.parser().createArrayNode();
-                    Set<ULID.Value> ulidSet = duplicatePositionAndUlidSet.get(prevSequenceKey.get().position());
-                    ulidSet.forEach(ulid -> {
-                        ulidArray.add(ULIDGenerator.toUUID(ulid).toString());
-                    });
-                    duplicatePositionCounter.computeIfAbsent(prevSequenceKey.get().position(), counter -> new AtomicLong()).set(ulidSet.size());
-                    positionNode.set(prevSequenceKey.get().position(), ulidArray);
-                    writer.write(positionNode);
-                    duplicatePositionAndUlidSet.clear();
-                }
-
-                // move marker to next
-                prevSequenceKey.set(sequenceKey);
-            });
+    JsonNode readPreviousSummary() {
+        Path summaryFilenamePath = index.getDatabaseDir().resolve("report").resolve("summary.json");
+        if (!summaryFilenamePath.toFile().exists()) {
+            return null;
+        }
+        try {
+            return JsonParser.createJsonParser().fromJson(Files.readString(summaryFilenamePath), JsonNode.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        summary.setReportPath(reportPath);
-        summary.setDuplicateReportId(reportId);
-        summary.setDuplicatePositionStats(duplicatePositionCounter);
-        LOG.info("Done generating report");
+    String createDuplicateReportId() {
+        return ULIDGenerator.toUUID(ULIDGenerator.generate()).toString() + "." + DuplicateReport.fileExtension(options.getReportFormat());
     }
 
     public IntegrityCheckJobSummary.Summary getSummary() {
@@ -175,4 +291,18 @@ public class IntegrityCheckJob {
         return build;
     }
 
+    /**
+     * A check mode. The job writes the summary when the strategy returns.
+     */
+    interface ConsumeStrategy {
+        void consume(String topic) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface MessageHandler {
+        /**
+         * @return false to stop receiving
+         */
+        boolean onMessage(ContentStreamBuffer buffer) throws Exception;
+    }
 }
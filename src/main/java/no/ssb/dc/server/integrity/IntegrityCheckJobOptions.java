@@ -0,0 +1,189 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.config.DynamicConfiguration;
+
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Options for a single integrity check job. Defaults are read from configuration and may be overridden by
+ * query parameters: PUT /check-integrity/TOPIC?incremental=true&slices=4
+ * <p>
+ * The check type "index" writes every sequence key to the Lmdb index, while "bloom" is a fast duplicate scan
+ * using a Bloom filter with a fixed memory budget: PUT /check-integrity/TOPIC?type=bloom
+ * <p>
+ * The check type "content" hashes message data to find identical content under different positions and positions
+ * that occur with differing content: PUT /check-integrity/TOPIC?type=content
+ * <p>
+ * Gap detection records numeric positions in a compressed bitmap and reports missing position ranges:
+ * PUT /check-integrity/TOPIC?gaps=true
+ * <p>
+ * The duplicate report is written as json, ndjson or binary: PUT /check-integrity/TOPIC?format=ndjson
+ * <p>
+ * Inline duplicate detection writes the report while the topic is indexed, with one entry per detected occurrence
+ * rather than one entry per position (see {@link DuplicateReport}): PUT /check-integrity/TOPIC?inline=true
+ * <p>
+ * A monitor keeps following the topic after it has caught up, and reports duplicates as soon as they are indexed
+ * until the job is cancelled: PUT /check-integrity/TOPIC?monitor=true
+ * <p>
+ * The check type "sample" indexes a number of random time windows and estimates the duplicate rate of the topic:
+ * PUT /check-integrity/TOPIC?type=sample&windows=20&windowSize=10000
+ */
+public class IntegrityCheckJobOptions {
+
+    public static final String INDEX_TYPE = "index";
+    public static final String BLOOM_FILTER_TYPE = "bloom";
+    public static final String CONTENT_HASH_TYPE = "content";
+    public static final String SAMPLE_TYPE = "sample";
+
+    final String type;
+    final boolean incremental;
+    final boolean inlineDuplicateDetection;
+    final int slices;
+    final boolean ulidIndex;
+    final boolean gapDetection;
+    final String reportFormat;
+    final boolean monitor;
+    final int sampleWindows;
+    final int sampleWindowSize;
+
+    IntegrityCheckJobOptions(String type, boolean incremental, boolean inlineDuplicateDetection, int slices, boolean ulidIndex, boolean gapDetection,
+                             String reportFormat, boolean monitor, int sampleWindows, int sampleWindowSize) {
+        this.type = type;
+        this.incremental = incremental;
+        // an incremental check depends on the position index to find duplicates in the tail, and a monitor reports
+        // duplicates as they are committed
+        this.inlineDuplicateDetection = incremental || monitor || inlineDuplicateDetection;
+        this.slices = Math.max(1, slices);
+        this.ulidIndex = ulidIndex;
+        this.gapDetection = gapDetection;
+        this.reportFormat = reportFormat;
+        this.monitor = monitor;
+        this.sampleWindows = Math.max(1, sampleWindows);
+        this.sampleWindowSize = Math.max(1, sampleWindowSize);
+    }
+
+    public static IntegrityCheckJobOptions create(DynamicConfiguration configuration) {
+        return create(configuration, Map.of());
+    }
+
+    public static IntegrityCheckJobOptions create(DynamicConfiguration configuration, Map<String, Deque<String>> queryParameters) {
+        String type = stringParameter(queryParameters, "type", INDEX_TYPE);
+        if (!INDEX_TYPE.equals(type) && !BLOOM_FILTER_TYPE.equals(type) && !CONTENT_HASH_TYPE.equals(type) && !SAMPLE_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Illegal value for query parameter 'type': " + type);
+        }
+        boolean incremental = booleanParameter(queryParameters, "incremental", false);
+        if (incremental && !INDEX_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Only an index check can be incremental");
+        }
+        boolean inlineDuplicateDetection = booleanParameter(queryParameters, "inline",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.inlineDuplicateDetection") != null &&
+                        configuration.evaluateToBoolean("data.collector.integrityCheck.inlineDuplicateDetection"));
+        int slices = intParameter(queryParameters, "slices",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.slices") != null ?
+                        configuration.evaluateToInt("data.collector.integrityCheck.slices") : 1);
+        boolean ulidIndex = booleanParameter(queryParameters, "ulidIndex",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.ulidIndex") != null &&
+                        configuration.evaluateToBoolean("data.collector.integrityCheck.ulidIndex"));
+        boolean gapDetection = booleanParameter(queryParameters, "gaps",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.gapDetection") != null &&
+                        configuration.evaluateToBoolean("data.collector.integrityCheck.gapDetection"));
+        String reportFormat = stringParameter(queryParameters, "format",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.report.format") != null ?
+                        configuration.evaluateToString("data.collector.integrityCheck.report.format") : DuplicateReport.JSON_FORMAT);
+        if (!DuplicateReport.isFormat(reportFormat)) {
+            throw new IllegalArgumentException("Illegal value for query parameter 'format': " + reportFormat);
+        }
+        boolean monitor = booleanParameter(queryParameters, "monitor",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.monitor") != null &&
+                        configuration.evaluateToBoolean("data.collector.integrityCheck.monitor"));
+        if (monitor && !INDEX_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Only an index check can monitor a topic");
+        }
+        if (gapDetection && SAMPLE_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Gap detection requires all positions and is not supported by a sample check");
+        }
+        int sampleWindows = intParameter(queryParameters, "windows",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.sample.windows") != null ?
+                        configuration.evaluateToInt("data.collector.integrityCheck.sample.windows") : 20);
+        int sampleWindowSize = intParameter(queryParameters, "windowSize",
+                configuration != null && configuration.evaluateToString("data.collector.integrityCheck.sample.windowSize") != null ?
+                        configuration.evaluateToInt("data.collector.integrityCheck.sample.windowSize") : 10000);
+        return new IntegrityCheckJobOptions(type, incremental, inlineDuplicateDetection, slices, ulidIndex, gapDetection, reportFormat, monitor,
+                sampleWindows, sampleWindowSize);
+    }
+
+    static String stringParameter(Map<String, Deque<String>> queryParameters, String name, String defaultValue) {
+        if (queryParameters == null || !queryParameters.containsKey(name) || queryParameters.get(name).isEmpty()) {
+            return defaultValue;
+        }
+        return queryParameters.get(name).getFirst();
+    }
+
+    static boolean booleanParameter(Map<String, Deque<String>> queryParameters, String name, boolean defaultValue) {
+        String value = stringParameter(queryParameters, name, null);
+        // a flag without value, e.g. ?incremental, is treated as true
+        return value == null ? defaultValue : value.isEmpty() || Boolean.parseBoolean(value);
+    }
+
+    static int intParameter(Map<String, Deque<String>> queryParameters, String name, int defaultValue) {
+        String value = stringParameter(queryParameters, name, null);
+        try {
+            return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for query parameter '" + name + "': " + value);
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isBloomFilter() {
+        return BLOOM_FILTER_TYPE.equals(type);
+    }
+
+    public boolean isContentHash() {
+        return CONTENT_HASH_TYPE.equals(type);
+    }
+
+    public boolean isSample() {
+        return SAMPLE_TYPE.equals(type);
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isInlineDuplicateDetection() {
+        return inlineDuplicateDetection;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public boolean isUlidIndex() {
+        return ulidIndex;
+    }
+
+    public boolean isGapDetection() {
+        return gapDetection;
+    }
+
+    public String getReportFormat() {
+        return reportFormat;
+    }
+
+    public boolean isMonitor() {
+        return monitor;
+    }
+
+    public int getSampleWindows() {
+        return sampleWindows;
+    }
+
+    public int getSampleWindowSize() {
+        return sampleWindowSize;
+    }
+}
@@ -3,22 +3,29 @@ package no.ssb.dc.server.integrity;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import de.huxhorn.sulky.ulid.ULID;
 import no.ssb.dc.api.health.HealthResourceUtils;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.server.db.SequenceKey;
 
+import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.file.Path;
-import java.text.DecimalFormat;
 import java.time.Instant;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 public class IntegrityCheckJobSummary {
 
     private final AtomicReference<String> topic = new AtomicReference<>();
+    private final AtomicReference<String> mode = new AtomicReference<>("FULL");
+    private final AtomicBoolean queued = new AtomicBoolean();
     private final AtomicBoolean running = new AtomicBoolean();
     private final AtomicLong started = new AtomicLong();
     private final AtomicLong ended = new AtomicLong();
@@ -26,11 +33,18 @@ public class IntegrityCheckJobSummary {
     private final AtomicReference<String> lastPosition = new AtomicReference<>();
     private final AtomicReference<String> currentPosition = new AtomicReference<>();
     private final AtomicLong positionCount = new AtomicLong();
+    private final ThroughputMeter throughputMeter = new ThroughputMeter();
+    private final AtomicReference<ULID.Value> lastUlid = new AtomicReference<>();
     private final AtomicReference<Path> duplicateReportPath = new AtomicReference<>();
     private final AtomicReference<String> duplicateReportId = new AtomicReference<>();
     private final AtomicLong duplicatePositions = new AtomicLong();
     private final AtomicLong affectedPositions = new AtomicLong();
-    private final Map<String, AtomicLong> duplicatePositionCount = new LinkedHashMap<>();
+    private final List<SliceProgress> slices = new CopyOnWriteArrayList<>();
+    private final AtomicReference<BloomFilterProgress> bloomFilter = new AtomicReference<>();
+    private final AtomicReference<ContentHashProgress> contentHash = new AtomicReference<>();
+    private final AtomicReference<GapProgress> gaps = new AtomicReference<>();
+    private final AtomicReference<MonitorProgress> monitor = new AtomicReference<>();
+    private final AtomicReference<SampleProgress> sample = new AtomicReference<>();
 
     public IntegrityCheckJobSummary() {
     }
@@ -40,7 +54,18 @@ public class IntegrityCheckJobSummary {
         return this;
     }
 
+    IntegrityCheckJobSummary setMode(String mode) {
+        this.mode.set(mode);
+        return this;
+    }
+
+    IntegrityCheckJobSummary setQueued() {
+        queued.set(true);
+        return this;
+    }
+
     IntegrityCheckJobSummary setStarted() {
+        queued.set(false);
         running.set(true);
         started.set(Instant.now().toEpochMilli());
         return this;
@@ -75,11 +100,85 @@ public class IntegrityCheckJobSummary {
         return this;
     }
 
+    public String getFirstPosition() {
+        return firstPosition.get();
+    }
+
+    public ULID.Value getLastUlid() {
+        return lastUlid.get();
+    }
+
+    IntegrityCheckJobSummary setLastUlid(ULID.Value ulid) {
+        lastUlid.set(ulid);
+        return this;
+    }
+
+    public long getPositionCount() {
+        return positionCount.get();
+    }
+
     IntegrityCheckJobSummary incrementPositionCount() {
         positionCount.incrementAndGet();
+        throughputMeter.mark();
         return this;
     }
 
+    ThroughputMeter throughputMeter() {
+        return throughputMeter;
+    }
+
+    /**
+     * Estimate the time it takes to reach the last position at the one minute rate. Only numeric positions tell how
+     * many positions remain.
+     *
+     * @return seconds remaining or null if unknown
+     */
+    Long estimatedSecondsRemaining() {
+        if (!running.get()) {
+            return null;
+        }
+        return estimatedSecondsRemaining(throughputMeter.oneMinuteRate());
+    }
+
+    Long estimatedSecondsRemaining(double rate) {
+        if (rate <= 0) {
+            return null;
+        }
+        if (slices.size() <= 1) {
+            Long remainingPositions = positionDistance(currentPosition.get(), lastPosition.get());
+            return remainingPositions == null ? null : (long) Math.ceil(remainingPositions / rate);
+        }
+        // the current position jumps between slices, so each running slice is measured against the first position
+        // of the next slice. The running slices share the rate and the slice with the least progress ends last.
+        long maxRemainingPositions = 0;
+        int runningSlices = 0;
+        for (int n = 0; n < slices.size(); n++) {
+            SliceProgress slice = slices.get(n);
+            if (!"RUNNING".equals(slice.getStatus())) {
+                continue;
+            }
+            String endPosition = n + 1 < slices.size() ? slices.get(n + 1).getFirstPosition() : lastPosition.get();
+            Long remainingPositions = positionDistance(slice.getCurrentPosition(), endPosition);
+            if (remainingPositions == null) {
+                return null;
+            }
+            maxRemainingPositions = Math.max(maxRemainingPositions, remainingPositions);
+            runningSlices++;
+        }
+        return (long) Math.ceil(maxRemainingPositions * runningSlices / rate);
+    }
+
+    static Long positionDistance(String fromPosition, String toPosition) {
+        if (fromPosition == null || toPosition == null) {
+            return null;
+        }
+        try {
+            return Math.max(0, Long.parseLong(toPosition) - Long.parseLong(fromPosition));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public IntegrityCheckJobSummary setReportPath(Path reportPath) {
         duplicateReportPath.set(reportPath);
         return this;
@@ -90,13 +189,75 @@ public class IntegrityCheckJobSummary {
         return this;
     }
 
-    public IntegrityCheckJobSummary setDuplicatePositionStats(Map<String, AtomicLong> duplicatePositionCounter) {
-        AtomicLong duplicatePositionCount = new AtomicLong(0);
-        duplicatePositionCounter.forEach((key, value) -> {
-            duplicatePositionCount.addAndGet(value.get());
-        });
-        duplicatePositions.set(duplicatePositionCount.get());
-        affectedPositions.set(duplicatePositionCounter.size());
+    public IntegrityCheckJobSummary setDuplicatePositionStats(long duplicatePositionCount, long affectedPositionCount) {
+        duplicatePositions.set(duplicatePositionCount);
+        affectedPositions.set(affectedPositionCount);
+        return this;
+    }
+
+    /**
+     * Count a duplicate detected at write time. A position is affected once it occurs for the second time.
+     */
+    public IntegrityCheckJobSummary incrementDuplicatePositions(long occurrences) {
+        if (occurrences == 2) {
+            duplicatePositions.addAndGet(2);
+            affectedPositions.incrementAndGet();
+        } else {
+            duplicatePositions.incrementAndGet();
+        }
+        return this;
+    }
+
+    SliceProgress addSlice(int index, long fromTimestamp, long toTimestamp) {
+        SliceProgress slice = new SliceProgress(index, fromTimestamp, toTimestamp);
+        slices.add(slice);
+        return slice;
+    }
+
+    BloomFilterProgress setBloomFilter(CountingBloomFilter filter) {
+        BloomFilterProgress progress = new BloomFilterProgress(filter.memoryInBytes(), filter.numberOfCounters(), filter.numberOfHashFunctions());
+        bloomFilter.set(progress);
+        return progress;
+    }
+
+    ContentHashProgress setContentHash(int hashThreads) {
+        ContentHashProgress progress = new ContentHashProgress(hashThreads);
+        contentHash.set(progress);
+        return progress;
+    }
+
+    GapProgress setGapDetection(PositionBitmap positionBitmap) {
+        GapProgress progress = new GapProgress(positionBitmap);
+        gaps.set(progress);
+        return progress;
+    }
+
+    MonitorProgress setMonitor() {
+        MonitorProgress progress = new MonitorProgress();
+        monitor.set(progress);
+        return progress;
+    }
+
+    SampleProgress setSample(int windows, int windowSize) {
+        SampleProgress progress = new SampleProgress(windows, windowSize);
+        sample.set(progress);
+        return progress;
+    }
+
+    /**
+     * Restore counters from the summary of a previous check, so an incremental check reports totals for the topic
+     */
+    IntegrityCheckJobSummary restore(JsonNode previousSummary) {
+        if (previousSummary.hasNonNull("firstPosition")) {
+            firstPosition.set(previousSummary.get("firstPosition").asText());
+        }
+        positionCount.set(previousSummary.path("checkedPositions").asLong());
+        duplicatePositions.set(previousSummary.path("duplicatePositions").asLong());
+        affectedPositions.set(previousSummary.path("affectedPositions").asLong());
+        if (previousSummary.hasNonNull("lastUlid")) {
+            UUID uuid = UUID.fromString(previousSummary.get("lastUlid").asText());
+            lastUlid.set(new ULID.Value(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
         return this;
     }
 
@@ -115,12 +276,49 @@ public class IntegrityCheckJobSummary {
                 duplicateReportPath.get(),
                 duplicateReportId.get()
         );
+        summary.mode = mode.get();
+        if (queued.get()) {
+            summary.status = "QUEUED";
+            summary.started = null;
+            summary.ended = null;
+            summary.since = null;
+        }
+        if (running.get()) {
+            summary.throughput = new ThroughputSummary(throughputMeter);
+            summary.estimatedSecondsRemaining = estimatedSecondsRemaining();
+            if (summary.estimatedSecondsRemaining != null) {
+                summary.estimatedCompletion = Instant.now().plusSeconds(summary.estimatedSecondsRemaining).toString();
+            }
+        }
+        // a Bloom filter check does not build an index, and sample and content checks build indexes that must not be extended
+        boolean extendable = bloomFilter.get() == null && sample.get() == null && contentHash.get() == null;
+        summary.keyFormat = extendable ? SequenceKey.FORMAT_VERSION : 0;
+        summary.lastUlid = !extendable || lastUlid.get() == null ? null : ULIDGenerator.toUUID(lastUlid.get()).toString();
+        if (slices.size() > 1) {
+            summary.slices = slices.stream().map(SliceProgress::build).collect(Collectors.toList());
+        }
+        if (bloomFilter.get() != null) {
+            summary.bloomFilter = bloomFilter.get().build();
+        }
+        if (contentHash.get() != null) {
+            summary.contentHash = contentHash.get().build();
+        }
+        if (gaps.get() != null) {
+            summary.gaps = gaps.get().build();
+        }
+        if (monitor.get() != null) {
+            summary.monitor = monitor.get().build();
+        }
+        if (sample.get() != null) {
+            summary.sample = sample.get().build();
+        }
         return summary;
     }
 
     @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class Summary {
         @JsonProperty public String topic;
+        @JsonProperty public String mode;
         @JsonProperty public String status;
         @JsonProperty public String started;
         @JsonProperty public String ended;
@@ -128,12 +326,23 @@ public class IntegrityCheckJobSummary {
         @JsonProperty public String firstPosition;
         @JsonProperty public String lastPosition;
         @JsonProperty public String currentPosition;
+        @JsonProperty public String lastUlid;
+        @JsonProperty public int keyFormat;
         @JsonProperty public long checkedPositions;
         @JsonProperty public float averageCheckedPositionsPerSecond;
+        @JsonProperty public ThroughputSummary throughput;
+        @JsonProperty public Long estimatedSecondsRemaining;
+        @JsonProperty public String estimatedCompletion;
         @JsonProperty public long duplicatePositions;
         @JsonProperty public long affectedPositions;
+        @JsonProperty public List<SliceSummary> slices;
+        @JsonProperty public BloomFilterSummary bloomFilter;
+        @JsonProperty public ContentHashSummary contentHash;
+        @JsonProperty public GapSummary gaps;
+        @JsonProperty public MonitorSummary monitor;
+        @JsonProperty public SampleSummary sample;
         @JsonIgnore public final Path reportPath;
-        @JsonIgnore public final String reportId;
+        @JsonProperty public final String reportId;
 
         public Summary(String topic, boolean running, long started, long ended,
                        String firstPosition, String lastPosition, String currentPosition, long checkedPositions,
@@ -154,9 +363,457 @@ public class IntegrityCheckJobSummary {
 
             long now = System.currentTimeMillis();
             Float averageRequestPerSecond = HealthResourceUtils.divide(checkedPositions, (now - started) / 1000);
-            DecimalFormat df = new DecimalFormat("#.##");
-            df.setRoundingMode(RoundingMode.UP);
-            this.averageCheckedPositionsPerSecond = Float.parseFloat(df.format(averageRequestPerSecond));
+            this.averageCheckedPositionsPerSecond = roundUp(averageRequestPerSecond);
+        }
+    }
+
+    // two decimals rounded away from zero, without creating a DecimalFormat for every summary
+    static float roundUp(double value) {
+        return BigDecimal.valueOf(value).setScale(2, RoundingMode.UP).floatValue();
+    }
+
+    /**
+     * Rolling rates of checked positions per second
+     */
+    public static class ThroughputSummary {
+        @JsonProperty public float oneMinuteRate;
+        @JsonProperty public float fiveMinuteRate;
+        @JsonProperty public float fifteenMinuteRate;
+
+        public ThroughputSummary(ThroughputMeter meter) {
+            this.oneMinuteRate = roundUp(meter.oneMinuteRate());
+            this.fiveMinuteRate = roundUp(meter.fiveMinuteRate());
+            this.fifteenMinuteRate = roundUp(meter.fifteenMinuteRate());
+        }
+    }
+
+    /**
+     * Progress of a consumer that checks the ulid time range [fromTimestamp, toTimestamp)
+     */
+    public static class SliceProgress {
+        final int index;
+        final long fromTimestamp;
+        final long toTimestamp;
+        private final AtomicReference<String> status = new AtomicReference<>("RUNNING");
+        private final AtomicReference<String> firstPosition = new AtomicReference<>();
+        private final AtomicReference<String> currentPosition = new AtomicReference<>();
+        private final AtomicReference<ULID.Value> lastUlid = new AtomicReference<>();
+        private final AtomicLong positionCount = new AtomicLong();
+
+        SliceProgress(int index, long fromTimestamp, long toTimestamp) {
+            this.index = index;
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+        }
+
+        boolean isOpenEnded() {
+            return toTimestamp == Long.MAX_VALUE;
+        }
+
+        String getStatus() {
+            return status.get();
+        }
+
+        void setStatus(String status) {
+            this.status.set(status);
+        }
+
+        String getFirstPosition() {
+            return firstPosition.get();
+        }
+
+        String getCurrentPosition() {
+            return currentPosition.get();
+        }
+
+        ULID.Value getLastUlid() {
+            return lastUlid.get();
+        }
+
+        void update(String position, ULID.Value ulid) {
+            firstPosition.compareAndSet(null, position);
+            currentPosition.set(position);
+            lastUlid.set(ulid);
+            positionCount.incrementAndGet();
+        }
+
+        SliceSummary build() {
+            return new SliceSummary(index, fromTimestamp, toTimestamp, status.get(), currentPosition.get(), positionCount.get());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class SliceSummary {
+        @JsonProperty public int slice;
+        @JsonProperty public String from;
+        @JsonProperty public String to;
+        @JsonProperty public String status;
+        @JsonProperty public String currentPosition;
+        @JsonProperty public long checkedPositions;
+
+        public SliceSummary(int slice, long fromTimestamp, long toTimestamp, String status, String currentPosition, long checkedPositions) {
+            this.slice = slice;
+            this.from = Instant.ofEpochMilli(fromTimestamp).toString();
+            this.to = toTimestamp == Long.MAX_VALUE ? null : Instant.ofEpochMilli(toTimestamp).toString();
+            this.status = status;
+            this.currentPosition = currentPosition;
+            this.checkedPositions = checkedPositions;
+        }
+    }
+
+    /**
+     * Progress of a Bloom filter check. False positives are known when the suspected positions have been confirmed.
+     */
+    public static class BloomFilterProgress {
+        final long memoryInBytes;
+        final long numberOfCounters;
+        final int numberOfHashFunctions;
+        private final AtomicLong suspectedPositions = new AtomicLong();
+        private final AtomicBoolean suspectedPositionsTruncated = new AtomicBoolean();
+        private final AtomicReference<Double> estimatedFalsePositiveRate = new AtomicReference<>(0.0);
+        private final AtomicReference<Long> falsePositives = new AtomicReference<>();
+        private final AtomicReference<Double> observedFalsePositiveRate = new AtomicReference<>();
+
+        BloomFilterProgress(long memoryInBytes, long numberOfCounters, int numberOfHashFunctions) {
+            this.memoryInBytes = memoryInBytes;
+            this.numberOfCounters = numberOfCounters;
+            this.numberOfHashFunctions = numberOfHashFunctions;
+        }
+
+        void incrementSuspectedPositions() {
+            suspectedPositions.incrementAndGet();
+        }
+
+        void setSuspectedPositionsTruncated() {
+            suspectedPositionsTruncated.set(true);
+        }
+
+        void setEstimatedFalsePositiveRate(double rate) {
+            estimatedFalsePositiveRate.set(rate);
+        }
+
+        void setFalsePositives(long falsePositiveCount, long distinctPositions) {
+            falsePositives.set(falsePositiveCount);
+            observedFalsePositiveRate.set(distinctPositions == 0 ? 0.0 : (double) falsePositiveCount / distinctPositions);
+        }
+
+        BloomFilterSummary build() {
+            return new BloomFilterSummary(memoryInBytes, numberOfCounters, numberOfHashFunctions, suspectedPositions.get(),
+                    suspectedPositionsTruncated.get() ? Boolean.TRUE : null, estimatedFalsePositiveRate.get(),
+                    falsePositives.get(), observedFalsePositiveRate.get());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class BloomFilterSummary {
+        @JsonProperty public long memoryInBytes;
+        @JsonProperty public long counters;
+        @JsonProperty public int hashFunctions;
+        @JsonProperty public long suspectedPositions;
+        @JsonProperty public Boolean suspectedPositionsTruncated;
+        @JsonProperty public double estimatedFalsePositiveRate;
+        @JsonProperty public Long falsePositives;
+        @JsonProperty public Double observedFalsePositiveRate;
+
+        public BloomFilterSummary(long memoryInBytes, long counters, int hashFunctions, long suspectedPositions, Boolean suspectedPositionsTruncated,
+                                  double estimatedFalsePositiveRate, Long falsePositives, Double observedFalsePositiveRate) {
+            this.memoryInBytes = memoryInBytes;
+            this.counters = counters;
+            this.hashFunctions = hashFunctions;
+            this.suspectedPositions = suspectedPositions;
+            this.suspectedPositionsTruncated = suspectedPositionsTruncated;
+            this.estimatedFalsePositiveRate = estimatedFalsePositiveRate;
+            this.falsePositives = falsePositives;
+            this.observedFalsePositiveRate = observedFalsePositiveRate;
+        }
+    }
+
+    /**
+     * Progress of a content hash check. Duplicates and collisions are known when all messages have been hashed.
+     */
+    public static class ContentHashProgress {
+        final int hashThreads;
+        private final AtomicLong hashedMessages = new AtomicLong();
+        private final AtomicLong hashedBytes = new AtomicLong();
+        private final AtomicReference<Long> payloadDuplicates = new AtomicReference<>();
+        private final AtomicReference<Long> payloadDuplicatePositions = new AtomicReference<>();
+        private final AtomicReference<Long> contentCollisions = new AtomicReference<>();
+
+        ContentHashProgress(int hashThreads) {
+            this.hashThreads = hashThreads;
+        }
+
+        void incrementHashedMessages(long bytes) {
+            hashedMessages.incrementAndGet();
+            hashedBytes.addAndGet(bytes);
+        }
+
+        void setPayloadDuplicateStats(long payloadDuplicateCount, long payloadDuplicatePositionCount) {
+            payloadDuplicates.set(payloadDuplicateCount);
+            payloadDuplicatePositions.set(payloadDuplicatePositionCount);
+        }
+
+        void setContentCollisions(long contentCollisionCount) {
+            contentCollisions.set(contentCollisionCount);
+        }
+
+        ContentHashSummary build() {
+            return new ContentHashSummary(hashThreads, hashedMessages.get(), hashedBytes.get(), payloadDuplicates.get(),
+                    payloadDuplicatePositions.get(), contentCollisions.get());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class ContentHashSummary {
+        @JsonProperty public int hashThreads;
+        @JsonProperty public long hashedMessages;
+        @JsonProperty public long hashedBytes;
+        @JsonProperty public Long payloadDuplicates;
+        @JsonProperty public Long payloadDuplicatePositions;
+        @JsonProperty public Long contentCollisions;
+
+        public ContentHashSummary(int hashThreads, long hashedMessages, long hashedBytes, Long payloadDuplicates,
+                                  Long payloadDuplicatePositions, Long contentCollisions) {
+            this.hashThreads = hashThreads;
+            this.hashedMessages = hashedMessages;
+            this.hashedBytes = hashedBytes;
+            this.payloadDuplicates = payloadDuplicates;
+            this.payloadDuplicatePositions = payloadDuplicatePositions;
+            this.contentCollisions = contentCollisions;
+        }
+    }
+
+    /**
+     * Progress of gap detection. Missing positions are known when the check has ended.
+     */
+    public static class GapProgress {
+        final PositionBitmap positionBitmap;
+        private final AtomicLong nonNumericPositions = new AtomicLong();
+        private final AtomicReference<Long> missingPositions = new AtomicReference<>();
+        private final AtomicReference<Long> missingRanges = new AtomicReference<>();
+        private final AtomicReference<List<GapRange>> largestGaps = new AtomicReference<>();
+        private final AtomicReference<String> reportId = new AtomicReference<>();
+
+        GapProgress(PositionBitmap positionBitmap) {
+            this.positionBitmap = positionBitmap;
+        }
+
+        void incrementNonNumericPositions() {
+            nonNumericPositions.incrementAndGet();
+        }
+
+        void setGaps(long missingPositionCount, long missingRangeCount, List<GapRange> largestGapList, String gapReportId) {
+            missingPositions.set(missingPositionCount);
+            missingRanges.set(missingRangeCount);
+            largestGaps.set(largestGapList);
+            reportId.set(gapReportId);
+        }
+
+        GapSummary build() {
+            long lowestPosition = positionBitmap.min();
+            long highestPosition = positionBitmap.max();
+            return new GapSummary(positionBitmap.cardinality(), nonNumericPositions.get(),
+                    lowestPosition < 0 ? null : lowestPosition, highestPosition < 0 ? null : highestPosition,
+                    missingPositions.get(), missingRanges.get(), largestGaps.get(), positionBitmap.memoryInBytes(), reportId.get());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class GapSummary {
+        @JsonProperty public long trackedPositions;
+        @JsonProperty public long nonNumericPositions;
+        @JsonProperty public Long lowestPosition;
+        @JsonProperty public Long highestPosition;
+        @JsonProperty public Long missingPositions;
+        @JsonProperty public Long missingRanges;
+        @JsonProperty public List<GapRange> largestGaps;
+        @JsonProperty public long memoryInBytes;
+        @JsonProperty public String reportId;
+
+        public GapSummary(long trackedPositions, long nonNumericPositions, Long lowestPosition, Long highestPosition, Long missingPositions,
+                          Long missingRanges, List<GapRange> largestGaps, long memoryInBytes, String reportId) {
+            this.trackedPositions = trackedPositions;
+            this.nonNumericPositions = nonNumericPositions;
+            this.lowestPosition = lowestPosition;
+            this.highestPosition = highestPosition;
+            this.missingPositions = missingPositions;
+            this.missingRanges = missingRanges;
+            this.largestGaps = largestGaps;
+            this.memoryInBytes = memoryInBytes;
+            this.reportId = reportId;
+        }
+    }
+
+    public static class GapRange {
+        @JsonProperty public long from;
+        @JsonProperty public long to;
+        @JsonProperty public long missing;
+
+        public GapRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.missing = to - from + 1;
+        }
+    }
+
+    /**
+     * Progress of a monitor. A monitor is tailing when it has reached the last position or waited for new messages.
+     */
+    public static class MonitorProgress {
+        private final AtomicLong caughtUp = new AtomicLong();
+        private final AtomicLong lastReceived = new AtomicLong();
+        private final AtomicLong tailedPositions = new AtomicLong();
+        private final AtomicLong detectedDuplicates = new AtomicLong();
+        private final AtomicReference<String> lastDuplicatePosition = new AtomicReference<>();
+        private final AtomicLong lastDetectionDelayInMillis = new AtomicLong();
+
+        boolean isTailing() {
+            return caughtUp.get() > 0;
+        }
+
+        void setCaughtUp() {
+            caughtUp.compareAndSet(0, Instant.now().toEpochMilli());
+        }
+
+        void onReceived() {
+            lastReceived.set(Instant.now().toEpochMilli());
+            if (isTailing()) {
+                tailedPositions.incrementAndGet();
+            }
+        }
+
+        /**
+         * @param published timestamp of the ulid that completed the duplicate
+         */
+        void onDuplicate(String position, long published) {
+            detectedDuplicates.incrementAndGet();
+            lastDuplicatePosition.set(position);
+            lastDetectionDelayInMillis.set(Math.max(0, Instant.now().toEpochMilli() - published));
+        }
+
+        MonitorSummary build() {
+            return new MonitorSummary(caughtUp.get(), lastReceived.get(), tailedPositions.get(), detectedDuplicates.get(),
+                    lastDuplicatePosition.get(), lastDuplicatePosition.get() == null ? null : lastDetectionDelayInMillis.get());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class MonitorSummary {
+        @JsonProperty public String status;
+        @JsonProperty public String caughtUp;
+        @JsonProperty public String lastReceived;
+        @JsonProperty public long tailedPositions;
+        @JsonProperty public long detectedDuplicates;
+        @JsonProperty public String lastDuplicatePosition;
+        @JsonProperty public Long lastDetectionDelayInMillis;
+
+        public MonitorSummary(long caughtUp, long lastReceived, long tailedPositions, long detectedDuplicates,
+                              String lastDuplicatePosition, Long lastDetectionDelayInMillis) {
+            this.status = caughtUp > 0 ? "TAILING" : "CATCHING_UP";
+            this.caughtUp = caughtUp > 0 ? Instant.ofEpochMilli(caughtUp).toString() : null;
+            this.lastReceived = lastReceived > 0 ? Instant.ofEpochMilli(lastReceived).toString() : null;
+            this.tailedPositions = tailedPositions;
+            this.detectedDuplicates = detectedDuplicates;
+            this.lastDuplicatePosition = lastDuplicatePosition;
+            this.lastDetectionDelayInMillis = lastDetectionDelayInMillis;
+        }
+    }
+
+    /**
+     * Progress of a sample check. The estimate is known when all windows have been sampled.
+     */
+    public static class SampleProgress {
+        final int windows;
+        final int windowSize;
+        private final AtomicLong fromTimestamp = new AtomicLong();
+        private final AtomicLong toTimestamp = new AtomicLong();
+        private final AtomicLong sampledWindows = new AtomicLong();
+        private final AtomicReference<SampleEstimate> estimate = new AtomicReference<>();
+
+        SampleProgress(int windows, int windowSize) {
+            this.windows = windows;
+            this.windowSize = windowSize;
+        }
+
+        void setTimeRange(long fromTimestamp, long toTimestamp) {
+            this.fromTimestamp.set(fromTimestamp);
+            this.toTimestamp.set(toTimestamp);
+        }
+
+        void incrementSampledWindows() {
+            sampledWindows.incrementAndGet();
+        }
+
+        void setEstimate(DuplicateRateEstimator estimator) {
+            estimate.set(new SampleEstimate(estimator, estimator.estimatedMessages(toTimestamp.get() - fromTimestamp.get())));
+        }
+
+        SampleSummary build() {
+            return new SampleSummary(windows, windowSize, fromTimestamp.get(), toTimestamp.get(), sampledWindows.get(), estimate.get());
+        }
+    }
+
+    static class SampleEstimate {
+        final long sampledMessages;
+        final long duplicateMessages;
+        final double duplicateRate;
+        final double duplicateRateLowerBound;
+        final double duplicateRateUpperBound;
+        final double designEffect;
+        final Long estimatedMessages;
+
+        SampleEstimate(DuplicateRateEstimator estimator, Long estimatedMessages) {
+            this.sampledMessages = estimator.messages();
+            this.duplicateMessages = estimator.duplicateMessages();
+            this.duplicateRate = estimator.rate();
+            this.duplicateRateLowerBound = estimator.lowerBound();
+            this.duplicateRateUpperBound = estimator.upperBound();
+            this.designEffect = estimator.designEffect();
+            this.estimatedMessages = estimatedMessages;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class SampleSummary {
+        @JsonProperty public int windows;
+        @JsonProperty public int windowSize;
+        @JsonProperty public String from;
+        @JsonProperty public String to;
+        @JsonProperty public long sampledWindows;
+        @JsonProperty public Long sampledMessages;
+        @JsonProperty public Long duplicateMessages;
+        @JsonProperty public Double confidenceLevel;
+        @JsonProperty public Double duplicateRate;
+        @JsonProperty public Double duplicateRateLowerBound;
+        @JsonProperty public Double duplicateRateUpperBound;
+        @JsonProperty public Double designEffect;
+        @JsonProperty public Long estimatedMessages;
+        @JsonProperty public Long estimatedDuplicateMessages;
+        @JsonProperty public Long estimatedDuplicateMessagesLowerBound;
+        @JsonProperty public Long estimatedDuplicateMessagesUpperBound;
+
+        public SampleSummary(int windows, int windowSize, long fromTimestamp, long toTimestamp, long sampledWindows, SampleEstimate estimate) {
+            this.windows = windows;
+            this.windowSize = windowSize;
+            this.from = fromTimestamp > 0 ? Instant.ofEpochMilli(fromTimestamp).toString() : null;
+            this.to = toTimestamp > 0 ? Instant.ofEpochMilli(toTimestamp).toString() : null;
+            this.sampledWindows = sampledWindows;
+            if (estimate == null) {
+                return;
+            }
+            this.sampledMessages = estimate.sampledMessages;
+            this.duplicateMessages = estimate.duplicateMessages;
+            this.confidenceLevel = DuplicateRateEstimator.CONFIDENCE_LEVEL;
+            this.duplicateRate = estimate.duplicateRate;
+            this.duplicateRateLowerBound = estimate.duplicateRateLowerBound;
+            this.duplicateRateUpperBound = estimate.duplicateRateUpperBound;
+            this.designEffect = estimate.designEffect;
+            this.estimatedMessages = estimate.estimatedMessages;
+            if (estimate.estimatedMessages != null) {
+                this.estimatedDuplicateMessages = Math.round(estimate.duplicateRate * estimate.estimatedMessages);
+                this.estimatedDuplicateMessagesLowerBound = Math.round(estimate.duplicateRateLowerBound * estimate.estimatedMessages);
+                this.estimatedDuplicateMessagesUpperBound = Math.round(estimate.duplicateRateUpperBound * estimate.estimatedMessages);
+            }
         }
     }
 
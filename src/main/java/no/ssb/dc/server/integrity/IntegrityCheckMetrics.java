@@ -0,0 +1,104 @@
+package no.ssb.dc.server.integrity;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Integrity check metrics that are exported by the metrics endpoint. Rates and the estimated time remaining are
+ * read from the job summary when the metrics are scraped, and latencies are observed by the job and the index writer.
+ * <p>
+ * A slow consumer receive points at the source or the network, and slow commits point at LMDB.
+ */
+public class IntegrityCheckMetrics {
+
+    static final Histogram RECEIVE_LATENCY = Histogram.build()
+            .name("data_collector_integrity_check_receive_seconds")
+            .help("Integrity check content stream receive latency in seconds")
+            .labelNames("topic")
+            .exponentialBuckets(0.0001, 4, 10)
+            .register();
+
+    static final Histogram COMMIT_DURATION = Histogram.build()
+            .name("data_collector_integrity_check_commit_seconds")
+            .help("Integrity check index batch commit duration in seconds")
+            .labelNames("topic")
+            .exponentialBuckets(0.001, 4, 10)
+            .register();
+
+    static final Gauge CHECKED_POSITIONS = Gauge.build()
+            .name("data_collector_integrity_check_checked_positions")
+            .help("Integrity check positions checked by the current or last job")
+            .labelNames("topic")
+            .register();
+
+    static final Gauge THROUGHPUT = Gauge.build()
+            .name("data_collector_integrity_check_positions_per_second")
+            .help("Integrity check rolling rate of checked positions per second")
+            .labelNames("topic", "window")
+            .register();
+
+    static final Gauge ESTIMATED_TIME_REMAINING = Gauge.build()
+            .name("data_collector_integrity_check_estimated_seconds_remaining")
+            .help("Integrity check estimated seconds until the last position has been checked, or -1 if unknown")
+            .labelNames("topic")
+            .register();
+
+    private final String topic;
+    private final IntegrityCheckJobSummary summary;
+    private final Histogram.Child receiveLatency;
+    private final Histogram.Child commitDuration;
+
+    IntegrityCheckMetrics(String topic, IntegrityCheckJobSummary summary) {
+        this.topic = topic;
+        this.summary = summary;
+        this.receiveLatency = RECEIVE_LATENCY.labels(topic);
+        this.commitDuration = COMMIT_DURATION.labels(topic);
+        CHECKED_POSITIONS.setChild(new SummaryGauge(summary::getPositionCount), topic);
+        ThroughputMeter meter = summary.throughputMeter();
+        THROUGHPUT.setChild(new SummaryGauge(meter::oneMinuteRate), topic, "1m");
+        THROUGHPUT.setChild(new SummaryGauge(meter::fiveMinuteRate), topic, "5m");
+        THROUGHPUT.setChild(new SummaryGauge(meter::fifteenMinuteRate), topic, "15m");
+        ESTIMATED_TIME_REMAINING.setChild(new SummaryGauge(() -> {
+            Long secondsRemaining = summary.estimatedSecondsRemaining();
+            return secondsRemaining == null ? -1 : secondsRemaining;
+        }), topic);
+    }
+
+    /**
+     * Detach the gauges from the job summary when the job has ended, so the summary is not held by the registry. The
+     * checked positions of the last job are kept, while rates and the time remaining are removed.
+     */
+    void close() {
+        Gauge.Child checkedPositions = new Gauge.Child();
+        checkedPositions.set(summary.getPositionCount());
+        CHECKED_POSITIONS.setChild(checkedPositions, topic);
+        THROUGHPUT.remove(topic, "1m");
+        THROUGHPUT.remove(topic, "5m");
+        THROUGHPUT.remove(topic, "15m");
+        ESTIMATED_TIME_REMAINING.remove(topic);
+    }
+
+    void observeReceive(long nanos) {
+        receiveLatency.observe(nanos / Collector.NANOSECONDS_PER_SECOND);
+    }
+
+    void observeCommit(long nanos) {
+        commitDuration.observe(nanos / Collector.NANOSECONDS_PER_SECOND);
+    }
+
+    static class SummaryGauge extends Gauge.Child {
+        private final DoubleSupplier value;
+
+        SummaryGauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public double get() {
+            return value.getAsDouble();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.api.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs integrity check jobs on dedicated threads, so jobs never occupy the common fork join pool. Each content
+ * store backend has a cap on concurrent jobs, and jobs beyond the cap wait in a FIFO queue until a running job ends.
+ * <p>
+ * The cap is read from data.collector.integrityCheck.scheduler.maxConcurrentJobs.BACKEND, and falls back to
+ * data.collector.integrityCheck.scheduler.maxConcurrentJobs. A monitor holds its slot until it is cancelled.
+ */
+public class IntegrityCheckScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IntegrityCheckScheduler.class);
+
+    static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+
+    private final DynamicConfiguration configuration;
+    private final Map<String, Backend> backends = new ConcurrentHashMap<>();
+
+    public IntegrityCheckScheduler(DynamicConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * The backend of the configured content store, e.g. the rawdata client provider
+     */
+    static String backendOf(DynamicConfiguration configuration) {
+        if (configuration != null && configuration.evaluateToString("rawdata.client.provider") != null) {
+            return configuration.evaluateToString("rawdata.client.provider");
+        }
+        return configuration != null && configuration.evaluateToString("content.stream.connector") != null ?
+                configuration.evaluateToString("content.stream.connector") : "default";
+    }
+
+    int maxConcurrentJobs(String backend) {
+        String backendKey = "data.collector.integrityCheck.scheduler.maxConcurrentJobs." + backend;
+        if (configuration != null && configuration.evaluateToString(backendKey) != null) {
+            return Math.max(1, configuration.evaluateToInt(backendKey));
+        }
+        return configuration != null && configuration.evaluateToString("data.collector.integrityCheck.scheduler.maxConcurrentJobs") != null ?
+                Math.max(1, configuration.evaluateToInt("data.collector.integrityCheck.scheduler.maxConcurrentJobs")) : DEFAULT_MAX_CONCURRENT_JOBS;
+    }
+
+    /**
+     * Run a job now if the backend has a free slot, or queue it behind the jobs that are waiting
+     *
+     * @param task calls {@link ScheduledJob#signalStarted()} when the job has been set up and is running
+     */
+    public ScheduledJob submit(String backend, String topic, IntegrityCheckJobSummary summary, JobTask task) {
+        Backend queue = backends.computeIfAbsent(backend, key -> new Backend(key, maxConcurrentJobs(key)));
+        ScheduledJob scheduledJob = new ScheduledJob(topic, summary, task);
+        queue.submit(scheduledJob);
+        return scheduledJob;
+    }
+
+    @Override
+    public void close() {
+        for (Backend backend : backends.values()) {
+            backend.close();
+        }
+    }
+
+    @FunctionalInterface
+    public interface JobTask {
+        void run(ScheduledJob scheduledJob);
+    }
+
+    public static class ScheduledJob {
+        final String topic;
+        final IntegrityCheckJobSummary summary;
+        final JobTask task;
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+        private volatile boolean dispatched;
+        private volatile boolean cancelled;
+
+        ScheduledJob(String topic, IntegrityCheckJobSummary summary, JobTask task) {
+            this.topic = topic;
+            this.summary = summary;
+            this.task = task;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public IntegrityCheckJobSummary getSummary() {
+            return summary;
+        }
+
+        public boolean isQueued() {
+            return !dispatched && !cancelled;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void signalStarted() {
+            started.complete(null);
+        }
+
+        /**
+         * Wait until a dispatched job has started. A job that failed to start rethrows its error.
+         *
+         * @return false if the job is still queued or did not start in time
+         */
+        public boolean awaitStarted(long timeout, TimeUnit unit) {
+            if (!dispatched) {
+                return false;
+            }
+            try {
+                started.get(timeout, unit);
+                return true;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+
+        public CompletableFuture<Void> completed() {
+            return completed;
+        }
+
+        /**
+         * Remove a queued job. A job that has been dispatched must be terminated instead.
+         *
+         * @return true if the job was queued
+         */
+        public synchronized boolean cancel() {
+            if (dispatched) {
+                return false;
+            }
+            cancelled = true;
+            started.cancel(false);
+            completed.cancel(false);
+            return true;
+        }
+
+        synchronized boolean dispatch() {
+            if (cancelled) {
+                return false;
+            }
+            dispatched = true;
+            return true;
+        }
+
+        void run() {
+            try {
+                task.run(this);
+                started.complete(null);
+                completed.complete(null);
+            } catch (RuntimeException | Error e) {
+                LOG.error("Integrity check of topic {} ended exceptionally with error: {}", topic, CommonUtils.captureStackTrace(e));
+                started.completeExceptionally(e);
+                completed.completeExceptionally(e);
+            }
+        }
+    }
+
+    static class Backend {
+        final String name;
+        final int maxConcurrentJobs;
+        final ExecutorService executor;
+        private final Deque<ScheduledJob> queue = new ArrayDeque<>();
+        private int runningJobs;
+
+        Backend(String name, int maxConcurrentJobs) {
+            this.name = name;
+            this.maxConcurrentJobs = maxConcurrentJobs;
+            this.executor = Executors.newFixedThreadPool(maxConcurrentJobs, new JobThreadFactory(name));
+        }
+
+        synchronized void submit(ScheduledJob scheduledJob) {
+            if (runningJobs < maxConcurrentJobs && scheduledJob.dispatch()) {
+                runningJobs++;
+                executor.execute(() -> runAndDispatchNext(scheduledJob));
+            } else {
+                LOG.info("Queue integrity check of topic {}. Backend {} is running {} of {} jobs", scheduledJob.topic, name, runningJobs, maxConcurrentJobs);
+                queue.addLast(scheduledJob);
+            }
+        }
+
+        private void runAndDispatchNext(ScheduledJob scheduledJob) {
+            try {
+                scheduledJob.run();
+            } finally {
+                dispatchNext();
+            }
+        }
+
+        // the slot of a completed job goes to the oldest job in the queue that has not been cancelled
+        private synchronized void dispatchNext() {
+            runningJobs--;
+            ScheduledJob next;
+            while ((next = queue.pollFirst()) != null) {
+                if (next.dispatch()) {
+                    runningJobs++;
+                    ScheduledJob dispatchedJob = next;
+                    executor.execute(() -> runAndDispatchNext(dispatchedJob));
+                    return;
+                }
+            }
+        }
+
+        synchronized void close() {
+            queue.forEach(ScheduledJob::cancel);
+            queue.clear();
+            executor.shutdownNow();
+        }
+    }
+
+    static class JobThreadFactory implements ThreadFactory {
+        private final String backend;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        JobThreadFactory(String backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "integrity-check-" + backend + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package no.ssb.dc.server.integrity;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import de.huxhorn.sulky.ulid.ULID;
 import no.ssb.config.DynamicConfiguration;
-import no.ssb.dc.api.util.CommonUtils;
+import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.api.util.JsonParser;
 import no.ssb.dc.application.spi.Service;
 import no.ssb.dc.server.content.ContentStoreComponent;
 import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import no.ssb.dc.server.db.SequenceDbCatalog;
+import no.ssb.dc.server.db.SequenceDbHelper;
+import no.ssb.dc.server.db.SequenceDbSnapshot;
+import no.ssb.dc.server.db.SequenceKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,12 +25,14 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -34,11 +45,17 @@ public class IntegrityCheckService implements Service {
 
     final DynamicConfiguration configuration;
     final ContentStoreComponent contentStoreComponent;
+    final LmdbEnvironmentComponent lmdbEnvironmentComponent;
     final Map<String, IntegrityCheckJob> jobs = new ConcurrentHashMap<>();
+    // jobs that are queued or running, until they complete
+    final Map<String, IntegrityCheckScheduler.ScheduledJob> scheduledJobs = new ConcurrentHashMap<>();
+    final IntegrityCheckScheduler scheduler;
 
-    public IntegrityCheckService(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent) {
+    public IntegrityCheckService(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent, LmdbEnvironmentComponent lmdbEnvironmentComponent) {
         this.configuration = configuration;
         this.contentStoreComponent = contentStoreComponent;
+        this.lmdbEnvironmentComponent = lmdbEnvironmentComponent;
+        this.scheduler = new IntegrityCheckScheduler(configuration);
     }
 
     @Override
@@ -48,32 +65,31 @@ public class IntegrityCheckService implements Service {
 
     @Override
     public void start() {
+        // load the catalog of previously completed jobs
+        lmdbEnvironmentComponent.catalog();
     }
 
     @Override
     public void stop() {
+        scheduler.close();
         for (Map.Entry<String, IntegrityCheckJob> entry : jobs.entrySet()) {
             entry.getValue().terminate();
         }
     }
 
     public boolean hasJob(String topic) {
-        if (jobs.containsKey(topic)) {
-            return true;
-        }
-
-        List<JobStatus> previouslyCompletedJobs = getPreviouslyCompletedJobs();
-        if (previouslyCompletedJobs.contains(new JobStatus(topic, "CLOSED"))) {
-            return true;
-        }
-
-        return false;
+        return jobs.containsKey(topic) || isJobQueued(topic) || lmdbEnvironmentComponent.catalog().contains(topic);
     }
 
     public boolean isJobRunning(String topic) {
         return jobs.containsKey(topic) && "RUNNING".equals(jobs.get(topic).getSummary().status);
     }
 
+    public boolean isJobQueued(String topic) {
+        IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduledJobs.get(topic);
+        return scheduledJob != null && scheduledJob.isQueued();
+    }
+
     public boolean removeJobIfClosed(String topic) {
         if (jobs.containsKey(topic) && !"RUNNING".equals(jobs.get(topic).getSummary().status)) {
             jobs.remove(topic);
@@ -82,99 +98,176 @@ public class IntegrityCheckService implements Service {
         return false;
     }
 
-    public void createJob(String topic) {
-        if (isJobRunning(topic)) {
-            return;
+    public IntegrityCheckScheduler.ScheduledJob createJob(String topic) {
+        return createJob(topic, IntegrityCheckJobOptions.create(configuration));
+    }
+
+    /**
+     * Schedule a job and wait until it has started. A job that exceeds the concurrency cap of the content store
+     * backend is queued, and this method returns immediately.
+     *
+     * @return the scheduled job or null if a job is already queued or running for the topic
+     */
+    public IntegrityCheckScheduler.ScheduledJob createJob(String topic, IntegrityCheckJobOptions options) {
+        IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduleJob(topic, options);
+        if (scheduledJob == null) {
+            return null;
+        }
+
+        if (scheduledJob.isQueued()) {
+            LOG.info("Check integrity of topic {} is queued", topic);
+            return scheduledJob;
+        }
+        // wait outside the lock, so other topics can be scheduled meanwhile
+        int startTimeoutInSeconds = configuration.evaluateToString("data.collector.integrityCheck.scheduler.startTimeoutInSeconds") != null ?
+                configuration.evaluateToInt("data.collector.integrityCheck.scheduler.startTimeoutInSeconds") : 30;
+        if (!scheduledJob.awaitStarted(startTimeoutInSeconds, TimeUnit.SECONDS)) {
+            LOG.warn("Check integrity of topic {} has not started within {} seconds", topic, startTimeoutInSeconds);
+        }
+        return scheduledJob;
+    }
+
+    // a scheduled job is registered until it has completed, so a topic is never scheduled twice
+    synchronized IntegrityCheckScheduler.ScheduledJob scheduleJob(String topic, IntegrityCheckJobOptions options) {
+        if (isJobRunning(topic) || scheduledJobs.containsKey(topic)) {
+            return null;
         }
 
+        IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary().setTopic(topic).setQueued();
+        IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduler.submit(IntegrityCheckScheduler.backendOf(configuration), topic, summary,
+                startedJob -> runJob(topic, options, startedJob));
+        scheduledJobs.put(topic, scheduledJob);
+        scheduledJob.completed().whenComplete((result, throwable) -> scheduledJobs.remove(topic, scheduledJob));
+        return scheduledJob;
+    }
+
+    // runs on a scheduler thread when the job has been dispatched
+    void runJob(String topic, IntegrityCheckJobOptions options, IntegrityCheckScheduler.ScheduledJob scheduledJob) {
         Path dbLocation = getSequenceDatabaseLocation(configuration);
         LOG.trace("Database path: {}", dbLocation);
 
-        LmdbEnvironment.removePath(dbLocation.resolve(topic));
-
-        CompletableFuture<IntegrityCheckJob> future = CompletableFuture.supplyAsync(() -> {
-            try (LmdbEnvironment lmdbEnvironment = new LmdbEnvironment(configuration, dbLocation, topic)) {
-                try (IntegrityCheckIndex index = new IntegrityCheckIndex(lmdbEnvironment)) {
-                    IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary();
-                    IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, summary);
-                    jobs.put(topic, job);
-                    job.consume(topic);
-                    LOG.info("Check integrity of topic {} completed successfully at position {}!", topic, summary.getLastPosition());
-                    return job;
-                }
+        Path reportPath = dbLocation.resolve(topic).resolve("report");
+        if (options.isIncremental() && hasCompatibleIndex(reportPath.resolve("summary.json"))) {
+            // keep the index and remove the full summary report, which is regenerated on request
+            LmdbEnvironment.removePath(reportPath.resolve(topic + ".json"));
+        } else {
+            // the database can only be removed when no one else holds the environment, e.g. a recovery worker
+            if (!lmdbEnvironmentComponent.evict(dbLocation, topic)) {
+                throw new IllegalStateException("Lmdb database is in use for topic: " + topic);
             }
-        }).exceptionally(throwable -> {
-            LOG.error("Ended exceptionally with error: {}", CommonUtils.captureStackTrace(throwable));
-            if (throwable instanceof RuntimeException) {
-                throw (RuntimeException) throwable;
-            } else if (throwable instanceof Error) {
-                throw (Error) throwable;
-            } else {
-                throw new RuntimeException(throwable);
+            LmdbEnvironment.removePath(dbLocation.resolve(topic));
+        }
+
+        try (LmdbEnvironment lmdbEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, topic)) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJobSummary summary = scheduledJob.getSummary();
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, summary, options);
+                summary.setStarted();
+                jobs.put(topic, job);
+                scheduledJob.signalStarted();
+                job.consume(topic);
+                LOG.info("Check integrity of topic {} completed successfully at position {}!", topic, summary.getLastPosition());
             }
-        });
-
-        int failCount = 10;
-        while (jobs.get(topic) == null) {
-            try {
-                if (failCount == 0) break;
-                TimeUnit.MILLISECONDS.sleep(5);
-                failCount--;
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        } finally {
+            // pick up the new summary without waiting for the file system watcher
+            lmdbEnvironmentComponent.catalog().refresh(topic);
+        }
+    }
+
+    // an index can only be extended if it was written using the current key format
+    boolean hasCompatibleIndex(Path summaryPath) {
+        if (!summaryPath.toFile().exists()) {
+            return false;
+        }
+        try {
+            JsonNode summaryNode = JsonParser.createJsonParser().fromJson(Files.readString(summaryPath), JsonNode.class);
+            boolean compatible = summaryNode.path("keyFormat").asInt() == SequenceKey.FORMAT_VERSION;
+            if (!compatible) {
+                LOG.warn("Index has an old key format or was not built by a full check, and will be rebuilt: {}", summaryPath.getParent().getParent());
             }
+            return compatible;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     public List<JobStatus> getJobs() {
-        List<JobStatus> jobStatusList = jobs.values().stream()
-                .map(job -> {
-                    IntegrityCheckJobSummary.Summary summary = job.getSummary();
-                    return new JobStatus(summary.topic, summary.status);
-                }).collect(Collectors.toList());
-
-        List<JobStatus> previouslyCompletedJobs = getPreviouslyCompletedJobs();
-
-        // merge previous completed jobs - restore from file system
-        for (JobStatus previousCompletedJob : previouslyCompletedJobs) {
-            if (!jobStatusList.contains(previousCompletedJob)) {
-                jobStatusList.addAll(previouslyCompletedJobs);
+        Map<String, JobStatus> jobStatusByTopic = new LinkedHashMap<>();
+        for (IntegrityCheckJob job : jobs.values()) {
+            IntegrityCheckJobSummary.Summary summary = job.getSummary();
+            jobStatusByTopic.put(summary.topic, new JobStatus(summary.topic, summary.status));
+        }
+
+        for (IntegrityCheckScheduler.ScheduledJob scheduledJob : scheduledJobs.values()) {
+            if (scheduledJob.isQueued()) {
+                jobStatusByTopic.put(scheduledJob.getTopic(), new JobStatus(scheduledJob.getTopic(), "QUEUED"));
             }
         }
-        return jobStatusList;
+
+        // merge previously completed jobs from the catalog
+        for (JobStatus previouslyCompletedJob : getPreviouslyCompletedJobs()) {
+            jobStatusByTopic.putIfAbsent(previouslyCompletedJob.topic, previouslyCompletedJob);
+        }
+        return new ArrayList<>(jobStatusByTopic.values());
     }
 
     List<JobStatus> getPreviouslyCompletedJobs() {
-        try {
-            Path dbLocation = getSequenceDatabaseLocation(configuration);
-            return Files.list(dbLocation).filter(path -> path.toFile().isDirectory())
-                    .map(path -> new JobStatus(path.getFileName().toString(), "CLOSED")).collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return lmdbEnvironmentComponent.catalog().topics().stream()
+                .map(topic -> new JobStatus(topic, "CLOSED")).collect(Collectors.toList());
     }
 
     public IntegrityCheckJobSummary.Summary getJobSummary(String topic) {
+        IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduledJobs.get(topic);
+        if (scheduledJob != null && scheduledJob.isQueued()) {
+            return scheduledJob.getSummary().build();
+        }
+
         if (jobs.containsKey(topic)) {
             return jobs.get(topic).getSummary();
         }
 
-        // try load summary from filesystem if exists
-        List<JobStatus> jobStatusList = getJobs();
-        if (!jobStatusList.contains(new JobStatus(topic, "CLOSED"))) {
+        // the summary of a previously completed job is cached by the catalog
+        SequenceDbCatalog catalog = lmdbEnvironmentComponent.catalog();
+        if (!catalog.contains(topic)) {
             throw new IllegalStateException("Job not found for topic: " + topic);
         }
+        return catalog.getSummary(topic, IntegrityCheckJobSummary.Summary.class);
+    }
 
-        Path summaryPath = getSequenceDatabaseLocation(configuration).resolve(topic).resolve("report").resolve("summary.json");
-        if (!summaryPath.toFile().exists()) {
-            return null;
+    // render a report in a compact format as a pretty printed json array
+    static void writeDuplicatesAsJsonArray(Path reportFilePath, Writer writer) throws IOException {
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartArray();
+            DuplicateReport.read(reportFilePath, (position, ulids) -> {
+                try {
+                    generator.writeStartObject();
+                    generator.writeArrayFieldStart(position);
+                    for (ULID.Value ulid : ulids) {
+                        generator.writeString(ULIDGenerator.toUUID(ulid).toString());
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            generator.writeEndArray();
         }
-        try {
-            String summaryJson = Files.readString(summaryPath);
-            return JsonParser.createJsonParser().fromJson(summaryJson, IntegrityCheckJobSummary.Summary.class);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        writer.write(System.lineSeparator());
+    }
+
+    /**
+     * @return a file in the report directory of a topic or null if the report does not exist
+     */
+    public Path getReportFile(String topic, String reportId) {
+        Path reportPath = getSequenceDatabaseLocation(configuration).resolve(topic).resolve("report");
+        Path reportFilePath = reportPath.resolve(reportId).normalize();
+        if (!reportFilePath.startsWith(reportPath) || !reportFilePath.toFile().isFile()) {
+            return null;
         }
+        return reportFilePath;
     }
 
     Path writeJobSummaryReport(String topic, Path summaryReportFilePath, IntegrityCheckJobSummary.Summary summary) {
@@ -213,19 +306,23 @@ public class IntegrityCheckService implements Service {
 
                     // write full summary
                     jsonSummaryBufferedWriter.write(" ,\"duplicates\" : ");
-                    try (BufferedReader jsonReportReader = new BufferedReader(new FileReader(reportFilePath.toFile()))) {
-                        String jsonReportLine = jsonReportReader.readLine();
-                        boolean skippedReportLine = false;
-                        while (jsonReportLine != null) {
-                            if (skippedReportLine) {
-                                jsonSummaryBufferedWriter.write("    ");
-                            }
-                            if (!skippedReportLine) {
-                                skippedReportLine = true;
+                    if (!DuplicateReport.JSON_FORMAT.equals(DuplicateReport.formatOf(reportFilePath))) {
+                        writeDuplicatesAsJsonArray(reportFilePath, jsonSummaryBufferedWriter);
+                    } else {
+                        try (BufferedReader jsonReportReader = new BufferedReader(new FileReader(reportFilePath.toFile()))) {
+                            String jsonReportLine = jsonReportReader.readLine();
+                            boolean skippedReportLine = false;
+                            while (jsonReportLine != null) {
+                                if (skippedReportLine) {
+                                    jsonSummaryBufferedWriter.write("    ");
+                                }
+                                if (!skippedReportLine) {
+                                    skippedReportLine = true;
+                                }
+                                jsonSummaryBufferedWriter.write(jsonReportLine);
+                                jsonSummaryBufferedWriter.newLine();
+                                jsonReportLine = jsonReportReader.readLine();
                             }
-                            jsonSummaryBufferedWriter.write(jsonReportLine);
-                            jsonSummaryBufferedWriter.newLine();
-                            jsonReportLine = jsonReportReader.readLine();
                         }
                     }
 
@@ -240,7 +337,73 @@ public class IntegrityCheckService implements Service {
         return reportFilePath;
     }
 
+    /**
+     * Find the sequence keys that were received in a time range using the ulid index of a topic
+     *
+     * @return sequence keys in ulid order or null if the topic has no ulid index
+     */
+    public List<SequenceKey> findUlidRange(String topic, long fromTimestamp, long toTimestamp, int limit) {
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        if (!dbLocation.resolve(topic).toFile().exists()) {
+            return null;
+        }
+        try (LmdbEnvironment lmdbEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, topic)) {
+            SequenceDbHelper sequenceDbHelper = new SequenceDbHelper(lmdbEnvironment, lmdbEnvironment.open());
+            if (!sequenceDbHelper.isUlidIndexed()) {
+                return null;
+            }
+            List<SequenceKey> sequenceKeys = new ArrayList<>();
+            sequenceDbHelper.handleUlidRange(fromTimestamp, toTimestamp, sequenceKey -> {
+                sequenceKeys.add(sequenceKey);
+                return sequenceKeys.size() < limit;
+            });
+            return sequenceKeys;
+        }
+    }
+
+    /**
+     * Find a page of duplicated positions in key order by reading the sequence database of a topic
+     *
+     * @param afterPosition  exclusive start position or null to start at the first position
+     * @param positionPrefix position prefix or null to match all positions
+     * @return duplicates or null if the topic has no sequence database
+     * @throws IllegalArgumentException if the after position or the prefix exceeds the max key size
+     */
+    public List<SequenceDbHelper.DuplicateEvent> findDuplicates(String topic, String afterPosition, String positionPrefix, int limit) {
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        if (!dbLocation.resolve(topic).toFile().exists()) {
+            return null;
+        }
+        try (LmdbEnvironment lmdbEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, topic)) {
+            SequenceDbHelper sequenceDbHelper = new SequenceDbHelper(lmdbEnvironment, lmdbEnvironment.open());
+            List<SequenceDbHelper.DuplicateEvent> duplicates = new ArrayList<>();
+            sequenceDbHelper.handlePositionDuplicates(afterPosition, positionPrefix, event -> {
+                duplicates.add(event);
+                return duplicates.size() < limit;
+            });
+            return duplicates;
+        }
+    }
+
+    /**
+     * Create a compacted snapshot of the sequence database of a topic
+     *
+     * @return the snapshot or null if the topic has no sequence database
+     */
+    public SequenceDbSnapshot.Snapshot createSnapshot(String topic) {
+        return new SequenceDbSnapshot(configuration, lmdbEnvironmentComponent).create(topic);
+    }
+
+    public List<SequenceDbSnapshot.Snapshot> getSnapshots(String topic) {
+        return new SequenceDbSnapshot(configuration, lmdbEnvironmentComponent).list(topic);
+    }
+
     public void cancelJob(String topic) {
+        IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduledJobs.get(topic);
+        if (scheduledJob != null && scheduledJob.cancel()) {
+            LOG.info("Cancelled queued check integrity of topic {}", topic);
+            return;
+        }
         if (!isJobRunning(topic)) {
             return;
         }
@@ -1,9 +1,10 @@
 package no.ssb.dc.server.integrity;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import no.ssb.dc.api.util.JsonParser;
 
 import java.io.FileOutputStream;
@@ -14,7 +15,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class JsonArrayWriter implements AutoCloseable {
     private final FileOutputStream out;
-    private final SequenceWriter sequenceWriter;
+    private final JsonGenerator generator;
+    private final ObjectWriter nodeWriter;
     private final int flushBufferCount;
     private final AtomicInteger counter = new AtomicInteger(0);
     private final ObjectMapper mapper;
@@ -27,9 +29,10 @@ public class JsonArrayWriter implements AutoCloseable {
             out = new FileOutputStream(workPath.resolve(filename).toFile());
             jsonParser = JsonParser.createJsonParser();
             mapper = jsonParser.mapper();
-            ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
-            sequenceWriter = writer.writeValues(out);
-            sequenceWriter.init(true);
+            generator = mapper.getFactory().createGenerator(out);
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartArray();
+            nodeWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -44,10 +47,17 @@ public class JsonArrayWriter implements AutoCloseable {
     }
 
     public void write(JsonNode node) {
+        write(generator -> nodeWriter.writeValue(generator, node));
+    }
+
+    /**
+     * Write an element directly to the generator, so a large element does not have to be held in memory
+     */
+    public void write(ElementWriter elementWriter) {
         try {
-            sequenceWriter.write(node);
+            elementWriter.write(generator);
             if (counter.incrementAndGet() == flushBufferCount) {
-                sequenceWriter.flush();
+                generator.flush();
                 counter.set(0);
             }
         } catch (IOException e) {
@@ -58,11 +68,16 @@ public class JsonArrayWriter implements AutoCloseable {
     @Override
     public void close() {
         try {
-            sequenceWriter.flush();
-            sequenceWriter.close();
+            generator.writeEndArray();
+            generator.close();
             out.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    @FunctionalInterface
+    public interface ElementWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
 }
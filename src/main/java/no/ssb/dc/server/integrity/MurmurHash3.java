@@ -0,0 +1,137 @@
+package no.ssb.dc.server.integrity;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MurmurHash3 x64 128-bit variant. The hash is returned as two longs, where h1 holds the first 8 bytes of the
+ * little-endian digest.
+ */
+public class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    public static long[] hash128(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long[] hash = new long[2];
+        hash128(bytes, 0, bytes.length, 0, hash);
+        return hash;
+    }
+
+    /**
+     * @param hash receives h1 and h2
+     */
+    public static void hash128(byte[] data, int offset, int length, long seed, long[] hash) {
+        long h1 = seed;
+        long h2 = seed;
+        int blocks = length / 16;
+
+        for (int i = 0; i < blocks; i++) {
+            int blockOffset = offset + i * 16;
+            long k1 = getLongLittleEndian(data, blockOffset);
+            long k2 = getLongLittleEndian(data, blockOffset + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // tail
+        int tailOffset = offset + blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15:
+                k2 ^= (long) (data[tailOffset + 14] & 0xff) << 48;
+            case 14:
+                k2 ^= (long) (data[tailOffset + 13] & 0xff) << 40;
+            case 13:
+                k2 ^= (long) (data[tailOffset + 12] & 0xff) << 32;
+            case 12:
+                k2 ^= (long) (data[tailOffset + 11] & 0xff) << 24;
+            case 11:
+                k2 ^= (long) (data[tailOffset + 10] & 0xff) << 16;
+            case 10:
+                k2 ^= (long) (data[tailOffset + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= data[tailOffset + 8] & 0xff;
+                h2 ^= mixK2(k2);
+            case 8:
+                k1 ^= (long) (data[tailOffset + 7] & 0xff) << 56;
+            case 7:
+                k1 ^= (long) (data[tailOffset + 6] & 0xff) << 48;
+            case 6:
+                k1 ^= (long) (data[tailOffset + 5] & 0xff) << 40;
+            case 5:
+                k1 ^= (long) (data[tailOffset + 4] & 0xff) << 32;
+            case 4:
+                k1 ^= (long) (data[tailOffset + 3] & 0xff) << 24;
+            case 3:
+                k1 ^= (long) (data[tailOffset + 2] & 0xff) << 16;
+            case 2:
+                k1 ^= (long) (data[tailOffset + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= data[tailOffset] & 0xff;
+                h1 ^= mixK1(k1);
+        }
+
+        // finalization
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        hash[0] = h1;
+        hash[1] = h2;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,311 @@
+package no.ssb.dc.server.integrity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compressed bitmap of non-negative numeric positions. Positions are split into blocks of 65536 values keyed by the
+ * high bits, and each block uses the smallest of three representations: a sorted array of the low bits while the
+ * block is sparse, a bitmap when it is dense, and no data at all when it is full. A contiguous run of positions
+ * takes a few bytes per block, so hundreds of millions of positions with few gaps fit in a few kilobytes.
+ * <p>
+ * Methods are synchronized, so a bitmap can be shared by concurrent consumers.
+ */
+public class PositionBitmap {
+
+    static final int BLOCK_SIZE = 1 << 16;
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final byte ARRAY_BLOCK = 0;
+    private static final byte BITMAP_BLOCK = 1;
+    private static final byte FULL_BLOCK = 2;
+
+    private final TreeMap<Long, Block> blocks = new TreeMap<>();
+    private long cardinality;
+
+    /**
+     * @return true if the position was not in the bitmap
+     */
+    public synchronized boolean add(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        Block block = blocks.computeIfAbsent(position >>> 16, key -> new Block());
+        boolean added = block.add((int) (position & 0xFFFF));
+        if (added) {
+            cardinality++;
+        }
+        return added;
+    }
+
+    public synchronized boolean contains(long position) {
+        Block block = position < 0 ? null : blocks.get(position >>> 16);
+        return block != null && block.contains((int) (position & 0xFFFF));
+    }
+
+    public synchronized long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return the lowest position or -1 if the bitmap is empty
+     */
+    public synchronized long min() {
+        return blocks.isEmpty() ? -1 : (blocks.firstKey() << 16) + blocks.firstEntry().getValue().min();
+    }
+
+    /**
+     * @return the highest position or -1 if the bitmap is empty
+     */
+    public synchronized long max() {
+        return blocks.isEmpty() ? -1 : (blocks.lastKey() << 16) + blocks.lastEntry().getValue().max();
+    }
+
+    /**
+     * Estimated heap usage including the block map
+     */
+    public synchronized long memoryInBytes() {
+        long bytes = 0;
+        for (Block block : blocks.values()) {
+            bytes += 64 + block.memoryInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Visit the ranges of positions that are in the bitmap in ascending order. Adjacent ranges are merged.
+     */
+    public synchronized void forEachRange(RangeVisitor visitor) {
+        long[] range = {-1, -1};
+        for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+            entry.getValue().forEachRange(entry.getKey() << 16, (from, to) -> {
+                if (range[0] >= 0 && from == range[1] + 1) {
+                    range[1] = to;
+                    return;
+                }
+                if (range[0] >= 0) {
+                    visitor.visit(range[0], range[1]);
+                }
+                range[0] = from;
+                range[1] = to;
+            });
+        }
+        if (range[0] >= 0) {
+            visitor.visit(range[0], range[1]);
+        }
+    }
+
+    /**
+     * Visit the ranges of missing positions between the lowest and the highest position in ascending order
+     */
+    public synchronized void forEachGap(RangeVisitor visitor) {
+        long[] previousTo = {-1};
+        forEachRange((from, to) -> {
+            if (previousTo[0] >= 0) {
+                visitor.visit(previousTo[0] + 1, from - 1);
+            }
+            previousTo[0] = to;
+        });
+    }
+
+    public synchronized void writeTo(DataOutput output) throws IOException {
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(blocks.size());
+        for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+            output.writeLong(entry.getKey());
+            entry.getValue().writeTo(output);
+        }
+    }
+
+    public static PositionBitmap readFrom(DataInput input) throws IOException {
+        int formatVersion = input.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported position bitmap format: " + formatVersion);
+        }
+        PositionBitmap bitmap = new PositionBitmap();
+        int numberOfBlocks = input.readInt();
+        for (int i = 0; i < numberOfBlocks; i++) {
+            long key = input.readLong();
+            Block block = Block.readFrom(input);
+            bitmap.blocks.put(key, block);
+            bitmap.cardinality += block.cardinality;
+        }
+        return bitmap;
+    }
+
+    @FunctionalInterface
+    public interface RangeVisitor {
+        /**
+         * @param from first position of the range
+         * @param to   last position of the range
+         */
+        void visit(long from, long to);
+    }
+
+    static class Block {
+        // array holds the sorted low bits while the block is sparse, and both are null when the block is full
+        private char[] array = new char[4];
+        private BitSet bitmap;
+        private int cardinality;
+
+        boolean isFull() {
+            return cardinality == BLOCK_SIZE;
+        }
+
+        boolean add(int value) {
+            if (isFull()) {
+                return false;
+            }
+            if (bitmap != null) {
+                if (bitmap.get(value)) {
+                    return false;
+                }
+                bitmap.set(value);
+                onAdded();
+                return true;
+            }
+            int index = Arrays.binarySearch(array, 0, cardinality, (char) value);
+            if (index >= 0) {
+                return false;
+            }
+            if (cardinality == MAX_ARRAY_SIZE) {
+                bitmap = new BitSet(BLOCK_SIZE);
+                for (int i = 0; i < cardinality; i++) {
+                    bitmap.set(array[i]);
+                }
+                array = null;
+                bitmap.set(value);
+                onAdded();
+                return true;
+            }
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(MAX_ARRAY_SIZE, array.length * 2));
+            }
+            int insertionPoint = -index - 1;
+            System.arraycopy(array, insertionPoint, array, insertionPoint + 1, cardinality - insertionPoint);
+            array[insertionPoint] = (char) value;
+            onAdded();
+            return true;
+        }
+
+        private void onAdded() {
+            cardinality++;
+            if (isFull()) {
+                array = null;
+                bitmap = null;
+            }
+        }
+
+        boolean contains(int value) {
+            if (isFull()) {
+                return true;
+            }
+            if (bitmap != null) {
+                return bitmap.get(value);
+            }
+            return Arrays.binarySearch(array, 0, cardinality, (char) value) >= 0;
+        }
+
+        int min() {
+            if (isFull()) {
+                return 0;
+            }
+            return bitmap != null ? bitmap.nextSetBit(0) : array[0];
+        }
+
+        int max() {
+            if (isFull()) {
+                return BLOCK_SIZE - 1;
+            }
+            return bitmap != null ? bitmap.length() - 1 : array[cardinality - 1];
+        }
+
+        long memoryInBytes() {
+            if (isFull()) {
+                return 0;
+            }
+            return bitmap != null ? BLOCK_SIZE / Byte.SIZE : array.length * Character.BYTES;
+        }
+
+        void forEachRange(long base, RangeVisitor visitor) {
+            if (isFull()) {
+                visitor.visit(base, base + BLOCK_SIZE - 1);
+
+            } else if (bitmap != null) {
+                int from = bitmap.nextSetBit(0);
+                while (from >= 0) {
+                    int to = bitmap.nextClearBit(from);
+                    visitor.visit(base + from, base + to - 1);
+                    from = to < BLOCK_SIZE ? bitmap.nextSetBit(to) : -1;
+                }
+
+            } else {
+                int i = 0;
+                while (i < cardinality) {
+                    int from = array[i];
+                    while (i + 1 < cardinality && array[i + 1] == array[i] + 1) {
+                        i++;
+                    }
+                    visitor.visit(base + from, base + array[i]);
+                    i++;
+                }
+            }
+        }
+
+        void writeTo(DataOutput output) throws IOException {
+            if (isFull()) {
+                output.writeByte(FULL_BLOCK);
+                output.writeInt(cardinality);
+
+            } else if (bitmap != null) {
+                output.writeByte(BITMAP_BLOCK);
+                output.writeInt(cardinality);
+                long[] words = bitmap.toLongArray();
+                output.writeInt(words.length);
+                for (long word : words) {
+                    output.writeLong(word);
+                }
+
+            } else {
+                output.writeByte(ARRAY_BLOCK);
+                output.writeInt(cardinality);
+                for (int i = 0; i < cardinality; i++) {
+                    output.writeChar(array[i]);
+                }
+            }
+        }
+
+        static Block readFrom(DataInput input) throws IOException {
+            byte type = input.readByte();
+            Block block = new Block();
+            block.cardinality = input.readInt();
+            if (type == FULL_BLOCK) {
+                block.array = null;
+
+            } else if (type == BITMAP_BLOCK) {
+                long[] words = new long[input.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = input.readLong();
+                }
+                block.array = null;
+                block.bitmap = BitSet.valueOf(words);
+
+            } else if (type == ARRAY_BLOCK) {
+                block.array = new char[Math.max(4, block.cardinality)];
+                for (int i = 0; i < block.cardinality; i++) {
+                    block.array[i] = input.readChar();
+                }
+
+            } else {
+                throw new IOException("Illegal position bitmap block type: " + type);
+            }
+            return block;
+        }
+    }
+}
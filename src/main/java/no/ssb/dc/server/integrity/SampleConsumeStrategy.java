@@ -0,0 +1,182 @@
+package no.ssb.dc.server.integrity;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.content.ContentStream;
+import no.ssb.dc.api.content.ContentStreamBuffer;
+import no.ssb.dc.api.content.ContentStreamConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sample check. The ulid time range of the topic is split into strata, and a window that starts at a random time
+ * in each stratum is indexed until it holds windowSize messages or reaches the next stratum. The duplicates found
+ * in the sample are reported, and the duplicate rate of the topic is estimated from the duplicates per window.
+ * <p>
+ * Only duplicates that have more than one occurrence in the sample are found, so the estimate does not include
+ * duplicates that are far apart in time.
+ */
+class SampleConsumeStrategy implements IntegrityCheckJob.ConsumeStrategy {
+    private static final Logger LOG = LoggerFactory.getLogger(SampleConsumeStrategy.class);
+
+    private final IntegrityCheckJob job;
+
+    SampleConsumeStrategy(IntegrityCheckJob job) {
+        this.job = job;
+    }
+
+    @Override
+    public void consume(String topic) throws Exception {
+        IntegrityCheckJobSummary summary = job.summary;
+        IntegrityCheckJobOptions options = job.options;
+        summary.setMode("SAMPLE");
+        IntegrityCheckJobSummary.SampleProgress progress = summary.setSample(options.getSampleWindows(), options.getSampleWindowSize());
+        ContentStream contentStream = job.contentStore.contentStream();
+        ContentStreamBuffer firstMessage;
+        try {
+            firstMessage = job.receive(contentStream.consumer(topic), job.consumerTimeoutInSeconds());
+        } finally {
+            contentStream.closeAndRemoveConsumer(topic);
+        }
+        ContentStreamBuffer lastMessage = firstMessage == null ? null : contentStream.lastMessage(topic);
+        if (lastMessage == null) {
+            LOG.info("No messages to sample for topic: {}", topic);
+            return;
+        }
+        summary.setFirstPosition(firstMessage.position());
+        summary.setLastPosition(lastMessage.position());
+        long fromTimestamp = firstMessage.ulid().timestamp();
+        long toTimestamp = lastMessage.ulid().timestamp() + 1;
+        progress.setTimeRange(fromTimestamp, toTimestamp);
+
+        List<SampleWindow> windows = createSampleWindows(fromTimestamp, toTimestamp, options.getSampleWindows(), ThreadLocalRandom.current());
+        LOG.info("Sample topic: {} using {} windows of up to {} messages", topic, windows.size(), options.getSampleWindowSize());
+        for (SampleWindow window : windows) {
+            if (job.terminated.get()) {
+                break;
+            }
+            try {
+                ContentStreamConsumer consumer = contentStream.consumer(topic);
+                consumer.seek(window.fromTimestamp);
+                sampleWindow(window, consumer);
+            } finally {
+                contentStream.closeAndRemoveConsumer(topic);
+            }
+            progress.incrementSampledWindows();
+        }
+
+        job.index.commitQueue();
+        writeSampleReport(windows);
+
+        if (!job.terminated.get()) {
+            DuplicateRateEstimator estimator = new DuplicateRateEstimator();
+            for (SampleWindow window : windows) {
+                estimator.addWindow(window.messages, window.duplicateMessages, window.endTimestamp - window.fromTimestamp);
+            }
+            progress.setEstimate(estimator);
+            LOG.info("Estimated duplicate rate for topic: {} is {} ({} - {})", topic, estimator.rate(), estimator.lowerBound(), estimator.upperBound());
+        }
+    }
+
+    /**
+     * Split the time range [fromTimestamp, toTimestamp) into equally sized strata and pick a random window start in
+     * each stratum. A window ends at the end of its stratum, so windows never overlap.
+     */
+    static List<SampleWindow> createSampleWindows(long fromTimestamp, long toTimestamp, int numberOfWindows, Random random) {
+        long timeRange = toTimestamp - fromTimestamp;
+        int numberOfStrata = (int) Math.max(1, Math.min(numberOfWindows, timeRange));
+        long stratumLength = timeRange / numberOfStrata;
+        List<SampleWindow> windows = new ArrayList<>();
+        for (int n = 0; n < numberOfStrata; n++) {
+            long stratumFrom = fromTimestamp + n * stratumLength;
+            long stratumTo = n == numberOfStrata - 1 ? toTimestamp : stratumFrom + stratumLength;
+            long windowFrom = stratumFrom + (long) (random.nextDouble() * (stratumTo - stratumFrom));
+            windows.add(new SampleWindow(windowFrom, stratumTo));
+        }
+        return windows;
+    }
+
+    void sampleWindow(SampleWindow window, ContentStreamConsumer consumer) throws Exception {
+        int windowSize = job.options.getSampleWindowSize();
+        boolean windowEnded = job.receiveMessages(consumer, buffer -> {
+            ULID.Value ulid = buffer.ulid();
+            // seek is by timestamp and may replay earlier messages
+            if (ulid.timestamp() >= window.fromTimestamp) {
+                if (ulid.timestamp() >= window.toTimestamp) {
+                    window.endTimestamp = window.toTimestamp;
+                    return false;
+                }
+                job.index.writeSequence(ulid, buffer.position());
+                // the first position of the topic is known before the windows are sampled
+                job.track(buffer.position(), false);
+                window.messages++;
+                window.endTimestamp = ulid.timestamp() + 1;
+            }
+
+            // release data
+            buffer.data().clear();
+            buffer.manifest().clear();
+
+            return window.messages < windowSize;
+        });
+        if (!windowEnded) {
+            // reached end of stream
+            window.endTimestamp = window.toTimestamp;
+        }
+    }
+
+    // write the duplicates that were found in the sample, and count duplicate messages per window
+    void writeSampleReport(List<SampleWindow> windows) {
+        Path reportPath = job.index.getDatabaseDir().resolve("report");
+        String reportId = job.createDuplicateReportId();
+        LOG.info("Generating sample report to: {}/{}", reportPath, reportId);
+
+        AtomicLong duplicatePositions = new AtomicLong();
+        AtomicLong affectedPositions = new AtomicLong();
+
+        try (DuplicateReport.Writer writer = DuplicateReport.createWriter(job.options.getReportFormat(), reportPath, reportId)) {
+            job.index.readPositionDuplicates(event -> {
+                for (ULID.Value ulid : event.ulidSet()) {
+                    for (SampleWindow window : windows) {
+                        if (ulid.timestamp() >= window.fromTimestamp && ulid.timestamp() < window.toTimestamp) {
+                            window.duplicateMessages++;
+                            break;
+                        }
+                    }
+                }
+                duplicatePositions.addAndGet(event.ulidSet().size());
+                affectedPositions.incrementAndGet();
+                writer.write(event.position(), event.ulidSet());
+                return true;
+            });
+        }
+
+        job.summary.setReportPath(reportPath);
+        job.summary.setDuplicateReportId(reportId);
+        job.summary.setDuplicatePositionStats(duplicatePositions.get(), affectedPositions.get());
+        LOG.info("Done generating sample report");
+    }
+
+    /**
+     * A sampled window [fromTimestamp, endTimestamp) inside the stratum that ends at toTimestamp
+     */
+    static class SampleWindow {
+        final long fromTimestamp;
+        final long toTimestamp;
+        long endTimestamp;
+        long messages;
+        long duplicateMessages;
+
+        SampleWindow(long fromTimestamp, long toTimestamp) {
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+            this.endTimestamp = fromTimestamp;
+        }
+    }
+}
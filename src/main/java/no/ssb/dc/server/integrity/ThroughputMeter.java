@@ -0,0 +1,101 @@
+package no.ssb.dc.server.integrity;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rolling 1, 5 and 15 minute rates as exponentially weighted moving averages, the same way as the unix load
+ * average. Events are counted in a LongAdder and folded into the averages every five seconds, by whichever thread
+ * marks or reads the meter first after the interval has passed.
+ */
+public class ThroughputMeter {
+
+    static final long TICK_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final LongSupplier nanoClock;
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong lastTick;
+    private final Ewma oneMinute = new Ewma(1);
+    private final Ewma fiveMinutes = new Ewma(5);
+    private final Ewma fifteenMinutes = new Ewma(15);
+
+    public ThroughputMeter() {
+        this(System::nanoTime);
+    }
+
+    ThroughputMeter(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastTick = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    public void mark() {
+        tickIfNecessary();
+        uncounted.increment();
+    }
+
+    public long count() {
+        return count.get() + uncounted.sum();
+    }
+
+    /**
+     * @return events per second
+     */
+    public double oneMinuteRate() {
+        tickIfNecessary();
+        return oneMinute.rate();
+    }
+
+    public double fiveMinuteRate() {
+        tickIfNecessary();
+        return fiveMinutes.rate();
+    }
+
+    public double fifteenMinuteRate() {
+        tickIfNecessary();
+        return fifteenMinutes.rate();
+    }
+
+    private void tickIfNecessary() {
+        long previousTick = lastTick.get();
+        long elapsedTicks = (nanoClock.getAsLong() - previousTick) / TICK_INTERVAL_IN_NANOS;
+        // only the thread that moves the tick forward folds the counted events into the averages
+        if (elapsedTicks > 0 && lastTick.compareAndSet(previousTick, previousTick + elapsedTicks * TICK_INTERVAL_IN_NANOS)) {
+            long events = uncounted.sumThenReset();
+            count.addAndGet(events);
+            oneMinute.tick(events, elapsedTicks);
+            fiveMinutes.tick(events, elapsedTicks);
+            fifteenMinutes.tick(events, elapsedTicks);
+        }
+    }
+
+    static class Ewma {
+        private final double alpha;
+        private volatile boolean initialized;
+        private volatile double rate;
+
+        Ewma(int minutes) {
+            this.alpha = 1 - Math.exp(-TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_IN_NANOS) / 60.0 / minutes);
+        }
+
+        // events are attributed to the first elapsed interval and the remaining intervals count as idle
+        synchronized void tick(long events, long elapsedTicks) {
+            double instantRate = (double) events / TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_IN_NANOS);
+            if (initialized) {
+                rate += alpha * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+            if (elapsedTicks > 1) {
+                rate *= Math.pow(1 - alpha, elapsedTicks - 1);
+            }
+        }
+
+        double rate() {
+            return rate;
+        }
+    }
+}
@@ -36,6 +36,10 @@ public class RecoveryController implements Controller {
         dispatcher.bind("/recovery", GET, this::getWorkerList);
         dispatcher.bind("/recovery/{topic}", GET, this::getWorkerSummary);
         dispatcher.bind("/recovery/{topic}", DELETE, this::cancelWorker);
+        dispatcher.bind("/recovery/{topic}/snapshot/{snapshotId}", PUT, this::restoreSnapshot);
+        dispatcher.bind("/recovery/{topic}/diff", PUT, this::createDiff);
+        dispatcher.bind("/recovery/{topic}/diff", GET, this::getDiffSummary);
+        dispatcher.bind("/recovery/{topic}/diff", DELETE, this::cancelDiff);
     }
 
     @Override
@@ -128,6 +132,22 @@ public class RecoveryController implements Controller {
         return HttpStatus.HTTP_OK;
     }
 
+    // PUT /recovery/{topic}/snapshot/{snapshotId}
+    private HttpStatus restoreSnapshot(PathHandler handler) {
+        String topic = handler.parameters().get("topic");
+        if (isRunning(topic)) {
+            return HttpStatus.HTTP_CONFLICT;
+        }
+        try {
+            if (!service.restoreSnapshot(topic, handler.parameters().get("snapshotId"))) {
+                return HttpStatus.HTTP_NOT_FOUND;
+            }
+        } catch (IllegalStateException e) {
+            return HttpStatus.HTTP_CONFLICT;
+        }
+        return HttpStatus.HTTP_CREATED;
+    }
+
     // DELETE /recovery/{topic}
     private HttpStatus cancelWorker(PathHandler handler) {
         String fromTopic = handler.parameters().get("topic");
@@ -138,4 +158,44 @@ public class RecoveryController implements Controller {
         recoveryWorker.terminate();
         return HttpStatus.HTTP_OK;
     }
+
+    // PUT /recovery/{topic}/diff?toTopic=TARGET_TOPIC
+    private HttpStatus createDiff(PathHandler handler) {
+        String fromTopic = handler.parameters().get("topic");
+        if (service.isDiffRunning(fromTopic)) {
+            return HttpStatus.HTTP_CONFLICT;
+        }
+        if (!handler.exchange().getQueryParameters().containsKey("toTopic")) {
+            return HttpStatus.HTTP_BAD_REQUEST;
+        }
+        String toTopic = handler.exchange().getQueryParameters().get("toTopic").getFirst();
+        if (!service.createRecoveryDiff(fromTopic, toTopic)) {
+            return HttpStatus.HTTP_NOT_FOUND;
+        }
+        return HttpStatus.HTTP_CREATED;
+    }
+
+    // GET /recovery/{topic}/diff
+    private HttpStatus getDiffSummary(PathHandler handler) {
+        String fromTopic = handler.parameters().get("topic");
+        RecoveryDiff recoveryDiff = service.diffs.get(fromTopic);
+        if (recoveryDiff == null) {
+            return HttpStatus.HTTP_NOT_FOUND;
+        }
+        RecoveryDiffMonitor.Summary summary = recoveryDiff.summary();
+        String summaryJson = JsonParser.createJsonParser().toPrettyJSON(summary);
+        handler.exchange().getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        handler.exchange().getResponseSender().send(summaryJson);
+        return HttpStatus.HTTP_OK;
+    }
+
+    // DELETE /recovery/{topic}/diff
+    private HttpStatus cancelDiff(PathHandler handler) {
+        String fromTopic = handler.parameters().get("topic");
+        if (!service.isDiffRunning(fromTopic)) {
+            return HttpStatus.HTTP_NOT_FOUND;
+        }
+        service.diffs.get(fromTopic).terminate();
+        return HttpStatus.HTTP_OK;
+    }
 }
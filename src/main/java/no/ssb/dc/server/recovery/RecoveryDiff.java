@@ -0,0 +1,249 @@
+package no.ssb.dc.server.recovery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import no.ssb.dc.server.db.SequenceKeyFlyweight;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static no.ssb.dc.server.db.SequenceDbHelper.getSequenceDatabaseLocation;
+
+/**
+ * Compare the sequence database of a source topic with the sequence database of a recovered target topic. Both
+ * databases are sorted by position and then by ulid, so a merge-join of two cursors visits every key once and only
+ * holds the ulids of the current position in memory.
+ * <p>
+ * A position is missing if it is only found in the source, extra if it is only found in the target, and ulid
+ * mismatched if the topics have different ulids for the position. Differences are written to an ndjson report:
+ * {"position": "POSITION", "diff": "MISSING", "source": ["ULID", ...], "target": ["ULID", ...]}
+ * <p>
+ * Run the integrity check on both topics before running the diff.
+ */
+public class RecoveryDiff {
+
+    static final String REPORT_FILENAME = "diff-report.ndjson";
+    static final int CURRENT_POSITION_INTERVAL = 1000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecoveryDiff.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final DynamicConfiguration configuration;
+    private final LmdbEnvironmentComponent lmdbEnvironmentComponent;
+    private final RecoveryDiffMonitor monitor = new RecoveryDiffMonitor();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public RecoveryDiff(DynamicConfiguration configuration, LmdbEnvironmentComponent lmdbEnvironmentComponent) {
+        this.configuration = configuration;
+        this.lmdbEnvironmentComponent = lmdbEnvironmentComponent;
+    }
+
+    public void diff(String sourceTopic, String targetTopic) {
+        LOG.info("Diff {} against {}", sourceTopic, targetTopic);
+        monitor.setStarted();
+        monitor.setSourceTopic(sourceTopic);
+        monitor.setTargetTopic(targetTopic);
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        Path reportFile = dbLocation.resolve(targetTopic).resolve("report").resolve(REPORT_FILENAME);
+        monitor.setReportPath(reportFile);
+        try (LmdbEnvironment sourceEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, sourceTopic);
+             LmdbEnvironment targetEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, targetTopic)) {
+            Dbi<ByteBuffer> sourceDb = sourceEnvironment.open();
+            Dbi<ByteBuffer> targetDb = targetEnvironment.open();
+            Files.createDirectories(reportFile.getParent());
+            try (LmdbEnvironment.TxnGuard sourceGuard = sourceEnvironment.txnGuard(); Txn<ByteBuffer> sourceTxn = sourceEnvironment.env().txnRead();
+                 LmdbEnvironment.TxnGuard targetGuard = targetEnvironment.txnGuard(); Txn<ByteBuffer> targetTxn = targetEnvironment.env().txnRead();
+                 Cursor<ByteBuffer> sourceCursor = sourceDb.openCursor(sourceTxn);
+                 Cursor<ByteBuffer> targetCursor = targetDb.openCursor(targetTxn);
+                 ReportWriter writer = new ReportWriter(reportFile)) {
+                int maxKeySize = Math.max(sourceEnvironment.maxKeySize(), targetEnvironment.maxKeySize());
+                if (compare(new LmdbKeyCursor(sourceCursor), new LmdbKeyCursor(targetCursor), maxKeySize, writer)) {
+                    monitor.setCompleted();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            monitor.setEnded();
+        }
+        LOG.info("Diff of {} against {} ended with {} missing, {} extra and {} ulid mismatched positions", sourceTopic, targetTopic,
+                monitor.missingPositions.get(), monitor.extraPositions.get(), monitor.ulidMismatchedPositions.get());
+    }
+
+    /**
+     * Merge-join the keys of two cursors that are sorted by position and ulid, one position at a time
+     *
+     * @return false if the diff was terminated
+     */
+    boolean compare(KeyCursor source, KeyCursor target, int maxKeySize, DiffVisitor visit) {
+        SequenceKeyFlyweight sourceKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight targetKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight positionKey = new SequenceKeyFlyweight(maxKeySize);
+        List<ULID.Value> sourceUlids = new ArrayList<>();
+        List<ULID.Value> targetUlids = new ArrayList<>();
+
+        boolean sourceFound = nextKey(source, sourceKey);
+        boolean targetFound = nextKey(target, targetKey);
+        while (sourceFound || targetFound) {
+            if (closed.get()) {
+                monitor.setTerminated();
+                return false;
+            }
+            int cmp = !sourceFound ? 1 : !targetFound ? -1 : sourceKey.comparePosition(targetKey);
+            positionKey.copyFrom(cmp <= 0 ? sourceKey : targetKey);
+
+            sourceUlids.clear();
+            if (cmp <= 0) {
+                do {
+                    sourceUlids.add(sourceKey.ulid());
+                    monitor.incrementSourceKeys();
+                    sourceFound = nextKey(source, sourceKey);
+                } while (sourceFound && positionKey.positionEquals(sourceKey));
+            }
+
+            targetUlids.clear();
+            if (cmp >= 0) {
+                do {
+                    targetUlids.add(targetKey.ulid());
+                    monitor.incrementTargetKeys();
+                    targetFound = nextKey(target, targetKey);
+                } while (targetFound && positionKey.positionEquals(targetKey));
+            }
+
+            // both ulid lists are in key order
+            DiffType diffType = cmp < 0 ? DiffType.MISSING : cmp > 0 ? DiffType.EXTRA :
+                    sourceUlids.equals(targetUlids) ? null : DiffType.ULID_MISMATCH;
+            monitor.incrementPositions(diffType);
+
+            // only decode positions that are reported
+            if (diffType != null) {
+                String position = positionKey.position();
+                monitor.setCurrentPosition(position);
+                visit.visit(diffType, position, sourceUlids, targetUlids);
+            } else if (monitor.comparedPositions.get() % CURRENT_POSITION_INTERVAL == 0) {
+                monitor.setCurrentPosition(positionKey.position());
+            }
+        }
+        return true;
+    }
+
+    private static boolean nextKey(KeyCursor cursor, SequenceKeyFlyweight key) {
+        if (!cursor.next()) {
+            return false;
+        }
+        key.wrap(cursor.key());
+        return true;
+    }
+
+    public RecoveryDiffMonitor monitor() {
+        return monitor;
+    }
+
+    public RecoveryDiffMonitor.Summary summary() {
+        return monitor.build();
+    }
+
+    public void terminate() {
+        closed.set(true);
+    }
+
+    enum DiffType {
+        MISSING,
+        EXTRA,
+        ULID_MISMATCH
+    }
+
+    @FunctionalInterface
+    interface DiffVisitor {
+        void visit(DiffType diffType, String position, List<ULID.Value> sourceUlids, List<ULID.Value> targetUlids);
+    }
+
+    /**
+     * Forward only iteration over keys in Lmdb order. The first call to next() moves to the first key.
+     */
+    interface KeyCursor {
+        boolean next();
+
+        ByteBuffer key();
+    }
+
+    static class LmdbKeyCursor implements KeyCursor {
+        private final Cursor<ByteBuffer> cursor;
+        private boolean positioned;
+
+        LmdbKeyCursor(Cursor<ByteBuffer> cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean next() {
+            if (!positioned) {
+                positioned = true;
+                return cursor.first();
+            }
+            return cursor.next();
+        }
+
+        @Override
+        public ByteBuffer key() {
+            return cursor.key();
+        }
+    }
+
+    static class ReportWriter implements DiffVisitor, AutoCloseable {
+        private final JsonGenerator generator;
+
+        ReportWriter(Path reportFile) throws IOException {
+            generator = JSON_FACTORY.createGenerator(new BufferedOutputStream(Files.newOutputStream(reportFile), 64 * 1024));
+            generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void visit(DiffType diffType, String position, List<ULID.Value> sourceUlids, List<ULID.Value> targetUlids) {
+            try {
+                generator.writeStartObject();
+                generator.writeStringField("position", position);
+                generator.writeStringField("diff", diffType.name());
+                writeUlids("source", sourceUlids);
+                writeUlids("target", targetUlids);
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void writeUlids(String fieldName, List<ULID.Value> ulids) throws IOException {
+            generator.writeArrayFieldStart(fieldName);
+            for (ULID.Value ulid : ulids) {
+                generator.writeString(ULIDGenerator.toUUID(ulid).toString());
+            }
+            generator.writeEndArray();
+        }
+
+        @Override
+        public void close() {
+            try {
+                generator.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
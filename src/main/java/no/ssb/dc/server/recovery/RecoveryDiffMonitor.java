@@ -0,0 +1,168 @@
+package no.ssb.dc.server.recovery;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import no.ssb.dc.api.health.HealthResourceUtils;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RecoveryDiffMonitor {
+
+    final AtomicBoolean running = new AtomicBoolean();
+    final AtomicBoolean completed = new AtomicBoolean();
+    final AtomicBoolean terminated = new AtomicBoolean();
+    final AtomicLong started = new AtomicLong();
+    final AtomicLong ended = new AtomicLong();
+    final AtomicReference<String> sourceTopic = new AtomicReference<>();
+    final AtomicReference<String> targetTopic = new AtomicReference<>();
+    final AtomicReference<String> currentPosition = new AtomicReference<>();
+    final AtomicReference<Path> reportPath = new AtomicReference<>();
+    final AtomicLong sourceKeys = new AtomicLong(0);
+    final AtomicLong targetKeys = new AtomicLong(0);
+    final AtomicLong comparedPositions = new AtomicLong(0);
+    final AtomicLong matchedPositions = new AtomicLong(0);
+    final AtomicLong missingPositions = new AtomicLong(0);
+    final AtomicLong extraPositions = new AtomicLong(0);
+    final AtomicLong ulidMismatchedPositions = new AtomicLong(0);
+
+    void setStarted() {
+        started.set(System.currentTimeMillis());
+        running.set(true);
+    }
+
+    void setEnded() {
+        ended.set(System.currentTimeMillis());
+        running.set(false);
+    }
+
+    void setCompleted() {
+        completed.set(true);
+    }
+
+    void setTerminated() {
+        terminated.set(true);
+    }
+
+    void setSourceTopic(String sourceTopic) {
+        this.sourceTopic.set(sourceTopic);
+    }
+
+    void setTargetTopic(String targetTopic) {
+        this.targetTopic.set(targetTopic);
+    }
+
+    void setCurrentPosition(String position) {
+        currentPosition.set(position);
+    }
+
+    void setReportPath(Path reportPath) {
+        this.reportPath.set(reportPath);
+    }
+
+    void incrementSourceKeys() {
+        sourceKeys.incrementAndGet();
+    }
+
+    void incrementTargetKeys() {
+        targetKeys.incrementAndGet();
+    }
+
+    void incrementPositions(RecoveryDiff.DiffType diffType) {
+        comparedPositions.incrementAndGet();
+        if (diffType == null) {
+            matchedPositions.incrementAndGet();
+            return;
+        }
+        switch (diffType) {
+            case MISSING:
+                missingPositions.incrementAndGet();
+                break;
+            case EXTRA:
+                extraPositions.incrementAndGet();
+                break;
+            case ULID_MISMATCH:
+                ulidMismatchedPositions.incrementAndGet();
+                break;
+        }
+    }
+
+    public Summary build() {
+        return new Summary(
+                running.get(),
+                completed.get(),
+                terminated.get(),
+                started.get(),
+                ended.get(),
+                sourceTopic.get(),
+                targetTopic.get(),
+                currentPosition.get(),
+                reportPath.get(),
+                sourceKeys.get(),
+                targetKeys.get(),
+                comparedPositions.get(),
+                matchedPositions.get(),
+                missingPositions.get(),
+                extraPositions.get(),
+                ulidMismatchedPositions.get()
+        );
+    }
+
+    public static class Summary {
+
+        @JsonProperty public final String status;
+        @JsonProperty public final String started;
+        @JsonProperty public final String ended;
+        @JsonProperty public final String since;
+        @JsonProperty public final String sourceTopic;
+        @JsonProperty public final String targetTopic;
+        @JsonProperty public final String currentPosition;
+        @JsonProperty public final Path reportPath;
+        @JsonProperty public final long sourceKeys;
+        @JsonProperty public final long targetKeys;
+        @JsonProperty public final long comparedPositions;
+        @JsonProperty public final long matchedPositions;
+        @JsonProperty public final long missingPositions;
+        @JsonProperty public final long extraPositions;
+        @JsonProperty public final long ulidMismatchedPositions;
+        @JsonProperty public final Boolean identical;
+
+        public Summary(boolean running,
+                       boolean completed,
+                       boolean terminated,
+                       long started,
+                       long ended,
+                       String sourceTopic,
+                       String targetTopic,
+                       String currentPosition,
+                       Path reportPath,
+                       long sourceKeys,
+                       long targetKeys,
+                       long comparedPositions,
+                       long matchedPositions,
+                       long missingPositions,
+                       long extraPositions,
+                       long ulidMismatchedPositions) {
+
+            this.status = running ? "RUNNING" : completed ? "COMPLETED" : terminated ? "TERMINATED" : ended > 0 ? "FAILED" : "CREATED";
+            this.started = Instant.ofEpochMilli(started).toString();
+            this.ended = Instant.ofEpochMilli(ended).toString();
+            this.since = HealthResourceUtils.durationAsString(started);
+            this.sourceTopic = sourceTopic;
+            this.targetTopic = targetTopic;
+            this.currentPosition = currentPosition;
+            this.reportPath = reportPath;
+            this.sourceKeys = sourceKeys;
+            this.targetKeys = targetKeys;
+            this.comparedPositions = comparedPositions;
+            this.matchedPositions = matchedPositions;
+            this.missingPositions = missingPositions;
+            this.extraPositions = extraPositions;
+            this.ulidMismatchedPositions = ulidMismatchedPositions;
+            // only a completed diff proves that the target matches the source
+            this.identical = !running && completed ? missingPositions + extraPositions + ulidMismatchedPositions == 0 : null;
+        }
+    }
+}
@@ -22,7 +22,10 @@ public class RecoveryMonitor {
     final AtomicReference<Path> sourceDatabasePath = new AtomicReference<>();
     final AtomicReference<String> sourceTopic = new AtomicReference<>();
     final AtomicReference<String> targetTopic = new AtomicReference<>();
+    // queue depths of the pipeline stages
+    final AtomicLong readAheadPositions = new AtomicLong(0);
     final AtomicLong bufferedPositions = new AtomicLong(0);
+    final AtomicLong inFlightBatches = new AtomicLong(0);
     final AtomicLong copiedPositions = new AtomicLong(0);
     final AtomicLong postCheckFromTimestamp = new AtomicLong(0);
     final AtomicReference<String> postCheckStartPosition = new AtomicReference<>();
@@ -63,6 +66,22 @@ public class RecoveryMonitor {
         this.targetTopic.set(targetTopic);
     }
 
+    void incrementReadAheadPositions() {
+        readAheadPositions.incrementAndGet();
+    }
+
+    void decrementReadAheadPositions() {
+        readAheadPositions.decrementAndGet();
+    }
+
+    void incrementInFlightBatches() {
+        inFlightBatches.incrementAndGet();
+    }
+
+    void decrementInFlightBatches() {
+        inFlightBatches.decrementAndGet();
+    }
+
     void incrementBufferedPositions() {
         bufferedPositions.incrementAndGet();
     }
@@ -102,7 +121,9 @@ public class RecoveryMonitor {
                 sourceDatabasePath.get(),
                 sourceTopic.get(),
                 targetTopic.get(),
+                readAheadPositions.get(),
                 bufferedPositions.get(),
+                inFlightBatches.get(),
                 copiedPositions.get(),
                 postCheckFromTimestamp.get(),
                 postCheckStartPosition.get(),
@@ -122,7 +143,9 @@ public class RecoveryMonitor {
         @JsonProperty public final Path indexDatabasePath;
         @JsonProperty public final String sourceTopic;
         @JsonProperty public final String targetTopic;
+        @JsonProperty public final long readAheadPositions;
         @JsonProperty public final long bufferedPositions;
+        @JsonProperty public final long inFlightBatches;
         @JsonProperty public final long copiedPositions;
         @JsonProperty public final float averageCopiedPositionsPerSecond;
         @JsonProperty public final String postCheckFromTimestamp;
@@ -139,7 +162,9 @@ public class RecoveryMonitor {
                        Path sourceDatabasePath,
                        String sourceTopic,
                        String targetTopic,
+                       long readAheadPositions,
                        long bufferedPositions,
+                       long inFlightBatches,
                        long copiedPositions,
                        long postCheckFromTimestamp,
                        String postCheckStartPosition,
@@ -156,7 +181,9 @@ public class RecoveryMonitor {
             this.indexDatabasePath = sourceDatabasePath;
             this.sourceTopic = sourceTopic;
             this.targetTopic = targetTopic;
+            this.readAheadPositions = readAheadPositions;
             this.bufferedPositions = bufferedPositions;
+            this.inFlightBatches = inFlightBatches;
             this.copiedPositions = copiedPositions;
             this.postCheckFromTimestamp = Instant.ofEpochMilli(postCheckFromTimestamp).toString();
             this.postCheckStartPosition = postCheckStartPosition;
@@ -0,0 +1,276 @@
+package no.ssb.dc.server.recovery;
+
+import no.ssb.config.DynamicConfiguration;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Copy messages from a source to a target in three stages that run concurrently:
+ * <ol>
+ * <li>a reader thread reads ahead from the source into a bounded queue (data.collector.recovery.readAheadSize)</li>
+ * <li>the calling thread copies messages to the target buffer and hands off batches of positions
+ * (data.collector.recovery.publishBatchSize)</li>
+ * <li>a publisher thread publishes the batches in order. Copying blocks when
+ * data.collector.recovery.maxInFlightBatches batches are queued or being published</li>
+ * </ol>
+ * The throughput is limited by the slowest stage rather than by the sum of the stages.
+ * <p>
+ * The target buffers copied messages by position until they are published, so a position is never copied while an
+ * earlier copy of it is buffered. A duplicate position hands off the current batch if needed, and waits until the
+ * batch that holds the position has been published.
+ */
+class RecoveryPipeline<T> {
+
+    static final long POLL_INTERVAL_IN_MILLIS = 100;
+    // marks the end of the batches, compared by identity
+    private static final String[] END_OF_BATCHES = new String[0];
+
+    @FunctionalInterface
+    interface Reader<T> {
+        /**
+         * @return the next message or null at the end of the source
+         */
+        T read() throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Copier<T> {
+        /**
+         * Copy a message to the target buffer
+         */
+        void copy(T message) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Publisher {
+        void publish(String[] positions) throws Exception;
+    }
+
+    private final String name;
+    private final Reader<T> reader;
+    private final Function<T, String> positionOf;
+    private final Copier<T> copier;
+    private final Publisher publisher;
+    private final RecoveryMonitor monitor;
+    private final int batchSize;
+    private final BlockingQueue<T> readAheadQueue;
+    private final BlockingQueue<String[]> publishQueue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlightBatches;
+    // positions of the batches that are queued or being published, guarded by itself
+    private final Set<String> inFlightPositions = new HashSet<>();
+    private final AtomicBoolean readerDone = new AtomicBoolean();
+    private final AtomicBoolean terminated = new AtomicBoolean();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    RecoveryPipeline(String name, int readAheadSize, int batchSize, int maxInFlightBatches,
+                     Reader<T> reader, Function<T, String> positionOf, Copier<T> copier, Publisher publisher, RecoveryMonitor monitor) {
+        this.name = name;
+        this.reader = reader;
+        this.positionOf = positionOf;
+        this.copier = copier;
+        this.publisher = publisher;
+        this.monitor = monitor;
+        this.batchSize = batchSize;
+        this.readAheadQueue = new LinkedBlockingQueue<>(readAheadSize);
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+    }
+
+    static <T> RecoveryPipeline<T> create(DynamicConfiguration configuration, String name,
+                                          Reader<T> reader, Function<T, String> positionOf, Copier<T> copier, Publisher publisher,
+                                          RecoveryMonitor monitor) {
+        int readAheadSize = configuration != null && configuration.evaluateToString("data.collector.recovery.readAheadSize") != null ?
+                configuration.evaluateToInt("data.collector.recovery.readAheadSize") : 5000;
+        int batchSize = configuration != null && configuration.evaluateToString("data.collector.recovery.publishBatchSize") != null ?
+                configuration.evaluateToInt("data.collector.recovery.publishBatchSize") : 1000;
+        int maxInFlightBatches = configuration != null && configuration.evaluateToString("data.collector.recovery.maxInFlightBatches") != null ?
+                configuration.evaluateToInt("data.collector.recovery.maxInFlightBatches") : 4;
+        return new RecoveryPipeline<>(name, readAheadSize, batchSize, maxInFlightBatches, reader, positionOf, copier, publisher, monitor);
+    }
+
+    /**
+     * Run the pipeline until the source has been copied and published, or the pipeline is terminated
+     *
+     * @return false if the pipeline was terminated
+     * @throws RuntimeException if a stage failed
+     */
+    boolean run() {
+        Thread readerThread = newThread(this::readAhead, "recovery-reader-" + name);
+        Thread publisherThread = newThread(this::publishBatches, "recovery-publisher-" + name);
+        readerThread.start();
+        publisherThread.start();
+        try {
+            copyAndHandOff();
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            try {
+                readerThread.join();
+                publisherThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminate();
+            }
+        }
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            if (throwable instanceof RuntimeException) {
+                throw (RuntimeException) throwable;
+            }
+            throw new RuntimeException(throwable);
+        }
+        return !terminated.get();
+    }
+
+    void terminate() {
+        terminated.set(true);
+    }
+
+    boolean isStopped() {
+        return terminated.get() || failure.get() != null;
+    }
+
+    private void fail(Throwable throwable) {
+        failure.compareAndSet(null, throwable);
+    }
+
+    private Thread newThread(Runnable runnable, String threadName) {
+        Thread thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // stage 1: reader thread
+    void readAhead() {
+        try {
+            T message;
+            while (!isStopped() && (message = reader.read()) != null) {
+                while (!readAheadQueue.offer(message, POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (isStopped()) {
+                        return;
+                    }
+                }
+                monitor.incrementReadAheadPositions();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            terminate();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            readerDone.set(true);
+        }
+    }
+
+    // stage 2: calling thread
+    void copyAndHandOff() throws Exception {
+        List<String> bufferedPositions = new ArrayList<>(batchSize);
+        Set<String> bufferedPositionSet = new HashSet<>();
+        while (!isStopped()) {
+            T message = readAheadQueue.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+            if (message == null) {
+                // everything the reader has queued is visible when it is done
+                if (readerDone.get() && readAheadQueue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            monitor.decrementReadAheadPositions();
+            String position = positionOf.apply(message);
+            if (bufferedPositionSet.contains(position)) {
+                handOff(bufferedPositions, bufferedPositionSet);
+            }
+            if (!awaitPublished(position)) {
+                return;
+            }
+            copier.copy(message);
+            bufferedPositions.add(position);
+            bufferedPositionSet.add(position);
+            monitor.incrementBufferedPositions();
+            if (bufferedPositions.size() == batchSize) {
+                handOff(bufferedPositions, bufferedPositionSet);
+            }
+        }
+        if (isStopped()) {
+            return;
+        }
+        if (!bufferedPositions.isEmpty()) {
+            handOff(bufferedPositions, bufferedPositionSet);
+        }
+        publishQueue.put(END_OF_BATCHES);
+    }
+
+    // wait until an earlier copy of the position has been published
+    private boolean awaitPublished(String position) throws InterruptedException {
+        synchronized (inFlightPositions) {
+            while (inFlightPositions.contains(position)) {
+                if (isStopped()) {
+                    return false;
+                }
+                inFlightPositions.wait(POLL_INTERVAL_IN_MILLIS);
+            }
+        }
+        return !isStopped();
+    }
+
+    private void handOff(List<String> bufferedPositions, Set<String> bufferedPositionSet) throws InterruptedException {
+        while (!inFlightBatches.tryAcquire(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (isStopped()) {
+                return;
+            }
+        }
+        synchronized (inFlightPositions) {
+            inFlightPositions.addAll(bufferedPositionSet);
+        }
+        publishQueue.put(bufferedPositions.toArray(new String[0]));
+        monitor.incrementInFlightBatches();
+        bufferedPositions.clear();
+        bufferedPositionSet.clear();
+        monitor.resetBufferedPositions();
+    }
+
+    // stage 3: publisher thread
+    void publishBatches() {
+        try {
+            while (!isStopped()) {
+                String[] positions = publishQueue.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+                if (positions == null) {
+                    continue;
+                }
+                if (positions == END_OF_BATCHES) {
+                    return;
+                }
+                publisher.publish(positions);
+                synchronized (inFlightPositions) {
+                    for (String position : positions) {
+                        inFlightPositions.remove(position);
+                    }
+                    inFlightPositions.notifyAll();
+                }
+                monitor.incrementCopiedPositions(positions.length);
+                monitor.decrementInFlightBatches();
+                inFlightBatches.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            terminate();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+}
@@ -4,16 +4,20 @@ import no.ssb.config.DynamicConfiguration;
 import no.ssb.dc.api.util.CommonUtils;
 import no.ssb.dc.application.spi.Service;
 import no.ssb.dc.server.content.ContentStoreComponent;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import no.ssb.dc.server.db.SequenceDbCatalog;
+import no.ssb.dc.server.db.SequenceDbSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static no.ssb.dc.server.db.SequenceDbHelper.getSequenceDatabaseLocation;
@@ -29,13 +33,25 @@ public class RecoveryService implements Service {
     private final DynamicConfiguration configuration;
     private final ContentStoreComponent contentStoreComponent;
     private final RecoveryContentStoreComponent recoveryContentStoreComponent;
+    private final LmdbEnvironmentComponent lmdbEnvironmentComponent;
     final Map<String, CompletableFuture<RecoveryWorker>> jobFutures = new ConcurrentHashMap<>();
     final Map<String, RecoveryWorker> jobs = new ConcurrentHashMap<>();
+    final Map<String, CompletableFuture<Void>> diffFutures = new ConcurrentHashMap<>();
+    final Map<String, RecoveryDiff> diffs = new ConcurrentHashMap<>();
+    private final AtomicInteger diffThreadNumber = new AtomicInteger();
+    // a diff scans two topics to the end and must not occupy the common fork join pool
+    private final ExecutorService diffExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "recovery-diff-" + diffThreadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public RecoveryService(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent, RecoveryContentStoreComponent recoveryContentStoreComponent) {
+    public RecoveryService(DynamicConfiguration configuration, ContentStoreComponent contentStoreComponent,
+                           RecoveryContentStoreComponent recoveryContentStoreComponent, LmdbEnvironmentComponent lmdbEnvironmentComponent) {
         this.configuration = configuration;
         this.contentStoreComponent = contentStoreComponent;
         this.recoveryContentStoreComponent = recoveryContentStoreComponent;
+        this.lmdbEnvironmentComponent = lmdbEnvironmentComponent;
     }
 
     @Override
@@ -45,7 +61,7 @@ public class RecoveryService implements Service {
 
     @Override
     public void start() {
-
+        lmdbEnvironmentComponent.catalog();
     }
 
     @Override
@@ -53,14 +69,28 @@ public class RecoveryService implements Service {
         for (Map.Entry<String, RecoveryWorker> entry : jobs.entrySet()) {
             entry.getValue().terminate();
         }
+        for (Map.Entry<String, RecoveryDiff> entry : diffs.entrySet()) {
+            entry.getValue().terminate();
+        }
+        diffExecutor.shutdown();
     }
 
     List<Path> getSequenceDatabaseList() {
-        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        SequenceDbCatalog catalog = lmdbEnvironmentComponent.catalog();
+        return catalog.topics().stream().map(topic -> catalog.getDbLocation().resolve(topic)).collect(Collectors.toList());
+    }
+
+    /**
+     * Seed the sequence database of a topic from a snapshot that was created by an integrity check node
+     *
+     * @return false if the snapshot does not exist
+     * @throws IllegalStateException if the sequence database is in use
+     */
+    boolean restoreSnapshot(String topic, String snapshotId) {
         try {
-            return Files.list(dbLocation).filter(path -> path.toFile().isDirectory()).collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            return new SequenceDbSnapshot(configuration, lmdbEnvironmentComponent).restore(topic, snapshotId);
+        } finally {
+            lmdbEnvironmentComponent.catalog().refresh(topic);
         }
     }
 
@@ -72,9 +102,10 @@ public class RecoveryService implements Service {
         }
 
         CompletableFuture<RecoveryWorker> workerFuture = CompletableFuture.supplyAsync(() -> {
-            RecoveryWorker recoveryWorker = new RecoveryWorker(configuration, contentStoreComponent, recoveryContentStoreComponent);
+            RecoveryWorker recoveryWorker = new RecoveryWorker(configuration, contentStoreComponent, recoveryContentStoreComponent, lmdbEnvironmentComponent);
             jobs.put(fromTopic, recoveryWorker);
             recoveryWorker.recover(fromTopic, toTopic);
+            lmdbEnvironmentComponent.catalog().refresh(toTopic);
             LOG.trace("Completed Recovery!");
             return recoveryWorker;
         }).exceptionally(throwable -> {
@@ -89,4 +120,31 @@ public class RecoveryService implements Service {
         });
         jobFutures.put(fromTopic, workerFuture);
     }
+
+    boolean isDiffRunning(String fromTopic) {
+        CompletableFuture<Void> future = diffFutures.get(fromTopic);
+        return future != null && !future.isDone();
+    }
+
+    /**
+     * Diff the sequence database of a source topic against the sequence database of a recovered target topic
+     *
+     * @return false if the integrity check has not been run for one of the topics
+     */
+    synchronized boolean createRecoveryDiff(String fromTopic, String toTopic) {
+        Path dbLocation = getSequenceDatabaseLocation(configuration);
+        if (!dbLocation.resolve(fromTopic).toFile().exists() || !dbLocation.resolve(toTopic).toFile().exists()) {
+            return false;
+        }
+
+        RecoveryDiff recoveryDiff = new RecoveryDiff(configuration, lmdbEnvironmentComponent);
+        diffs.put(fromTopic, recoveryDiff);
+        CompletableFuture<Void> diffFuture = CompletableFuture.runAsync(() -> recoveryDiff.diff(fromTopic, toTopic), diffExecutor)
+                .exceptionally(throwable -> {
+                    LOG.error("Diff ended exceptionally with error: {}", CommonUtils.captureStackTrace(throwable));
+                    return null;
+                });
+        diffFutures.put(fromTopic, diffFuture);
+        return true;
+    }
 }
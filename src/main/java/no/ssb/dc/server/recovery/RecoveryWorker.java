@@ -10,6 +10,7 @@ import no.ssb.dc.api.content.ContentStreamProducer;
 import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.server.content.ContentStoreComponent;
 import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
 import no.ssb.dc.server.db.SequenceDbHelper;
 import no.ssb.dc.server.integrity.JsonArrayWriter;
 import org.lmdbjava.Dbi;
@@ -20,12 +21,10 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static no.ssb.dc.server.db.SequenceDbHelper.getSequenceDatabaseLocation;
 
@@ -36,15 +35,19 @@ public class RecoveryWorker {
     private final DynamicConfiguration configuration;
     private final ContentStore contentStore;
     private final ContentStore recoveryContentStore;
+    private final LmdbEnvironmentComponent lmdbEnvironmentComponent;
     private final RecoveryMonitor monitor = new RecoveryMonitor();
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicReference<RecoveryPipeline<ContentStreamBuffer>> pipeline = new AtomicReference<>();
 
     public RecoveryWorker(DynamicConfiguration configuration,
                           ContentStoreComponent contentStoreComponent,
-                          RecoveryContentStoreComponent recoveryContentStoreComponent) {
+                          RecoveryContentStoreComponent recoveryContentStoreComponent,
+                          LmdbEnvironmentComponent lmdbEnvironmentComponent) {
         this.configuration = configuration;
         this.contentStore = contentStoreComponent.getDelegate();
         this.recoveryContentStore = recoveryContentStoreComponent.getDelegate();
+        this.lmdbEnvironmentComponent = lmdbEnvironmentComponent;
     }
 
     public void recover(String sourceTopic, String targetTopic) {
@@ -54,7 +57,7 @@ public class RecoveryWorker {
         monitor.setSourceDatabasePath(dbLocation.resolve(sourceTopic));
         monitor.setSourceTopic(sourceTopic);
         monitor.setTargetTopic(targetTopic);
-        try (LmdbEnvironment lmdbEnvironment = new LmdbEnvironment(configuration, dbLocation, sourceTopic)) {
+        try (LmdbEnvironment lmdbEnvironment = lmdbEnvironmentComponent.acquire(dbLocation, sourceTopic)) {
             Dbi<ByteBuffer> sequenceDb = lmdbEnvironment.open();
             SequenceDbHelper sequenceDbHelper = new SequenceDbHelper(lmdbEnvironment, sequenceDb);
             PositionAndULIDVersion firstPosition = sequenceDbHelper.findFirstPosition();
@@ -62,45 +65,45 @@ public class RecoveryWorker {
             PositionAndULIDVersion lastPosition = sequenceDbHelper.findLastPosition();
             monitor.setLastPosition(lastPosition.position());
 
-            int publishAtCount = 1000;
-            AtomicInteger bufferCounter = new AtomicInteger(0);
-            List<String> bufferedPositions = new ArrayList<>(publishAtCount);
             ContentStream contentStream = contentStore.contentStream();
             ContentStream recoveryContentStream = recoveryContentStore.contentStream();
             AtomicLong lastTimestamp = new AtomicLong(0);
             try {
                 ContentStreamProducer producer = recoveryContentStream.producer(targetTopic);
                 ContentStreamConsumer consumer = contentStream.consumer(sourceTopic);
-                ContentStreamBuffer buffer;
-                ContentStreamBuffer peekBuffer = null;
-                while (!closed.get() && (buffer = consumer.receive(15, TimeUnit.SECONDS)) != null) {
-                    peekBuffer = buffer;
-
-                    monitor.setCurrentPosition(buffer.position());
-                    producer.copy(buffer);
-                    bufferedPositions.add(buffer.position());
-                    monitor.incrementBufferedPositions();
-
-                    if (bufferCounter.incrementAndGet() == publishAtCount) {
-                        publishBuffers(bufferCounter, bufferedPositions, producer);
-                    }
-
-                    if (lastPosition.ulid().equals(buffer.ulid()) && lastPosition.position().equals(buffer.position())) {
-                        if (!bufferedPositions.isEmpty()) {
-                            publishBuffers(bufferCounter, bufferedPositions, producer);
-                        }
-                        break;
-                    }
+                AtomicBoolean lastPositionReceived = new AtomicBoolean();
+                RecoveryPipeline<ContentStreamBuffer> recoveryPipeline = RecoveryPipeline.create(configuration, targetTopic,
+                        () -> {
+                            // stop reading at the last position in the sequence database
+                            if (lastPositionReceived.get()) {
+                                return null;
+                            }
+                            ContentStreamBuffer buffer = consumer.receive(15, TimeUnit.SECONDS);
+                            if (buffer != null && !lastPosition.isEmpty() && lastPosition.ulid().equals(buffer.ulid()) && lastPosition.position().equals(buffer.position())) {
+                                lastPositionReceived.set(true);
+                            }
+                            return buffer;
+                        },
+                        ContentStreamBuffer::position,
+                        buffer -> {
+                            monitor.setCurrentPosition(buffer.position());
+                            producer.copy(buffer);
+                            lastTimestamp.set(buffer.ulid().timestamp());
+                        },
+                        producer::publish,
+                        monitor);
+                pipeline.set(recoveryPipeline);
+                if (closed.get()) {
+                    recoveryPipeline.terminate();
                 }
+                recoveryPipeline.run();
                 monitor.setEnded();
-                if (peekBuffer != null) {
-                    lastTimestamp.set(peekBuffer.ulid().timestamp());
-                }
                 LOG.info("Successful recovery from {} to {}. Recovered {} positions.", sourceTopic, targetTopic, monitor.copiedPositions.get());
             } catch (Exception e) {
                 monitor.setEnded();
                 throw new RuntimeException(e);
             } finally {
+                pipeline.set(null);
                 recoveryContentStream.closeAndRemoveProducer(sourceTopic);
                 contentStream.closeAndRemoveConsumer(targetTopic);
             }
@@ -147,16 +150,6 @@ public class RecoveryWorker {
         }
     }
 
-    private void publishBuffers(AtomicInteger bufferCounter, List<String> bufferedPositions, ContentStreamProducer producer) {
-        String[] publishPositions = bufferedPositions.toArray(new String[0]);
-        producer.publish(publishPositions);
-        monitor.incrementCopiedPositions(publishPositions.length);
-        //LOG.trace("Published: [{}]", String.join(", ", publishPositions));
-        bufferCounter.set(0);
-        bufferedPositions.clear();
-        monitor.resetBufferedPositions();
-    }
-
     public RecoveryMonitor monitor() {
         return monitor;
     }
@@ -167,5 +160,9 @@ public class RecoveryWorker {
 
     public void terminate() {
         closed.set(true);
+        RecoveryPipeline<ContentStreamBuffer> recoveryPipeline = pipeline.get();
+        if (recoveryPipeline != null) {
+            recoveryPipeline.terminate();
+        }
     }
 }
@@ -0,0 +1,75 @@
+package no.ssb.dc.server.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DirectByteBufferSlabTest {
+
+    @Test
+    void acquireAndReleaseSlices() {
+        DirectByteBufferSlab slab = new DirectByteBufferSlab(3, 16);
+        Set<ByteBuffer> acquired = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = slab.acquire();
+            assertTrue(buffer.isDirect());
+            assertEquals(0, buffer.position());
+            assertEquals(16, buffer.capacity());
+            acquired.add(buffer);
+        }
+        assertEquals(3, acquired.size());
+        assertEquals(0, slab.transientAllocations());
+
+        // exhausted slab falls back to a transient buffer
+        ByteBuffer transientBuffer = slab.acquire();
+        assertEquals(1, slab.transientAllocations());
+        slab.release(transientBuffer);
+
+        ByteBuffer released = acquired.iterator().next();
+        released.putLong(42L);
+        slab.release(released);
+        ByteBuffer reacquired = slab.acquire();
+        assertSame(released, reacquired);
+        assertEquals(0, reacquired.position());
+        assertEquals(1, slab.transientAllocations());
+    }
+
+    @Test
+    void concurrentAcquireAndRelease() {
+        DirectByteBufferSlab slab = new DirectByteBufferSlab(8, 8);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int n = 0; n < 100_000; n++) {
+                    ByteBuffer first = slab.acquire();
+                    ByteBuffer second = slab.acquire();
+                    first.putLong(0, n);
+                    second.putLong(0, -n);
+                    assertEquals(n, first.getLong(0));
+                    slab.release(second);
+                    slab.release(first);
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        // every slice is back on the free list
+        Set<ByteBuffer> acquired = Collections.newSetFromMap(new IdentityHashMap<>());
+        long transientAllocations = slab.transientAllocations();
+        for (int i = 0; i < 8; i++) {
+            acquired.add(slab.acquire());
+        }
+        assertEquals(8, acquired.size());
+        assertEquals(transientAllocations, slab.transientAllocations());
+    }
+}
@@ -1,6 +1,8 @@
 package no.ssb.dc.server.db;
 
 import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.config.StoreBasedDynamicConfiguration;
 import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.api.util.CommonUtils;
 import no.ssb.dc.server.integrity.IntegrityCheckIndex;
@@ -11,14 +13,22 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static no.ssb.dc.server.db.LmdbEnvironment.removePath;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Test requires vm arg: --add-opens java.base/java.nio=lmdbjava --add-exports=java.base/sun.nio.ch=lmdbjava
@@ -33,7 +43,9 @@ public class LmdbEnvironmentTest {
         Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
         removePath(dbPath);
 
-        try (LmdbEnvironment environment = new LmdbEnvironment(null, dbPath, "test-stream")) {
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(null);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "test-stream")) {
             try (IntegrityCheckIndex index = new IntegrityCheckIndex(environment)) {
 
                 for (int n = 1; n < 100; n++) {
@@ -80,4 +92,251 @@ public class LmdbEnvironmentTest {
         }
     }
 
+    @Test
+    public void testGrowMapSize() {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.dbSizeInMb", "1")
+                .build();
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "grow-stream")) {
+            long initialMapSize = environment.mapSize();
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(environment)) {
+                for (int n = 0; n < 100_000; n++) {
+                    index.writeSequence(ULIDGenerator.generate(), String.valueOf(n));
+                }
+                index.commitQueue();
+
+                AtomicLong count = new AtomicLong();
+                index.readSequence((sequenceKey, hasNext) -> count.incrementAndGet());
+                assertEquals(100_000, count.get());
+            }
+            LOG.trace("Map size grown from {} to {}", initialMapSize, environment.mapSize());
+            assertTrue(environment.mapSize() > initialMapSize);
+        }
+    }
+
+    @Test
+    public void testGrowMapSizeAhead() {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.dbSizeInMb", "1")
+                .build();
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "grow-ahead-stream")) {
+            long initialMapSize = environment.mapSize();
+            environment.growMapSizeAhead();
+            assertEquals(initialMapSize, environment.mapSize());
+
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(environment)) {
+                // fill more than 3/4 of the map while a held guard, e.g. a long scan, defers the resize
+                try (LmdbEnvironment.TxnGuard guard = environment.txnGuard()) {
+                    for (int n = 0; n < 21_000; n++) {
+                        index.writeSequence(ULIDGenerator.generate(), String.valueOf(n));
+                    }
+                    assertEquals(initialMapSize, environment.mapSize());
+                }
+                index.commitQueue();
+            }
+            environment.growMapSizeAhead();
+            assertTrue(environment.mapSize() > initialMapSize);
+        }
+    }
+
+    @Test
+    public void testSharedEnvironment() {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.environment.maxOpen", "1")
+                .values("data.collector.integrityCheck.environment.acquireTimeoutInSeconds", "1")
+                .build();
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration)) {
+            LmdbEnvironment first = registry.acquire(dbPath, "shared-stream");
+            try (LmdbEnvironment second = registry.acquire(dbPath, "shared-stream")) {
+                assertSame(first, second);
+                assertFalse(registry.evict(dbPath, "shared-stream"));
+                // the pool is full and the only environment is in use
+                assertThrows(IllegalStateException.class, () -> registry.acquire(dbPath, "other-stream"));
+            }
+            first.close();
+            assertFalse(first.isClosed());
+            assertFalse(registry.isInUse(dbPath, "shared-stream"));
+
+            // the idle environment is evicted to make room for another topic
+            try (LmdbEnvironment other = registry.acquire(dbPath, "other-stream")) {
+                assertTrue(first.isClosed());
+                assertFalse(other.isClosed());
+            }
+        }
+    }
+
+    @Test
+    public void testSequenceDbMetadata() {
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(null);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "meta-stream")) {
+            ULID.Value firstDuplicateUlid = null;
+            // ulids in write order, because the random part does not preserve the order within a millisecond
+            long timestamp = System.currentTimeMillis();
+            ULID ulidGenerator = new ULID();
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(null, environment, true)) {
+                for (int n = 1; n < 100; n++) {
+                    ULID.Value ulid = ulidGenerator.nextValue(timestamp + 2 * n);
+                    index.writeSequence(ulid, String.valueOf(n));
+                    if (n == 42) {
+                        firstDuplicateUlid = ulid;
+                    }
+                    if (n == 42 || n == 88) {
+                        index.writeSequence(ulidGenerator.nextValue(timestamp + 2 * n + 1), String.valueOf(n));
+                    }
+                }
+                index.commitQueue();
+            }
+
+            SequenceDbHelper helper = new SequenceDbHelper(environment, environment.open());
+            assertEquals(101, helper.count());
+            assertEquals("1", helper.findFirstPosition().position());
+            assertEquals("99", helper.findHighestPosition().position());
+            assertEquals("42", helper.findLastPosition().position());
+            assertEquals(firstDuplicateUlid, helper.findLastPosition().ulid());
+            assertEquals("99", helper.findMaxUlid().position());
+        }
+    }
+
+    @Test
+    public void testUlidRange() {
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(null);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "ulid-stream")) {
+            long timestamp = System.currentTimeMillis();
+            ULID ulidGenerator = new ULID();
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(null, environment, false, true)) {
+                for (int n = 0; n < 100; n++) {
+                    // ten positions per millisecond
+                    index.writeSequence(ulidGenerator.nextValue(timestamp + n / 10), String.valueOf(100 - n));
+                }
+                index.commitQueue();
+            }
+
+            SequenceDbHelper helper = new SequenceDbHelper(environment, environment.open());
+            assertTrue(helper.isUlidIndexed());
+            List<SequenceKey> sequenceKeys = new ArrayList<>();
+            helper.handleUlidRange(timestamp + 2, timestamp + 4, sequenceKeys::add);
+            assertEquals(20, sequenceKeys.size());
+            // the random part of an ulid does not preserve the write order within a millisecond
+            assertTrue(sequenceKeys.stream().mapToInt(key -> Integer.parseInt(key.position())).allMatch(position -> position > 60 && position <= 80));
+        }
+    }
+
+    @Test
+    public void testPagedDuplicates() {
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        removePath(dbPath);
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(null);
+
+             LmdbEnvironment environment = registry.acquire(dbPath, "duplicate-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(null, environment)) {
+                for (int n = 0; n < 100; n++) {
+                    index.writeSequence(ULIDGenerator.generate(), String.valueOf(n));
+                    index.writeSequence(ULIDGenerator.generate(), "a-" + n);
+                    if (n % 10 == 0) {
+                        index.writeSequence(ULIDGenerator.generate(), String.valueOf(n));
+                        index.writeSequence(ULIDGenerator.generate(), "a-" + n);
+                        index.writeSequence(ULIDGenerator.generate(), "b-" + n);
+                        index.writeSequence(ULIDGenerator.generate(), "b-" + n);
+                    }
+                }
+                index.commitQueue();
+            }
+
+            SequenceDbHelper helper = new SequenceDbHelper(environment, environment.open());
+            List<String> positions = new ArrayList<>();
+            String afterPosition = null;
+            while (true) {
+                List<String> page = new ArrayList<>();
+                helper.handlePositionDuplicates(afterPosition, null, event -> {
+                    assertEquals(2, event.ulidSet().size());
+                    page.add(event.position());
+                    return page.size() < 7;
+                });
+                if (page.isEmpty()) {
+                    break;
+                }
+                positions.addAll(page);
+                afterPosition = page.get(page.size() - 1);
+            }
+            assertEquals(30, positions.size());
+            assertEquals("0", positions.get(0));
+            assertEquals("b-90", positions.get(29));
+
+            List<String> prefixed = new ArrayList<>();
+            helper.handlePositionDuplicates("a-30", "a-", event -> prefixed.add(event.position()));
+            assertEquals(List.of("a-40", "a-50", "a-60", "a-70", "a-80", "a-90"), prefixed);
+
+            // a start position before the prefix range starts at the first position with the prefix
+            List<String> prefixedAfterNumeric = new ArrayList<>();
+            helper.handlePositionDuplicates("0", "a-", event -> prefixedAfterNumeric.add(event.position()));
+            assertEquals(List.of("a-0", "a-10", "a-20", "a-30", "a-40", "a-50", "a-60", "a-70", "a-80", "a-90"), prefixedAfterNumeric);
+
+            // a start position after the prefix range
+            List<String> prefixedAfterRange = new ArrayList<>();
+            helper.handlePositionDuplicates("b-0", "a-", event -> prefixedAfterRange.add(event.position()));
+            assertEquals(List.of(), prefixedAfterRange);
+
+            List<String> numeric = new ArrayList<>();
+            helper.handlePositionDuplicates(null, "9", event -> numeric.add(event.position()));
+            assertEquals(List.of("90"), numeric);
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.database.location", dbPath.toString())
+                .values("data.collector.integrityCheck.snapshot.location", dbPath.resolveSibling("lmdb-snapshot").toString())
+                .build();
+        removePath(dbPath);
+        removePath(SequenceDbSnapshot.getSnapshotLocation(configuration));
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration)) {
+            try (LmdbEnvironment environment = registry.acquire(dbPath, "snapshot-stream")) {
+                try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, environment, true)) {
+                    for (int n = 0; n < 10_000; n++) {
+                        index.writeSequence(ULIDGenerator.generate(), String.valueOf(n));
+                    }
+                    index.commitQueue();
+                }
+            }
+
+            SequenceDbSnapshot sequenceDbSnapshot = new SequenceDbSnapshot(configuration, registry);
+            SequenceDbSnapshot.Snapshot snapshot = sequenceDbSnapshot.create("snapshot-stream");
+            LOG.trace("Snapshot size {} of {}", snapshot.getSize(), snapshot.getSourceSize());
+            assertTrue(snapshot.getSize() <= snapshot.getSourceSize());
+            assertEquals(List.of(snapshot), sequenceDbSnapshot.list("snapshot-stream"));
+
+            assertTrue(sequenceDbSnapshot.restore("snapshot-stream", "latest"));
+            try (LmdbEnvironment environment = registry.acquire(dbPath, "snapshot-stream")) {
+                assertEquals(10_000, new SequenceDbHelper(environment, environment.open()).count());
+            }
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package no.ssb.dc.server.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SequenceDbCatalogTest {
+
+    static void writeSummary(Path dbLocation, String topic, String status) throws Exception {
+        Path reportPath = dbLocation.resolve(topic).resolve("report");
+        Files.createDirectories(reportPath);
+        Files.writeString(reportPath.resolve("summary.json"), "{\"status\":\"" + status + "\"}");
+    }
+
+    static boolean await(BooleanSupplier condition) throws InterruptedException {
+        // some platforms poll for file system events every few seconds
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    @Test
+    void loadTopicsAndCacheSummaries() throws Exception {
+        Path dbLocation = Files.createTempDirectory("sequence-db-catalog");
+        try {
+            writeSummary(dbLocation, "topic-b", "COMPLETED");
+            Files.createDirectories(dbLocation.resolve("topic-a"));
+            Files.writeString(dbLocation.resolve("not-a-topic"), "");
+
+            try (SequenceDbCatalog catalog = SequenceDbCatalog.create(dbLocation)) {
+                assertEquals(List.of("topic-a", "topic-b"), catalog.topics());
+                assertTrue(catalog.contains("topic-a"));
+                assertFalse(catalog.contains("not-a-topic"));
+
+                assertNull(catalog.getSummary("topic-a", Map.class));
+                assertNull(catalog.getSummary("topic-c", Map.class));
+                Map<?, ?> summary = catalog.getSummary("topic-b", Map.class);
+                assertEquals("COMPLETED", summary.get("status"));
+                assertSame(summary, catalog.getSummary("topic-b", Map.class));
+
+                writeSummary(dbLocation, "topic-b", "FAILED");
+                catalog.refresh("topic-b");
+                assertEquals("FAILED", catalog.getSummary("topic-b", Map.class).get("status"));
+
+                LmdbEnvironment.removePath(dbLocation.resolve("topic-a"));
+                catalog.refresh("topic-a");
+                assertEquals(List.of("topic-b"), catalog.topics());
+            }
+        } finally {
+            LmdbEnvironment.removePath(dbLocation);
+        }
+    }
+
+    @Test
+    void watchDatabaseLocation() throws Exception {
+        Path dbLocation = Files.createTempDirectory("sequence-db-catalog");
+        try (SequenceDbCatalog catalog = SequenceDbCatalog.create(dbLocation)) {
+            assertEquals(List.of(), catalog.topics());
+
+            Files.createDirectories(dbLocation.resolve("topic"));
+            assertTrue(await(() -> catalog.contains("topic")));
+            assertNull(catalog.getSummary("topic", Map.class));
+
+            writeSummary(dbLocation, "topic", "COMPLETED");
+            assertTrue(await(() -> {
+                Map<?, ?> summary = catalog.getSummary("topic", Map.class);
+                return summary != null && "COMPLETED".equals(summary.get("status"));
+            }));
+
+            LmdbEnvironment.removePath(dbLocation.resolve("topic"));
+            assertTrue(await(() -> !catalog.contains("topic")));
+        } finally {
+            LmdbEnvironment.removePath(dbLocation);
+        }
+    }
+}
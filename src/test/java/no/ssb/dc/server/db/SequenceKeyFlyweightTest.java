@@ -0,0 +1,64 @@
+package no.ssb.dc.server.db;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SequenceKeyFlyweightTest {
+
+    static ByteBuffer encode(ULID.Value ulid, String position) {
+        return new SequenceKey(ulid, position).toByteBuffer(ByteBuffer.allocateDirect(511));
+    }
+
+    @Test
+    void compareAdjacentPositions() {
+        ULID.Value firstUlid = ULIDGenerator.generate();
+        ULID.Value secondUlid = ULIDGenerator.generate();
+
+        SequenceKeyFlyweight currentKey = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight prevKey = new SequenceKeyFlyweight(511);
+        assertTrue(prevKey.isEmpty());
+
+        ByteBuffer cursorBuffer = encode(firstUlid, "1001");
+        prevKey.copyFrom(currentKey.wrap(cursorBuffer));
+
+        // reuse cursor buffer to make sure the copy is detached
+        cursorBuffer.clear();
+        new SequenceKey(secondUlid, "1001").toByteBuffer(cursorBuffer);
+        currentKey.wrap(cursorBuffer);
+
+        assertTrue(prevKey.positionEquals(currentKey));
+        assertEquals("1001", prevKey.position());
+        assertEquals(firstUlid, prevKey.ulid());
+        assertEquals(secondUlid, currentKey.ulid());
+        assertEquals(new SequenceKey(secondUlid, "1001"), currentKey.toSequenceKey());
+
+        currentKey.wrap(encode(secondUlid, "10011"));
+        assertFalse(prevKey.positionEquals(currentKey));
+
+        currentKey.wrap(encode(secondUlid, "1002"));
+        assertFalse(prevKey.positionEquals(currentKey));
+    }
+
+    @Test
+    void comparePositionsInKeyOrder() {
+        ULID.Value ulid = ULIDGenerator.generate();
+        SequenceKeyFlyweight key = new SequenceKeyFlyweight();
+        SequenceKeyFlyweight otherKey = new SequenceKeyFlyweight();
+
+        assertEquals(0, key.wrap(encode(ulid, "1001")).comparePosition(otherKey.wrap(encode(ULIDGenerator.generate(), "1001"))));
+        assertTrue(key.wrap(encode(ulid, "1001")).comparePosition(otherKey.wrap(encode(ulid, "1002"))) < 0);
+        assertTrue(key.wrap(encode(ulid, "1002")).comparePosition(otherKey.wrap(encode(ulid, "10011"))) < 0);
+        assertTrue(key.wrap(encode(ulid, "b")).comparePosition(otherKey.wrap(encode(ulid, "a"))) > 0);
+        assertTrue(key.wrap(encode(ulid, "a")).comparePosition(otherKey.wrap(encode(ulid, "ab"))) < 0);
+
+        // numeric positions sort before string positions
+        assertTrue(key.wrap(encode(ulid, "999")).comparePosition(otherKey.wrap(encode(ulid, "a"))) < 0);
+    }
+}
@@ -0,0 +1,112 @@
+package no.ssb.dc.server.db;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SequenceKeyTest {
+
+    static ByteBuffer encode(ULID.Value ulid, String position) {
+        return new SequenceKey(ulid, position).toByteBuffer(ByteBuffer.allocateDirect(511));
+    }
+
+    static int compareUnsigned(ByteBuffer a, ByteBuffer b) {
+        // Lmdb compares keys using memcmp
+        int length = Math.min(a.remaining(), b.remaining());
+        for (int i = 0; i < length; i++) {
+            int cmp = Integer.compare(a.get(a.position() + i) & 0xFF, b.get(b.position() + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.remaining(), b.remaining());
+    }
+
+    @Test
+    void roundTrip() {
+        ULID.Value ulid = ULIDGenerator.generate();
+        String longPosition = "x".repeat(200);
+        for (String position : List.of("0", "1001", "9223372036854775807", "9223372036854775808", "007", "-1", "abc", "a\u0000b", "æøå", longPosition)) {
+            ByteBuffer keyBuffer = encode(ulid, position);
+            assertEquals(new SequenceKey(ulid, position), SequenceKey.fromByteBuffer(keyBuffer));
+            assertEquals(position, new SequenceKeyFlyweight().wrap(encode(ulid, position)).position());
+        }
+    }
+
+    @Test
+    void stringPositionIsEncodedAsEscapedUtf8() {
+        ULID.Value ulid = ULIDGenerator.generate();
+        // one, two, three and four byte characters, an escaped 0x00 and unpaired surrogates
+        for (String position : List.of("abc", "a\u0000b", "æøå", "\u20ac1", "\uD83D\uDE00x", "a\uD83Db", "\uDE00", "x\uD83D")) {
+            byte[] positionBytes = position.getBytes(UTF_8);
+            ByteBuffer expected = ByteBuffer.allocate(511);
+            expected.put((byte) SequenceKey.STRING_POSITION);
+            for (byte b : positionBytes) {
+                expected.put(b);
+                if (b == 0) {
+                    expected.put((byte) 0xFF);
+                }
+            }
+            expected.put((byte) 0x00).put((byte) 0x01);
+            expected.putLong(ulid.getMostSignificantBits()).putLong(ulid.getLeastSignificantBits()).flip();
+            assertEquals(expected, SequenceKey.encode(ulid, position, ByteBuffer.allocate(511)));
+            assertEquals(expected.remaining(), 1 + SequenceKey.escapedUtf8Length(position) + 2 + SequenceKey.ULID_LENGTH);
+        }
+        assertEquals("\uD83D\uDE00x", SequenceKey.fromByteBuffer(encode(ulid, "\uD83D\uDE00x")).position());
+    }
+
+    @Test
+    void numericPositionIsPackedAsLong() {
+        ByteBuffer keyBuffer = encode(ULIDGenerator.generate(), "123456789012");
+        assertEquals(1 + Long.BYTES + SequenceKey.ULID_LENGTH, keyBuffer.remaining());
+        assertEquals(SequenceKey.NUMERIC_POSITION, keyBuffer.get(0) & 0xFF);
+    }
+
+    @Test
+    void onlyCanonicalDecimalPositionIsNumeric() {
+        assertEquals(0, SequenceKey.numericPosition("0"));
+        assertEquals(7, SequenceKey.numericPosition("7"));
+        assertEquals(Long.MAX_VALUE, SequenceKey.numericPosition("9223372036854775807"));
+        for (String position : List.of("", "007", "00", "+7", "-7", " 7", "7 ", "7a", "\u0667", "9223372036854775808", "99999999999999999999")) {
+            assertEquals(-1, SequenceKey.numericPosition(position), position);
+        }
+    }
+
+    @Test
+    void keysAreOrderedByPositionThenUlid() {
+        ULID.Value first = new ULID.Value(ULIDGenerator.generate().getMostSignificantBits(), 1);
+        ULID.Value second = new ULID.Value(first.getMostSignificantBits(), 2);
+        assertTrue(compareUnsigned(encode(second, "2"), encode(first, "10")) < 0);
+        assertTrue(compareUnsigned(encode(first, "10"), encode(second, "10")) < 0);
+        assertTrue(compareUnsigned(encode(second, "a"), encode(first, "ab")) < 0);
+        assertTrue(compareUnsigned(encode(second, "a"), encode(first, "a\u0000")) < 0);
+        assertTrue(compareUnsigned(encode(second, "a\u0000"), encode(first, "a\u0001")) < 0);
+        // a position sorts before all keys that share the position
+        assertTrue(compareUnsigned(SequenceKey.encodePosition("10", ByteBuffer.allocate(511)), encode(first, "10")) < 0);
+    }
+
+    @Test
+    void decodeLegacyKeyFormat() {
+        ULID.Value ulid = ULIDGenerator.generate();
+        byte[] position = "1001".getBytes(UTF_8);
+        ByteBuffer keyBuffer = ByteBuffer.allocate(1 + position.length + SequenceKey.ULID_LENGTH);
+        keyBuffer.put((byte) position.length).put(position);
+        keyBuffer.putLong(ulid.getMostSignificantBits()).putLong(ulid.getLeastSignificantBits()).flip();
+        assertEquals(new SequenceKey(ulid, "1001"), SequenceKey.fromByteBuffer(keyBuffer));
+    }
+
+    @Test
+    void positionMustFitMaxKeySize() {
+        ULID.Value ulid = ULIDGenerator.generate();
+        assertThrows(IllegalArgumentException.class, () -> new SequenceKey(ulid, "x".repeat(495)).toByteBuffer(ByteBuffer.allocateDirect(511)));
+        new SequenceKey(ulid, "x".repeat(492)).toByteBuffer(ByteBuffer.allocateDirect(511));
+    }
+}
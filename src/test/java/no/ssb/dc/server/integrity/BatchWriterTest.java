@@ -0,0 +1,161 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchWriterTest {
+
+    @Test
+    void flushAndCloseDrainTheQueue() {
+        List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> released = Collections.synchronizedList(new ArrayList<>());
+        // a long commit interval, so only a full batch, a flush or close commits
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 10, 60_000, committed::addAll, released::add);
+        for (int i = 0; i < 25; i++) {
+            writer.write(i);
+        }
+        writer.flush();
+        assertEquals(25, committed.size());
+        assertEquals(25, released.size());
+
+        for (int i = 25; i < 28; i++) {
+            writer.write(i);
+        }
+        writer.close();
+        assertEquals(28, committed.size());
+        assertEquals(28, released.size());
+        for (int i = 0; i < 28; i++) {
+            assertEquals(i, (int) committed.get(i));
+        }
+    }
+
+    @Test
+    void commitIntervalCommitsPartialBatch() throws InterruptedException {
+        CountDownLatch committedLatch = new CountDownLatch(3);
+        try (BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 1000, 50,
+                batch -> batch.forEach(element -> committedLatch.countDown()), element -> {
+        })) {
+            for (int i = 0; i < 3; i++) {
+                writer.write(i);
+            }
+            assertTrue(committedLatch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void writerFailureReachesProducer() {
+        List<Integer> released = Collections.synchronizedList(new ArrayList<>());
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 10, 60_000, batch -> {
+            throw new IllegalArgumentException("commit failed");
+        }, released::add);
+        for (int i = 0; i < 5; i++) {
+            writer.write(i);
+        }
+        IllegalStateException e = assertThrows(IllegalStateException.class, writer::flush);
+        assertEquals("commit failed", e.getCause().getMessage());
+        assertEquals(5, released.size());
+
+        assertThrows(IllegalStateException.class, () -> writer.write(5));
+        assertThrows(IllegalStateException.class, writer::close);
+    }
+
+    @Test
+    void interruptedWriterFailsBlockedProducer() throws InterruptedException {
+        CountDownLatch commitLatch = new CountDownLatch(1);
+        AtomicInteger committed = new AtomicInteger();
+        List<Integer> released = Collections.synchronizedList(new ArrayList<>());
+        BatchWriter<Integer> writer = new BatchWriter<>("interrupted-writer", 2, 60_000, batch -> {
+            commitLatch.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committed.addAndGet(batch.size());
+        }, released::add);
+
+        AtomicInteger written = new AtomicInteger();
+        List<Throwable> producerErrors = Collections.synchronizedList(new ArrayList<>());
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    writer.write(i);
+                    written.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                producerErrors.add(e);
+            }
+        });
+        producer.start();
+        assertTrue(commitLatch.await(10, TimeUnit.SECONDS));
+
+        // the producer is blocked on a full queue when the writer is interrupted
+        Thread writerThread = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> "interrupted-writer".equals(thread.getName()))
+                .findFirst()
+                .orElseThrow();
+        writerThread.interrupt();
+        producer.join(10_000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, producerErrors.size());
+        assertTrue(producerErrors.get(0) instanceof IllegalStateException);
+        assertTrue(written.get() < 10);
+
+        assertThrows(IllegalStateException.class, () -> writer.write(10));
+        assertThrows(IllegalStateException.class, writer::flush);
+        assertThrows(IllegalStateException.class, writer::close);
+        assertFalse(writerThread.isAlive());
+        assertEquals(written.get(), released.size());
+    }
+
+    @Test
+    void fullQueueBlocksProducer() throws InterruptedException {
+        CountDownLatch commitLatch = new CountDownLatch(1);
+        AtomicInteger committed = new AtomicInteger();
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 2, 60_000, batch -> {
+            try {
+                commitLatch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            committed.addAndGet(batch.size());
+        }, element -> {
+        });
+
+        // the writer holds the first batch (2) while committing, and the queue holds the next two
+        AtomicInteger written = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                writer.write(i);
+                written.incrementAndGet();
+            }
+        });
+        producer.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (written.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(4, written.get());
+        assertTrue(producer.isAlive());
+        assertEquals(0, committed.get());
+
+        // no write is dropped when the writer catches up
+        commitLatch.countDown();
+        producer.join(10_000);
+        assertFalse(producer.isAlive());
+        writer.close();
+        assertEquals(10, committed.get());
+    }
+}
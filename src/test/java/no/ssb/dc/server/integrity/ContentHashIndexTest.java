@@ -0,0 +1,48 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.api.util.CommonUtils;
+import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Test requires vm arg: --add-opens java.base/java.nio=lmdbjava --add-exports=java.base/sun.nio.ch=lmdbjava
+ */
+public class ContentHashIndexTest {
+
+    @Test
+    void positionMustFitInContentKey() {
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("content-key-stream"));
+
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(null);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "content-key-stream");
+             ContentHashIndex index = new ContentHashIndex(null, lmdbEnvironment)) {
+            // a string position is encoded as a marker, the position and a terminator, followed by the ulid
+            String longestPosition = "p".repeat(lmdbEnvironment.maxKeySize() - ContentHashIndex.HASH_LENGTH - 3 - 2 * Long.BYTES);
+            index.write(ULIDGenerator.generate(), longestPosition, 1, 2);
+            index.write(ULIDGenerator.generate(), longestPosition, 1, 2);
+            assertThrows(IllegalArgumentException.class, () -> index.write(ULIDGenerator.generate(), longestPosition + "p", 1, 2));
+            index.flush();
+
+            List<String> positions = new ArrayList<>();
+            index.readContentGroups(group -> {
+                group.forEachSequenceKey(sequenceKey -> positions.add(sequenceKey.position()));
+                return true;
+            });
+            assertEquals(List.of(longestPosition, longestPosition), positions);
+
+            List<String> positionGroups = new ArrayList<>();
+            index.readPositionGroups(group -> positionGroups.add(group.position()));
+            assertEquals(List.of(longestPosition), positionGroups);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CountingBloomFilterTest {
+
+    @Test
+    void addedValuesAreCounted() {
+        CountingBloomFilter filter = CountingBloomFilter.create(1024 * 1024, 100_000);
+        for (int n = 0; n < 100_000; n++) {
+            filter.add(String.valueOf(n));
+        }
+        // a Bloom filter has no false negatives
+        for (int n = 0; n < 100_000; n++) {
+            assertTrue(filter.add(String.valueOf(n)) >= 2);
+        }
+        assertEquals(200_000, filter.insertions());
+    }
+
+    @Test
+    void falsePositiveRateIsCloseToEstimate() {
+        CountingBloomFilter filter = CountingBloomFilter.create(512 * 1024, 100_000);
+        for (int n = 0; n < 100_000; n++) {
+            filter.add("position-" + n);
+        }
+        int falsePositives = 0;
+        int probes = 100_000;
+        for (int n = 0; n < probes; n++) {
+            if (filter.count("other-" + n) > 0) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        double estimate = filter.estimatedFalsePositiveRate();
+        assertTrue(estimate > 0 && estimate < 0.1, "estimate: " + estimate);
+        assertTrue(Math.abs(rate - estimate) < 0.005, "rate: " + rate + " estimate: " + estimate);
+    }
+
+    @Test
+    void countersSaturate() {
+        CountingBloomFilter filter = new CountingBloomFilter(16, 1);
+        for (int n = 0; n < 20; n++) {
+            filter.add("a");
+        }
+        assertEquals(CountingBloomFilter.MAX_COUNT, filter.count("a"));
+    }
+}
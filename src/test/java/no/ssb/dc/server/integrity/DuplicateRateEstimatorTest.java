@@ -0,0 +1,70 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DuplicateRateEstimatorTest {
+
+    @Test
+    void evenlySpreadDuplicates() {
+        DuplicateRateEstimator estimator = new DuplicateRateEstimator();
+        for (int n = 0; n < 20; n++) {
+            estimator.addWindow(10_000, 100, 1000);
+        }
+        assertEquals(0.01, estimator.rate(), 1e-9);
+        assertEquals(1.0, estimator.designEffect());
+        assertTrue(estimator.lowerBound() < 0.01 && estimator.lowerBound() > 0.0095, "lower: " + estimator.lowerBound());
+        assertTrue(estimator.upperBound() > 0.01 && estimator.upperBound() < 0.0105, "upper: " + estimator.upperBound());
+        // 200 000 messages in 20 seconds
+        assertEquals(10_000_000L, (long) estimator.estimatedMessages(1000 * 1000));
+    }
+
+    @Test
+    void clusteredDuplicatesWidenInterval() {
+        DuplicateRateEstimator spread = new DuplicateRateEstimator();
+        DuplicateRateEstimator clustered = new DuplicateRateEstimator();
+        for (int n = 0; n < 20; n++) {
+            spread.addWindow(10_000, 100, 1000);
+            // the same number of duplicates, all found in two windows
+            clustered.addWindow(10_000, n < 2 ? 1000 : 0, 1000);
+        }
+        assertEquals(spread.rate(), clustered.rate(), 1e-9);
+        assertTrue(clustered.designEffect() > 10, "design effect: " + clustered.designEffect());
+        assertTrue(clustered.upperBound() - clustered.lowerBound() > 3 * (spread.upperBound() - spread.lowerBound()));
+    }
+
+    @Test
+    void noDuplicatesHasUpperBound() {
+        DuplicateRateEstimator estimator = new DuplicateRateEstimator();
+        for (int n = 0; n < 10; n++) {
+            estimator.addWindow(1000, 0, 1000);
+        }
+        // an empty window only adds to the sampled duration
+        estimator.addWindow(0, 0, 1000);
+        assertEquals(10, estimator.windows());
+        assertEquals(0.0, estimator.rate());
+        assertEquals(0.0, estimator.lowerBound());
+        assertTrue(estimator.upperBound() > 0 && estimator.upperBound() < 0.001, "upper: " + estimator.upperBound());
+        assertEquals(10_000L, (long) estimator.estimatedMessages(11_000));
+    }
+
+    @Test
+    void windowsCoverTimeRangeWithoutOverlap() {
+        List<SampleConsumeStrategy.SampleWindow> windows = SampleConsumeStrategy.createSampleWindows(1000, 2001, 10, new Random(42));
+        assertEquals(10, windows.size());
+        long stratumFrom = 1000;
+        for (SampleConsumeStrategy.SampleWindow window : windows) {
+            assertTrue(window.fromTimestamp >= stratumFrom && window.fromTimestamp < window.toTimestamp);
+            stratumFrom = window.toTimestamp;
+        }
+        assertEquals(2001, stratumFrom);
+
+        // never more windows than milliseconds
+        assertEquals(3, SampleConsumeStrategy.createSampleWindows(1000, 1003, 10, new Random(42)).size());
+    }
+}
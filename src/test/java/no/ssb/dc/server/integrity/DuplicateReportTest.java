@@ -0,0 +1,75 @@
+package no.ssb.dc.server.integrity;
+
+import de.huxhorn.sulky.ulid.ULID;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DuplicateReportTest {
+
+    static Map<String, List<ULID.Value>> duplicates() {
+        ULID ulid = new ULID();
+        Map<String, List<ULID.Value>> duplicates = new LinkedHashMap<>();
+        for (int n = 0; n < 1000; n++) {
+            duplicates.put(n % 2 == 0 ? String.valueOf(n) : "pos-\"" + n + "\"-æøå", List.of(ulid.nextValue(), ulid.nextValue(), ulid.nextValue()));
+        }
+        return duplicates;
+    }
+
+    static Path writeReport(Path reportPath, String format, Map<String, List<ULID.Value>> duplicates) {
+        String reportId = "report." + DuplicateReport.fileExtension(format);
+        try (DuplicateReport.Writer writer = DuplicateReport.createWriter(format, reportPath, reportId)) {
+            duplicates.forEach(writer::write);
+        }
+        return reportPath.resolve(reportId);
+    }
+
+    static Map<String, List<ULID.Value>> readReport(Path reportFile) {
+        Map<String, List<ULID.Value>> duplicates = new LinkedHashMap<>();
+        long count = DuplicateReport.read(reportFile, duplicates::put);
+        assertEquals(duplicates.size(), count);
+        return duplicates;
+    }
+
+    @Test
+    void readWhatWasWritten() throws IOException {
+        Path reportPath = Files.createTempDirectory("duplicate-report");
+        Map<String, List<ULID.Value>> duplicates = duplicates();
+        for (String format : List.of(DuplicateReport.JSON_FORMAT, DuplicateReport.NDJSON_FORMAT, DuplicateReport.BINARY_FORMAT)) {
+            assertEquals(duplicates, readReport(writeReport(reportPath, format, duplicates)), format);
+        }
+    }
+
+    @Test
+    void compactFormatsAreSmaller() throws IOException {
+        Path reportPath = Files.createTempDirectory("duplicate-report");
+        Map<String, List<ULID.Value>> duplicates = duplicates();
+        long jsonSize = Files.size(writeReport(reportPath, DuplicateReport.JSON_FORMAT, duplicates));
+        long ndjsonSize = Files.size(writeReport(reportPath, DuplicateReport.NDJSON_FORMAT, duplicates));
+        long binarySize = Files.size(writeReport(reportPath, DuplicateReport.BINARY_FORMAT, duplicates));
+        assertTrue(ndjsonSize < jsonSize, ndjsonSize + " < " + jsonSize);
+        assertTrue(binarySize * 2 < jsonSize, binarySize + " * 2 < " + jsonSize);
+    }
+
+    @Test
+    void copyReportToAnotherFormat() throws IOException {
+        Path reportPath = Files.createTempDirectory("duplicate-report");
+        Map<String, List<ULID.Value>> duplicates = duplicates();
+        Path jsonReport = writeReport(reportPath, DuplicateReport.JSON_FORMAT, duplicates);
+        List<String> positions = new ArrayList<>();
+        try (DuplicateReport.Writer writer = DuplicateReport.createWriter(DuplicateReport.BINARY_FORMAT, reportPath, "copy.bin")) {
+            assertEquals(duplicates.size(), writer.writeAll(jsonReport));
+        }
+        DuplicateReport.read(reportPath.resolve("copy.bin"), (position, ulids) -> positions.add(position));
+        assertEquals(new ArrayList<>(duplicates.keySet()), positions);
+    }
+}
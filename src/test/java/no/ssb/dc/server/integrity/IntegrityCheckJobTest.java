@@ -0,0 +1,154 @@
+package no.ssb.dc.server.integrity;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.server.db.SequenceKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IntegrityCheckJobTest {
+
+    static final ULID ULID_GENERATOR = new ULID();
+
+    @Test
+    void splitTimeRangeIntoSlices() {
+        List<IntegrityCheckJobSummary.SliceProgress> slices = IndexConsumeStrategy.createSlices(new IntegrityCheckJobSummary(), 4, 1000, 101);
+        assertEquals(4, slices.size());
+        for (int n = 0; n < 4; n++) {
+            IntegrityCheckJobSummary.SliceProgress slice = slices.get(n);
+            assertEquals(n, slice.index);
+            assertEquals(1000 + n * 25L, slice.fromTimestamp);
+            if (n < 3) {
+                assertEquals(slice.fromTimestamp + 25, slice.toTimestamp);
+                assertEquals(slices.get(n + 1).fromTimestamp, slice.toTimestamp);
+                assertFalse(slice.isOpenEnded());
+            }
+        }
+        // the last slice reads until end of stream, including the remainder of the time range
+        assertTrue(slices.get(3).isOpenEnded());
+    }
+
+    @Test
+    void sliceCountIsLimitedByTimeRange() {
+        List<IntegrityCheckJobSummary.SliceProgress> slices = IndexConsumeStrategy.createSlices(new IntegrityCheckJobSummary(), 4, 1000, 2);
+        assertEquals(2, slices.size());
+        assertEquals(1000L, slices.get(0).fromTimestamp);
+        assertEquals(1001L, slices.get(0).toTimestamp);
+        assertEquals(1001L, slices.get(1).fromTimestamp);
+        assertTrue(slices.get(1).isOpenEnded());
+
+        // an empty topic, or a topic that is checked by a single consumer
+        slices = IndexConsumeStrategy.createSlices(new IntegrityCheckJobSummary(), 4, 1000, 0);
+        assertEquals(1, slices.size());
+        assertEquals(1000L, slices.get(0).fromTimestamp);
+        assertTrue(slices.get(0).isOpenEnded());
+    }
+
+    static IntegrityCheckJobSummary.SliceProgress slice(IntegrityCheckJobSummary summary, int index, String status, ULID.Value lastUlid) {
+        IntegrityCheckJobSummary.SliceProgress slice = summary.addSlice(index, index * 100L, (index + 1) * 100L);
+        if (lastUlid != null) {
+            slice.update("position-" + index, lastUlid);
+        }
+        slice.setStatus(status);
+        return slice;
+    }
+
+    @Test
+    void resumeAfterLastUlidOfCompletedSlices() {
+        IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary();
+        ULID.Value previousUlid = ULID_GENERATOR.nextValue(10);
+        ULID.Value lastUlid = ULID_GENERATOR.nextValue(250);
+        List<IntegrityCheckJobSummary.SliceProgress> slices = List.of(
+                slice(summary, 0, "COMPLETED", ULID_GENERATOR.nextValue(50)),
+                slice(summary, 1, "COMPLETED", ULID_GENERATOR.nextValue(150)),
+                slice(summary, 2, "COMPLETED", lastUlid));
+        assertEquals(lastUlid, IndexConsumeStrategy.resumeUlid(slices, previousUlid));
+
+        // no slices, or no new positions
+        assertEquals(previousUlid, IndexConsumeStrategy.resumeUlid(List.of(), previousUlid));
+        assertNull(IndexConsumeStrategy.resumeUlid(List.of(), null));
+        assertEquals(previousUlid, IndexConsumeStrategy.resumeUlid(List.of(slice(new IntegrityCheckJobSummary(), 0, "COMPLETED", null)), previousUlid));
+    }
+
+    @Test
+    void resumeAfterPartiallyCompletedSlices() {
+        IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary();
+        ULID.Value previousUlid = ULID_GENERATOR.nextValue(10);
+        ULID.Value firstSliceUlid = ULID_GENERATOR.nextValue(50);
+        ULID.Value failedSliceUlid = ULID_GENERATOR.nextValue(120);
+
+        // positions after the failed slice are checked again by the next incremental check
+        List<IntegrityCheckJobSummary.SliceProgress> slices = List.of(
+                slice(summary, 0, "COMPLETED", firstSliceUlid),
+                slice(summary, 1, "FAILED", failedSliceUlid),
+                slice(summary, 2, "COMPLETED", ULID_GENERATOR.nextValue(250)));
+        assertEquals(failedSliceUlid, IndexConsumeStrategy.resumeUlid(slices, previousUlid));
+
+        // a terminated slice that did not receive any position resumes after the previous slice
+        summary = new IntegrityCheckJobSummary();
+        slices = List.of(
+                slice(summary, 0, "COMPLETED", firstSliceUlid),
+                slice(summary, 1, "TERMINATED", null),
+                slice(summary, 2, "COMPLETED", ULID_GENERATOR.nextValue(250)));
+        assertEquals(firstSliceUlid, IndexConsumeStrategy.resumeUlid(slices, previousUlid));
+
+        // the first slice did not receive any position
+        summary = new IntegrityCheckJobSummary();
+        slices = List.of(
+                slice(summary, 0, "FAILED", null),
+                slice(summary, 1, "COMPLETED", ULID_GENERATOR.nextValue(150)));
+        assertEquals(previousUlid, IndexConsumeStrategy.resumeUlid(slices, previousUlid));
+    }
+
+    @Test
+    void onlyFullCheckSummaryCanBeResumed() {
+        IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary();
+        summary.setLastUlid(ULID_GENERATOR.nextValue());
+        IntegrityCheckJobSummary.Summary fullSummary = summary.build();
+        assertEquals(SequenceKey.FORMAT_VERSION, fullSummary.keyFormat);
+        assertEquals(ULIDGenerator.toUUID(summary.getLastUlid()).toString(), fullSummary.lastUlid);
+
+        summary.setContentHash(1);
+        IntegrityCheckJobSummary.Summary contentSummary = summary.build();
+        assertEquals(0, contentSummary.keyFormat);
+        assertNull(contentSummary.lastUlid);
+    }
+
+    @Test
+    void estimateRemainingTimeFromSliceWithLeastProgress() {
+        IntegrityCheckJobSummary summary = new IntegrityCheckJobSummary();
+        summary.setLastPosition("1000");
+        summary.setCurrentPosition("10");
+        assertEquals(99L, (long) summary.estimatedSecondsRemaining(10));
+        assertNull(summary.estimatedSecondsRemaining(0));
+
+        // the current position of the summary is updated by every slice and does not tell the remaining positions
+        summary = new IntegrityCheckJobSummary();
+        summary.setLastPosition("1000");
+        IntegrityCheckJobSummary.SliceProgress first = summary.addSlice(0, 0, 100);
+        IntegrityCheckJobSummary.SliceProgress second = summary.addSlice(1, 100, Long.MAX_VALUE);
+        first.update("1", ULID_GENERATOR.nextValue(10));
+        first.update("100", ULID_GENERATOR.nextValue(20));
+        second.update("500", ULID_GENERATOR.nextValue(110));
+        second.update("900", ULID_GENERATOR.nextValue(120));
+        summary.setCurrentPosition("900");
+        // the first slice has 400 positions left and gets half the rate
+        assertEquals(80L, (long) summary.estimatedSecondsRemaining(10));
+
+        first.setStatus("COMPLETED");
+        assertEquals(10L, (long) summary.estimatedSecondsRemaining(10));
+
+        // the next slice has not received its first position
+        summary = new IntegrityCheckJobSummary();
+        summary.setLastPosition("1000");
+        summary.addSlice(0, 0, 100).update("1", ULID_GENERATOR.nextValue(10));
+        summary.addSlice(1, 100, Long.MAX_VALUE);
+        assertNull(summary.estimatedSecondsRemaining(10));
+    }
+}
@@ -0,0 +1,90 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.config.StoreBasedDynamicConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IntegrityCheckSchedulerTest {
+
+    static IntegrityCheckScheduler.JobTask blockingTask(List<String> startedTopics, CountDownLatch release) {
+        return scheduledJob -> {
+            startedTopics.add(scheduledJob.getTopic());
+            scheduledJob.signalStarted();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    @Test
+    void queueJobsBeyondBackendCap() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.scheduler.maxConcurrentJobs", "3")
+                .values("data.collector.integrityCheck.scheduler.maxConcurrentJobs.memory", "1")
+                .build();
+        List<String> startedTopics = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        try (IntegrityCheckScheduler scheduler = new IntegrityCheckScheduler(configuration)) {
+            IntegrityCheckScheduler.ScheduledJob first = scheduler.submit("memory", "first", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+            IntegrityCheckScheduler.ScheduledJob second = scheduler.submit("memory", "second", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+            IntegrityCheckScheduler.ScheduledJob third = scheduler.submit("memory", "third", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+            IntegrityCheckScheduler.ScheduledJob otherBackend = scheduler.submit("postgres", "other", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+
+            assertTrue(first.awaitStarted(5, TimeUnit.SECONDS));
+            assertTrue(otherBackend.awaitStarted(5, TimeUnit.SECONDS));
+            assertTrue(second.isQueued());
+            assertTrue(third.isQueued());
+            assertFalse(second.awaitStarted(5, TimeUnit.SECONDS));
+
+            release.countDown();
+            third.completed().get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("first", "second", "third"), startedTopics.stream().filter(topic -> !"other".equals(topic)).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void cancelQueuedJob() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.scheduler.maxConcurrentJobs", "1")
+                .build();
+        List<String> startedTopics = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        try (IntegrityCheckScheduler scheduler = new IntegrityCheckScheduler(configuration)) {
+            IntegrityCheckScheduler.ScheduledJob first = scheduler.submit("memory", "first", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+            IntegrityCheckScheduler.ScheduledJob second = scheduler.submit("memory", "second", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+            IntegrityCheckScheduler.ScheduledJob third = scheduler.submit("memory", "third", new IntegrityCheckJobSummary(), blockingTask(startedTopics, release));
+
+            assertTrue(first.awaitStarted(5, TimeUnit.SECONDS));
+            assertFalse(first.cancel());
+            assertTrue(second.cancel());
+            assertTrue(second.completed().isCancelled());
+
+            release.countDown();
+            third.completed().get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("first", "third"), startedTopics);
+        }
+    }
+
+    @Test
+    void failureBeforeStartIsRethrown() {
+        try (IntegrityCheckScheduler scheduler = new IntegrityCheckScheduler(null)) {
+            IntegrityCheckScheduler.ScheduledJob scheduledJob = scheduler.submit("memory", "failing", new IntegrityCheckJobSummary(), job -> {
+                throw new IllegalStateException("Lmdb database is in use for topic: failing");
+            });
+            assertThrows(IllegalStateException.class, () -> scheduledJob.awaitStarted(5, TimeUnit.SECONDS));
+        }
+    }
+}
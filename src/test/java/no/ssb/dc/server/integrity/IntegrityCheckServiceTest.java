@@ -0,0 +1,65 @@
+package no.ssb.dc.server.integrity;
+
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.config.StoreBasedDynamicConfiguration;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class IntegrityCheckServiceTest {
+
+    @Test
+    void reportFileMustBeInReportDirectory() throws IOException {
+        Path dbLocation = Files.createTempDirectory("integrity-check");
+        Path reportPath = Files.createDirectories(dbLocation.resolve("topic").resolve("report"));
+        Files.writeString(reportPath.resolve("report.json"), "[]");
+        Files.writeString(dbLocation.resolve("topic").resolve("data.mdb"), "");
+        Files.createDirectories(dbLocation.resolve("other").resolve("report"));
+        Files.writeString(dbLocation.resolve("other").resolve("report").resolve("report.json"), "[]");
+
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.database.location", dbLocation.toString())
+                .build();
+        IntegrityCheckService service = new IntegrityCheckService(configuration, null, null);
+
+        assertEquals(reportPath.resolve("report.json"), service.getReportFile("topic", "report.json"));
+        assertNull(service.getReportFile("topic", "missing.json"));
+        assertNull(service.getReportFile("topic", "../data.mdb"));
+        assertNull(service.getReportFile("topic", "../../other/report/report.json"));
+        assertNull(service.getReportFile("topic", "./../data.mdb"));
+        assertNull(service.getReportFile("topic", dbLocation.resolve("topic").resolve("data.mdb").toString()));
+    }
+
+    @Test
+    void findDuplicatesRejectsOversizedCursorAndPrefix() throws IOException {
+        Path dbLocation = Files.createTempDirectory("integrity-check");
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("data.collector.integrityCheck.database.location", dbLocation.toString())
+                .build();
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration)) {
+            String oversizedPosition;
+            try (LmdbEnvironment lmdbEnvironment = registry.acquire(dbLocation, "topic");
+                 IntegrityCheckIndex index = new IntegrityCheckIndex(lmdbEnvironment)) {
+                index.writeSequence(ULIDGenerator.generate(), "1");
+                index.writeSequence(ULIDGenerator.generate(), "1");
+                index.commitQueue();
+                oversizedPosition = "p".repeat(lmdbEnvironment.maxKeySize());
+            }
+            IntegrityCheckService service = new IntegrityCheckService(configuration, null, registry);
+
+            assertEquals(1, service.findDuplicates("topic", null, null, 10).size());
+            // the controller answers 400 Bad Request
+            assertThrows(IllegalArgumentException.class, () -> service.findDuplicates("topic", oversizedPosition, null, 10));
+            assertThrows(IllegalArgumentException.class, () -> service.findDuplicates("topic", null, oversizedPosition, 10));
+        }
+    }
+}
@@ -11,6 +11,8 @@ import no.ssb.dc.api.util.CommonUtils;
 import no.ssb.dc.api.util.JsonParser;
 import no.ssb.dc.server.content.ContentStoreComponent;
 import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
+import no.ssb.dc.server.db.SequenceKey;
 import no.ssb.dc.test.client.ResponseHelper;
 import no.ssb.dc.test.client.TestClient;
 import no.ssb.dc.test.server.TestServer;
@@ -23,9 +25,15 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 /**
  * Test requires vm arg: --add-opens java.base/java.nio=lmdbjava --add-exports=java.base/sun.nio.ch=lmdbjava
  */
@@ -77,7 +85,8 @@ public class IntegrityCheckTest {
         LmdbEnvironment.removePath(dbPath);
         Map<String, IntegrityCheckJob> jobs = new LinkedHashMap<>();
         CompletableFuture<IntegrityCheckJob> future = CompletableFuture.supplyAsync(() -> {
-            try (LmdbEnvironment lmdbEnvironment = new LmdbEnvironment(configuration, dbPath, "test-stream")) {
+            try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+                 LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "test-stream")) {
                 try (IntegrityCheckIndex index = new IntegrityCheckIndex(lmdbEnvironment)) {
                     IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary());
                     jobs.put("test-stream", job);
@@ -107,6 +116,324 @@ public class IntegrityCheckTest {
         LOG.trace("summary: {}", json);
     }
 
+    @Test
+    void testInlineDuplicateDetection() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .values("data.collector.integrityCheck.inlineDuplicateDetection", "true")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        ContentStore contentStore = contentStoreComponent.getDelegate();
+        produceMessages(contentStore.contentStream(), "inline-");
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("inline-test-stream"));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "inline-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary());
+                job.consume("inline-test-stream");
+
+                // positions 10, 25 and 50 occur 2, 3 and 4 times
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals(3, summary.affectedPositions);
+                assertEquals(9, summary.duplicatePositions);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testIncrementalCheck() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        ContentStore contentStore = contentStoreComponent.getDelegate();
+        produceMessages(contentStore.contentStream(), "incremental-");
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("incremental-test-stream"));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "incremental-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary());
+                job.consume("incremental-test-stream");
+            }
+        }
+
+        // append a new tail that contains one more duplicate of position 10
+        try (ContentStreamProducer producer = contentStore.contentStream().producer("incremental-test-stream")) {
+            for (int n = NUMBER_OF_MESSAGES; n < NUMBER_OF_MESSAGES + 100; n++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(n)).put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+            }
+            producer.publishBuilders(producer.builder().position("10").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of("incremental", new LinkedList<>(List.of("true"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "incremental-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options.isInlineDuplicateDetection())) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                job.consume("incremental-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals("INCREMENTAL", summary.mode);
+                assertEquals(NUMBER_OF_MESSAGES + 6 + 101, summary.checkedPositions);
+                assertEquals(3, summary.affectedPositions);
+                assertEquals(10, summary.duplicatePositions);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testBloomFilterCheck() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .values("data.collector.integrityCheck.bloom.memoryInMb", "1")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        produceMessages(contentStoreComponent.<ContentStore>getDelegate().contentStream(), "bloom-");
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("bloom-test-stream"));
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of("type", new LinkedList<>(List.of("bloom"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "bloom-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                job.consume("bloom-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals("BLOOM", summary.mode);
+                assertEquals(NUMBER_OF_MESSAGES + 6, summary.checkedPositions);
+                assertEquals(3, summary.affectedPositions);
+                assertEquals(9, summary.duplicatePositions);
+                assertEquals(summary.bloomFilter.suspectedPositions - 3, (long) summary.bloomFilter.falsePositives);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testContentHashCheck() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .values("data.collector.integrityCheck.content.hashThreads", "4")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        try (ContentStreamProducer producer = contentStoreComponent.<ContentStore>getDelegate().contentStream().producer("content-test-stream")) {
+            for (int n = 0; n < 100; n++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(n)).put("entry", ("DATA-" + n).getBytes(StandardCharsets.UTF_8)));
+            }
+            // payload duplicate of position 5
+            producer.publishBuilders(producer.builder().position("200").put("entry", "DATA-5".getBytes(StandardCharsets.UTF_8)));
+            // position duplicate with identical content
+            producer.publishBuilders(producer.builder().position("10").put("entry", "DATA-10".getBytes(StandardCharsets.UTF_8)));
+            // position duplicate with differing content
+            producer.publishBuilders(producer.builder().position("20").put("entry", "OTHER".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("content-test-stream"));
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of("type", new LinkedList<>(List.of("content"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "content-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                job.consume("content-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals("CONTENT", summary.mode);
+                assertEquals(103, summary.checkedPositions);
+                assertEquals(103, summary.contentHash.hashedMessages);
+                assertEquals(2, summary.affectedPositions);
+                assertEquals(4, summary.duplicatePositions);
+                assertEquals(1, (long) summary.contentHash.payloadDuplicates);
+                assertEquals(2, (long) summary.contentHash.payloadDuplicatePositions);
+                assertEquals(1, (long) summary.contentHash.contentCollisions);
+                // a content check does not build a sequence index that can be extended
+                assertEquals(0, summary.keyFormat);
+                assertNull(summary.lastUlid);
+            }
+        }
+
+        // an incremental check after a content check must check all positions
+        IntegrityCheckJobOptions incrementalOptions = IntegrityCheckJobOptions.create(configuration, Map.of("incremental", new LinkedList<>(List.of("true"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "content-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, incrementalOptions)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), incrementalOptions);
+                job.consume("content-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals("FULL", summary.mode);
+                assertEquals(103, summary.checkedPositions);
+                assertEquals(2, summary.affectedPositions);
+                assertEquals(4, summary.duplicatePositions);
+                assertNull(summary.contentHash);
+                assertEquals(SequenceKey.FORMAT_VERSION, summary.keyFormat);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testSampleCheck() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        produceMessages(contentStoreComponent.<ContentStore>getDelegate().contentStream(), "sample-");
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("sample-test-stream"));
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of(
+                "type", new LinkedList<>(List.of("sample")),
+                "windows", new LinkedList<>(List.of("4")),
+                "windowSize", new LinkedList<>(List.of("1000"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "sample-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                job.consume("sample-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                LOG.trace("summary: {}", JsonParser.createJsonParser().toPrettyJSON(summary));
+                assertEquals("SAMPLE", summary.mode);
+                assertEquals(0, summary.keyFormat);
+                assertEquals(summary.sample.windows, summary.sample.sampledWindows);
+                assertTrue(summary.sample.sampledMessages > 0 && summary.sample.sampledMessages <= 4 * 1000);
+                assertEquals(summary.checkedPositions, (long) summary.sample.sampledMessages);
+                assertEquals(summary.duplicatePositions, (long) summary.sample.duplicateMessages);
+                assertTrue(summary.sample.duplicateRateLowerBound <= summary.sample.duplicateRate);
+                assertTrue(summary.sample.duplicateRateUpperBound > summary.sample.duplicateRate);
+                assertTrue(summary.sample.estimatedMessages > 0);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testGapDetection() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        try (ContentStreamProducer producer = contentStoreComponent.<ContentStore>getDelegate().contentStream().producer("gaps-test-stream")) {
+            for (int n = 0; n < 100; n++) {
+                if ((n < 10 || n > 14) && n != 50) {
+                    producer.publishBuilders(producer.builder().position(String.valueOf(n)).put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            producer.publishBuilders(producer.builder().position("not-a-number").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+            // not the canonical form of position 50
+            producer.publishBuilders(producer.builder().position("050").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+            producer.publishBuilders(producer.builder().position("+50").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("gaps-test-stream"));
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of("gaps", new LinkedList<>(List.of("true"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "gaps-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                job.consume("gaps-test-stream");
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals(94, summary.gaps.trackedPositions);
+                assertEquals(3, summary.gaps.nonNumericPositions);
+                assertEquals(6, (long) summary.gaps.missingPositions);
+                assertEquals(2, (long) summary.gaps.missingRanges);
+                assertEquals(10, summary.gaps.largestGaps.get(0).from);
+                assertEquals(14, summary.gaps.largestGaps.get(0).to);
+                assertEquals(50, summary.gaps.largestGaps.get(1).from);
+                assertTrue(index.getDatabaseDir().resolve("report").resolve(summary.gaps.reportId).toFile().exists());
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
+    @Test
+    void testMonitor() throws Exception {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .values("content.stream.connector", "rawdata")
+                .values("rawdata.client.provider", "memory")
+                .values("data.collector.integrityCheck.consumer.timeoutInSeconds", "1")
+                .values("data.collector.integrityCheck.writer.commitIntervalInMillis", "100")
+                .build();
+
+        ContentStoreComponent contentStoreComponent = ContentStoreComponent.create(configuration);
+        ContentStream contentStream = contentStoreComponent.<ContentStore>getDelegate().contentStream();
+        try (ContentStreamProducer producer = contentStream.producer("monitor-test-stream")) {
+            for (int n = 0; n < 100; n++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(n)).put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        Path dbPath = CommonUtils.currentPath().resolve("target").resolve("lmdb");
+        LmdbEnvironment.removePath(dbPath.resolve("monitor-test-stream"));
+        IntegrityCheckJobOptions options = IntegrityCheckJobOptions.create(configuration, Map.of("monitor", new LinkedList<>(List.of("true"))));
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbPath, "monitor-test-stream")) {
+            try (IntegrityCheckIndex index = new IntegrityCheckIndex(configuration, lmdbEnvironment, options)) {
+                IntegrityCheckJob job = new IntegrityCheckJob(configuration, contentStoreComponent, index, new IntegrityCheckJobSummary(), options);
+                CompletableFuture<Void> future = CompletableFuture.runAsync(() -> job.consume("monitor-test-stream"));
+
+                // the monitor summary is set when the job has started
+                while (job.getSummary().monitor == null || !"TAILING".equals(job.getSummary().monitor.status)) {
+                    Thread.sleep(100);
+                }
+                try (ContentStreamProducer producer = contentStream.producer("monitor-test-stream")) {
+                    producer.publishBuilders(producer.builder().position("42").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+                    producer.publishBuilders(producer.builder().position("100").put("entry", "DATA".getBytes(StandardCharsets.UTF_8)));
+                }
+                for (int n = 0; n < 50 && job.getSummary().monitor.detectedDuplicates == 0; n++) {
+                    Thread.sleep(100);
+                }
+
+                IntegrityCheckJobSummary.Summary summary = job.getSummary();
+                assertEquals("MONITOR", summary.mode);
+                assertEquals("RUNNING", summary.status);
+                assertEquals(1, summary.monitor.detectedDuplicates);
+                assertEquals("42", summary.monitor.lastDuplicatePosition);
+
+                job.terminate();
+                future.join();
+                assertEquals(102, job.getSummary().checkedPositions);
+                assertEquals(1, job.getSummary().affectedPositions);
+            }
+        }
+
+        contentStoreComponent.close();
+    }
+
     @Disabled
     @Test
     void testIntegrityCheckerController() throws InterruptedException {
@@ -0,0 +1,35 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class MurmurHash3Test {
+
+    static void assertHash(int seed, long expectedH1, long expectedH2, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long[] hash = new long[2];
+        MurmurHash3.hash128(bytes, 0, bytes.length, seed, hash);
+        assertArrayEquals(new long[]{expectedH1, expectedH2}, hash);
+    }
+
+    @Test
+    void knownHashes() {
+        assertHash(0, 0, 0, "");
+        assertHash(0, 0x629942693e10f867L, 0x92db0b82baeb5347L, "hell");
+        assertHash(1, 0xa78ddff5adae8d10L, 0x128900ef20900135L, "hello");
+        assertHash(2, 0x8a486b23f422e826L, 0xf962a2c58947765fL, "hello ");
+        assertHash(3, 0x2ea59f466f6bed8cL, 0xc610990acc428a17L, "hello w");
+        assertHash(0, 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L, "The quick brown fox jumps over the lazy dog");
+    }
+
+    @Test
+    void hashOfSubArray() {
+        byte[] bytes = "xxhelloxx".getBytes(StandardCharsets.UTF_8);
+        long[] hash = new long[2];
+        MurmurHash3.hash128(bytes, 2, 5, 0, hash);
+        assertArrayEquals(MurmurHash3.hash128("hello"), hash);
+    }
+}
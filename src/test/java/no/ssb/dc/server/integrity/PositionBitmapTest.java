@@ -0,0 +1,101 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PositionBitmapTest {
+
+    static List<String> gaps(PositionBitmap bitmap) {
+        List<String> gaps = new ArrayList<>();
+        bitmap.forEachGap((from, to) -> gaps.add(from + "-" + to));
+        return gaps;
+    }
+
+    @Test
+    void addAndContains() {
+        PositionBitmap bitmap = new PositionBitmap();
+        assertEquals(-1, bitmap.min());
+        assertTrue(bitmap.add(42));
+        assertFalse(bitmap.add(42));
+        assertTrue(bitmap.add(1L << 40));
+        assertTrue(bitmap.contains(42));
+        assertTrue(bitmap.contains(1L << 40));
+        assertFalse(bitmap.contains(43));
+        assertFalse(bitmap.contains(-1));
+        assertEquals(2, bitmap.cardinality());
+        assertEquals(42, bitmap.min());
+        assertEquals(1L << 40, bitmap.max());
+    }
+
+    @Test
+    void missingRanges() {
+        PositionBitmap bitmap = new PositionBitmap();
+        for (long position = 1; position <= 300_000; position++) {
+            if (position % 100_000 != 0 && (position < 150_000 || position > 150_010)) {
+                bitmap.add(position);
+            }
+        }
+        bitmap.add(300_000);
+        assertEquals(List.of("100000-100000", "150000-150010", "200000-200000"), gaps(bitmap));
+        assertEquals(300_000 - 2 - 11, bitmap.cardinality());
+    }
+
+    @Test
+    void contiguousPositionsUseFullBlocks() {
+        PositionBitmap bitmap = new PositionBitmap();
+        // add in reverse order within each block to exercise array insertion and conversion to a bitmap
+        for (long block = 0; block < 100; block++) {
+            for (long position = PositionBitmap.BLOCK_SIZE - 1; position >= 0; position--) {
+                bitmap.add(block * PositionBitmap.BLOCK_SIZE + position);
+            }
+        }
+        assertEquals(100L * PositionBitmap.BLOCK_SIZE, bitmap.cardinality());
+        assertTrue(gaps(bitmap).isEmpty());
+        assertEquals(100 * 64, bitmap.memoryInBytes());
+    }
+
+    @Test
+    void sparseAndDenseBlocks() {
+        PositionBitmap bitmap = new PositionBitmap();
+        for (long position = 0; position < PositionBitmap.BLOCK_SIZE; position += 2) {
+            bitmap.add(position);
+        }
+        bitmap.add(PositionBitmap.BLOCK_SIZE + 10);
+        bitmap.add(PositionBitmap.BLOCK_SIZE + 11);
+        List<String> gaps = gaps(bitmap);
+        assertEquals(PositionBitmap.BLOCK_SIZE / 2, gaps.size());
+        assertEquals("1-1", gaps.get(0));
+        assertEquals((PositionBitmap.BLOCK_SIZE - 1) + "-" + (PositionBitmap.BLOCK_SIZE + 9), gaps.get(gaps.size() - 1));
+    }
+
+    @Test
+    void serialize() throws IOException {
+        PositionBitmap bitmap = new PositionBitmap();
+        for (long position = 0; position < 3 * PositionBitmap.BLOCK_SIZE; position++) {
+            if (position < PositionBitmap.BLOCK_SIZE || position % 3 == 0 || position == 2 * PositionBitmap.BLOCK_SIZE + 1) {
+                bitmap.add(position);
+            }
+        }
+        bitmap.add(10L * PositionBitmap.BLOCK_SIZE + 7);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.writeTo(new DataOutputStream(bytes));
+        PositionBitmap copy = PositionBitmap.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(bitmap.cardinality(), copy.cardinality());
+        assertEquals(bitmap.min(), copy.min());
+        assertEquals(bitmap.max(), copy.max());
+        assertEquals(gaps(bitmap), gaps(copy));
+    }
+}
@@ -0,0 +1,59 @@
+package no.ssb.dc.server.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ThroughputMeterTest {
+
+    static void markFor(ThroughputMeter meter, AtomicLong clock, int ticks, int eventsPerTick) {
+        for (int tick = 0; tick < ticks; tick++) {
+            for (int i = 0; i < eventsPerTick; i++) {
+                meter.mark();
+            }
+            clock.addAndGet(ThroughputMeter.TICK_INTERVAL_IN_NANOS);
+        }
+    }
+
+    @Test
+    void steadyRate() {
+        AtomicLong clock = new AtomicLong();
+        ThroughputMeter meter = new ThroughputMeter(clock::get);
+        assertEquals(0.0, meter.oneMinuteRate());
+
+        // 500 events per 5 second tick is 100 events per second
+        markFor(meter, clock, 12 * 20, 500);
+        assertEquals(100.0, meter.oneMinuteRate(), 0.001);
+        assertEquals(100.0, meter.fiveMinuteRate(), 0.001);
+        assertEquals(100.0, meter.fifteenMinuteRate(), 0.001);
+        assertEquals(12 * 20 * 500, meter.count());
+    }
+
+    @Test
+    void shortWindowFollowsChangeFirst() {
+        AtomicLong clock = new AtomicLong();
+        ThroughputMeter meter = new ThroughputMeter(clock::get);
+        markFor(meter, clock, 12 * 20, 500);
+
+        // the source slows down to 10 events per second for two minutes
+        markFor(meter, clock, 12 * 2, 50);
+        assertTrue(meter.oneMinuteRate() < 25, "1m: " + meter.oneMinuteRate());
+        assertTrue(meter.fiveMinuteRate() > 50, "5m: " + meter.fiveMinuteRate());
+        assertTrue(meter.fifteenMinuteRate() > meter.fiveMinuteRate());
+    }
+
+    @Test
+    void idleIntervalsDecayRate() {
+        AtomicLong clock = new AtomicLong();
+        ThroughputMeter meter = new ThroughputMeter(clock::get);
+        markFor(meter, clock, 12 * 20, 500);
+
+        // no events for five minutes, without marking or reading the meter in between
+        clock.addAndGet(12 * 5 * ThroughputMeter.TICK_INTERVAL_IN_NANOS);
+        assertEquals(100 * Math.exp(-5), meter.oneMinuteRate(), 0.01);
+        assertEquals(100 * Math.exp(-1), meter.fiveMinuteRate(), 0.01);
+    }
+}
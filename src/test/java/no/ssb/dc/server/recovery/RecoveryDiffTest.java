@@ -0,0 +1,140 @@
+package no.ssb.dc.server.recovery;
+
+import de.huxhorn.sulky.ulid.ULID;
+import no.ssb.dc.api.ulid.ULIDGenerator;
+import no.ssb.dc.server.db.SequenceKey;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RecoveryDiffTest {
+
+    static final int MAX_KEY_SIZE = 511;
+
+    // the keys of an Lmdb sequence database in key order
+    static class SortedKeyCursor implements RecoveryDiff.KeyCursor {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        int index = -1;
+
+        SortedKeyCursor(List<SequenceKey> sequenceKeys) {
+            for (SequenceKey sequenceKey : sequenceKeys) {
+                keys.add(sequenceKey.toByteBuffer(ByteBuffer.allocateDirect(MAX_KEY_SIZE)));
+            }
+            keys.sort(RecoveryDiffTest::compareUnsigned);
+        }
+
+        @Override
+        public boolean next() {
+            return ++index < keys.size();
+        }
+
+        @Override
+        public ByteBuffer key() {
+            return keys.get(index);
+        }
+    }
+
+    static int compareUnsigned(ByteBuffer a, ByteBuffer b) {
+        int commonLength = Math.min(a.remaining(), b.remaining());
+        for (int i = 0; i < commonLength; i++) {
+            int cmp = Byte.compareUnsigned(a.get(a.position() + i), b.get(b.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.remaining(), b.remaining());
+    }
+
+    @Test
+    void reportMissingExtraAndMismatchedPositions() {
+        List<SequenceKey> source = new ArrayList<>();
+        List<SequenceKey> target = new ArrayList<>();
+        for (int n = 0; n < 100; n++) {
+            ULID.Value ulid = ULIDGenerator.generate();
+            if (n != 10) {
+                source.add(new SequenceKey(ulid, String.valueOf(n)));
+            }
+            if (n != 20) {
+                target.add(new SequenceKey(ulid, String.valueOf(n)));
+            }
+        }
+        ULID.Value duplicateUlid = ULIDGenerator.generate();
+        source.add(new SequenceKey(duplicateUlid, "30"));
+        target.add(new SequenceKey(duplicateUlid, "30"));
+        // the recovered duplicate got a new ulid
+        source.add(new SequenceKey(ULIDGenerator.generate(), "40"));
+        target.add(new SequenceKey(ULIDGenerator.generate(), "40"));
+        source.add(new SequenceKey(ULIDGenerator.generate(), "a"));
+        target.add(new SequenceKey(ULIDGenerator.generate(), "b"));
+
+        RecoveryDiff recoveryDiff = new RecoveryDiff(null, null);
+        Map<String, RecoveryDiff.DiffType> diffs = new LinkedHashMap<>();
+        assertTrue(recoveryDiff.compare(new SortedKeyCursor(source), new SortedKeyCursor(target), MAX_KEY_SIZE,
+                (diffType, position, sourceUlids, targetUlids) -> diffs.put(position, diffType)));
+
+        Map<String, RecoveryDiff.DiffType> expected = new LinkedHashMap<>();
+        expected.put("10", RecoveryDiff.DiffType.EXTRA);
+        expected.put("20", RecoveryDiff.DiffType.MISSING);
+        expected.put("40", RecoveryDiff.DiffType.ULID_MISMATCH);
+        expected.put("a", RecoveryDiff.DiffType.MISSING);
+        expected.put("b", RecoveryDiff.DiffType.EXTRA);
+        assertEquals(expected, diffs);
+
+        RecoveryDiffMonitor.Summary summary = recoveryDiff.summary();
+        assertEquals(source.size(), summary.sourceKeys);
+        assertEquals(target.size(), summary.targetKeys);
+        assertEquals(102, summary.comparedPositions);
+        assertEquals(97, summary.matchedPositions);
+        assertEquals(2, summary.missingPositions);
+        assertEquals(2, summary.extraPositions);
+        assertEquals(1, summary.ulidMismatchedPositions);
+    }
+
+    @Test
+    void identicalTopics() {
+        List<SequenceKey> keys = new ArrayList<>();
+        for (int n = 0; n < 100; n++) {
+            keys.add(new SequenceKey(ULIDGenerator.generate(), "position-" + n));
+        }
+        Collections.shuffle(keys);
+        RecoveryDiff recoveryDiff = new RecoveryDiff(null, null);
+        recoveryDiff.monitor().setStarted();
+        assertTrue(recoveryDiff.compare(new SortedKeyCursor(keys), new SortedKeyCursor(keys), MAX_KEY_SIZE,
+                (diffType, position, sourceUlids, targetUlids) -> {
+                    throw new AssertionError("Unexpected diff at position: " + position);
+                }));
+        recoveryDiff.monitor().setCompleted();
+        recoveryDiff.monitor().setEnded();
+
+        RecoveryDiffMonitor.Summary summary = recoveryDiff.summary();
+        assertEquals("COMPLETED", summary.status);
+        assertEquals(100, summary.matchedPositions);
+        assertTrue(summary.identical);
+    }
+
+    @Test
+    void terminatedDiffIsNotIdentical() {
+        List<SequenceKey> keys = List.of(new SequenceKey(ULIDGenerator.generate(), "1"));
+        RecoveryDiff recoveryDiff = new RecoveryDiff(null, null);
+        recoveryDiff.monitor().setStarted();
+        recoveryDiff.terminate();
+        assertFalse(recoveryDiff.compare(new SortedKeyCursor(keys), new SortedKeyCursor(keys), MAX_KEY_SIZE,
+                (diffType, position, sourceUlids, targetUlids) -> {
+                }));
+        recoveryDiff.monitor().setEnded();
+
+        RecoveryDiffMonitor.Summary summary = recoveryDiff.summary();
+        assertEquals("TERMINATED", summary.status);
+        assertNull(summary.identical);
+    }
+}
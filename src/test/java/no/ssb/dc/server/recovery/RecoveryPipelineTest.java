@@ -0,0 +1,143 @@
+package no.ssb.dc.server.recovery;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RecoveryPipelineTest {
+
+    static RecoveryPipeline.Reader<Integer> source(int numberOfMessages) {
+        AtomicInteger next = new AtomicInteger();
+        return () -> next.get() < numberOfMessages ? next.getAndIncrement() : null;
+    }
+
+    @Test
+    void publishAllPositionsInOrder() {
+        RecoveryMonitor monitor = new RecoveryMonitor();
+        List<String> copiedPositions = new ArrayList<>();
+        List<String[]> publishedBatches = Collections.synchronizedList(new ArrayList<>());
+        RecoveryPipeline<Integer> pipeline = new RecoveryPipeline<>("test", 100, 1000, 2, source(25_500), String::valueOf,
+                message -> copiedPositions.add(String.valueOf(message)),
+                publishedBatches::add,
+                monitor);
+        assertTrue(pipeline.run());
+
+        assertEquals(26, publishedBatches.size());
+        assertEquals(500, publishedBatches.get(25).length);
+        List<String> publishedPositions = new ArrayList<>();
+        for (String[] batch : publishedBatches) {
+            Collections.addAll(publishedPositions, batch);
+        }
+        assertEquals(copiedPositions, publishedPositions);
+
+        RecoveryMonitor.Summary summary = monitor.build();
+        assertEquals(25_500, summary.copiedPositions);
+        assertEquals(0, summary.readAheadPositions);
+        assertEquals(0, summary.bufferedPositions);
+        assertEquals(0, summary.inFlightBatches);
+    }
+
+    @Test
+    void slowPublisherLimitsInFlightBatches() throws Exception {
+        RecoveryMonitor monitor = new RecoveryMonitor();
+        CountDownLatch publishLatch = new CountDownLatch(1);
+        AtomicInteger copied = new AtomicInteger();
+        RecoveryPipeline<Integer> pipeline = new RecoveryPipeline<>("test", 10, 10, 2, source(1000), String::valueOf,
+                message -> copied.incrementAndGet(),
+                positions -> publishLatch.await(),
+                monitor);
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(pipeline::run);
+
+        // the copy stage blocks on the third batch, and the reader on a full read-ahead queue
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (copied.get() < 30 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(30, copied.get());
+        RecoveryMonitor.Summary summary = monitor.build();
+        assertEquals(2, summary.inFlightBatches);
+        assertEquals(10, summary.bufferedPositions);
+        assertEquals(10, summary.readAheadPositions);
+
+        publishLatch.countDown();
+        assertTrue(future.get(10, TimeUnit.SECONDS));
+        assertEquals(1000, monitor.build().copiedPositions);
+    }
+
+    @Test
+    void publishFailureStopsPipeline() {
+        RecoveryPipeline<Integer> pipeline = new RecoveryPipeline<>("test", 10, 10, 2, source(1_000_000), String::valueOf,
+                message -> {
+                },
+                positions -> {
+                    throw new IllegalStateException("publish failed");
+                },
+                new RecoveryMonitor());
+        RuntimeException e = assertThrows(RuntimeException.class, pipeline::run);
+        assertEquals("publish failed", e.getMessage());
+    }
+
+    @Test
+    void terminatedPipelineIsNotCompleted() {
+        RecoveryPipeline<Integer> pipeline = new RecoveryPipeline<>("test", 10, 10, 2, source(1_000_000), String::valueOf,
+                message -> {
+                },
+                positions -> {
+                },
+                new RecoveryMonitor());
+        pipeline.terminate();
+        assertFalse(pipeline.run());
+    }
+
+    @Test
+    void duplicatePositionIsCopiedAfterEarlierCopyIsPublished() {
+        // duplicates in earlier batches
+        copyDuplicatePositions(25);
+        // duplicates in earlier batches and in the current batch
+        copyDuplicatePositions(7);
+    }
+
+    static void copyDuplicatePositions(int distinctPositions) {
+        // the target buffers copies by position until they are published, like the content stream producer
+        Map<String, Integer> buffer = new ConcurrentHashMap<>();
+        List<String> copiedPositions = Collections.synchronizedList(new ArrayList<>());
+        List<String> publishedPositions = Collections.synchronizedList(new ArrayList<>());
+        RecoveryPipeline<Integer> pipeline = new RecoveryPipeline<>("test", 10, 10, 2, source(1000),
+                message -> String.valueOf(message % distinctPositions),
+                message -> {
+                    String position = String.valueOf(message % distinctPositions);
+                    if (buffer.putIfAbsent(position, message) != null) {
+                        throw new IllegalStateException("Position is already buffered: " + position);
+                    }
+                    copiedPositions.add(position);
+                },
+                positions -> {
+                    Thread.sleep(1);
+                    for (String position : positions) {
+                        if (buffer.remove(position) == null) {
+                            throw new IllegalStateException("Position is not buffered: " + position);
+                        }
+                        publishedPositions.add(position);
+                    }
+                },
+                new RecoveryMonitor());
+        assertTrue(pipeline.run());
+        assertEquals(1000, publishedPositions.size());
+        assertEquals(copiedPositions, publishedPositions);
+        assertTrue(buffer.isEmpty());
+    }
+}
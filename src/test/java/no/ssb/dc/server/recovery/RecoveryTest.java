@@ -12,6 +12,7 @@ import no.ssb.dc.api.ulid.ULIDGenerator;
 import no.ssb.dc.api.util.CommonUtils;
 import no.ssb.dc.server.content.ContentStoreComponent;
 import no.ssb.dc.server.db.LmdbEnvironment;
+import no.ssb.dc.server.db.LmdbEnvironmentComponent;
 import no.ssb.dc.server.db.SequenceDbHelper;
 import no.ssb.dc.server.integrity.IntegrityCheckService;
 import no.ssb.dc.test.client.ResponseHelper;
@@ -67,24 +68,25 @@ public class RecoveryTest {
                 .build();
 
         Path dbLocation = CommonUtils.currentPath().resolve("certs").resolve("lmdb");
-        LmdbEnvironment lmdbEnvironment = new LmdbEnvironment(configuration, dbLocation, "ske-freg");
-
-        long past = System.currentTimeMillis();
-        SequenceDbHelper sequenceDbHelper = new SequenceDbHelper(lmdbEnvironment, lmdbEnvironment.open());
-        PositionAndULIDVersion firstPosition = sequenceDbHelper.findFirstPosition();
-        PositionAndULIDVersion lastPosition = sequenceDbHelper.findLastPosition();
-        long now = System.currentTimeMillis() - past;
-        LOG.trace("Time take: {}", now);
-        LOG.trace("First: {} -> {} -> {}",
-                firstPosition.position(),
-                ULIDGenerator.toUUID(firstPosition.ulid()).toString(),
-                new Date(firstPosition.ulid().timestamp())
-        );
-        LOG.trace("Last: {} -> {} -> {}",
-                lastPosition.position(),
-                ULIDGenerator.toUUID(lastPosition.ulid()).toString(),
-                new Date(lastPosition.ulid().timestamp())
-        );
+        try (LmdbEnvironmentComponent registry = LmdbEnvironmentComponent.create(configuration);
+             LmdbEnvironment lmdbEnvironment = registry.acquire(dbLocation, "ske-freg")) {
+            long past = System.currentTimeMillis();
+            SequenceDbHelper sequenceDbHelper = new SequenceDbHelper(lmdbEnvironment, lmdbEnvironment.open());
+            PositionAndULIDVersion firstPosition = sequenceDbHelper.findFirstPosition();
+            PositionAndULIDVersion lastPosition = sequenceDbHelper.findLastPosition();
+            long now = System.currentTimeMillis() - past;
+            LOG.trace("Time take: {}", now);
+            LOG.trace("First: {} -> {} -> {}",
+                    firstPosition.position(),
+                    ULIDGenerator.toUUID(firstPosition.ulid()).toString(),
+                    new Date(firstPosition.ulid().timestamp())
+            );
+            LOG.trace("Last: {} -> {} -> {}",
+                    lastPosition.position(),
+                    ULIDGenerator.toUUID(lastPosition.ulid()).toString(),
+                    new Date(lastPosition.ulid().timestamp())
+            );
+        }
     }
 
     @Disabled
@@ -197,7 +199,8 @@ public class RecoveryTest {
         Thread.sleep(1500);
         LOG.trace("Completed integrity check !!");
 
-        RecoveryWorker recoveryWorker = new RecoveryWorker(configuration, contentStoreComponent, recoveryContentStoreComponent);
+        LmdbEnvironmentComponent lmdbEnvironmentComponent = server.getApplication().unwrap(LmdbEnvironmentComponent.class);
+        RecoveryWorker recoveryWorker = new RecoveryWorker(configuration, contentStoreComponent, recoveryContentStoreComponent, lmdbEnvironmentComponent);
         recoveryWorker.recover("source-test-stream", "target-test-stream");
 
         try (ContentStreamConsumer consumer = recoveryContentStore.contentStream().consumer("target-test-stream")) {